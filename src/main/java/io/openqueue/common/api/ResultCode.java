@@ -41,6 +41,11 @@ public enum ResultCode {
      */
     TICKET_AUTHORIZED_SUCCESS(20006, "This ticket was authorized."),
 
+    /**
+     * Batch of tickets checked
+     */
+    GET_TICKET_AUTHORIZATIONS_SUCCESS(20007, "Get the authorization of each ticket."),
+
     /**
      * Set ticket occupied success
      */
@@ -86,6 +91,11 @@ public enum ResultCode {
      */
     TICKET_ALREADY_ACTIVATED_EXCEPTION(40004, "Ticket already activated."),
 
+    /**
+     * Illegal number of tickets in a batch
+     */
+    ILLEGAL_TICKET_BATCH_SIZE_EXCEPTION(40005, "Illegal number of tickets in a batch."),
+
     /**
      * Mismatch ticket auth code
      */
@@ -6,7 +6,13 @@ package io.openqueue.common.constant;
 public interface Keys {
     String ACTIVE_SET_PREFIX = "set:active:";
     String READY_SET_PREFIX = "set:ready:";
+    String LEASE_SET_PREFIX = "set:lease:";
     String ALL_QUEUES_SET = "queues";
+    String DUE_QUEUES_SET = "set:queues:due";
     String TICKET_PREFIX = "t:";
     String LOCK_PREFIX = "lock:";
+    String QUEUE_CONFIG_CHANNEL = "channel:queue:config";
+    String QUEUE_STATUS_CHANNEL_PREFIX = "channel:queue:status:";
+    String ACTIVE_CHANNEL_PREFIX = "channel:active:";
+    String NODE_SET = "set:nodes";
 }
@@ -0,0 +1,21 @@
+package io.openqueue.common.constant;
+
+/**
+ * Values of {@code openqueue.storage.engine}, which picks the provider of the repositories.
+ *
+ * @author chenjing
+ */
+public interface StorageEngine {
+    String PROPERTY = "openqueue.storage.engine";
+
+    /**
+     * Queues and tickets in Redis, shared by all nodes. The default.
+     */
+    String REDIS = "redis";
+
+    /**
+     * Queues and tickets in this node's heap, for single node deployments, benchmarks and tests. Kept on disk
+     * across restarts if {@code openqueue.storage.memory.data-dir} is set.
+     */
+    String MEMORY = "memory";
+}
@@ -1,6 +1,9 @@
 package io.openqueue.common.util;
 
+import io.openqueue.dto.TicketAuthDto;
+
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
 
 
@@ -9,17 +12,143 @@ import java.util.Base64;
  */
 public class AuthUtil {
 
+    /**
+     * Tokens are a few dozen bytes, anything much longer is not worth decoding.
+     */
+    private static final int MAX_TOKEN_BASE64_LENGTH = 256;
+
+    private static final int MAX_POSITION_DIGITS = 9;
+
+    private static final byte[] TICKET_TOKEN_PREFIX = {'t', ':', 'q', ':'};
+
+    private static final byte[] URL_BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(URL_BASE64_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            URL_BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
     public static String decodeUrlBase64(String base64) {
         Base64.Decoder decoder = Base64.getUrlDecoder();
         return new String(decoder.decode(base64), StandardCharsets.UTF_8);
     }
 
-    public static boolean validateTicketToken(String ticketToken) {
-        return ticketToken.matches("t:q:[a-zA-Z0-9]+:[1-9][0-9]{0,8}:[a-zA-Z0-9]+");
+    /**
+     * Decode a URL-safe Base64 ticket token of the form {@code t:q:<queue>:<position>:<authCode>} and split it
+     * into its parts, checking the format on the decoded bytes as it goes.
+     *
+     * @return the parts of the token, or null if it is not a well formed ticket token.
+     */
+    public static TicketAuthDto parseTicketToken(String tokenBase64) {
+        int length = tokenBase64.length();
+        if (length > MAX_TOKEN_BASE64_LENGTH) {
+            return null;
+        }
+        // Padding is optional.
+        if (length > 0 && tokenBase64.charAt(length - 1) == '=') {
+            length--;
+            if (length > 0 && tokenBase64.charAt(length - 1) == '=') {
+                length--;
+            }
+        }
+        if (length % 4 == 1) {
+            return null;
+        }
+
+        byte[] token = new byte[length * 3 / 4];
+        int tokenLength = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < length; i++) {
+            char c = tokenBase64.charAt(i);
+            int value = c < URL_BASE64_VALUES.length ? URL_BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                return null;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                token[tokenLength++] = (byte) (bits >> bitCount);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+
+        if (tokenLength < TICKET_TOKEN_PREFIX.length) {
+            return null;
+        }
+        for (int i = 0; i < TICKET_TOKEN_PREFIX.length; i++) {
+            if (token[i] != TICKET_TOKEN_PREFIX[i]) {
+                return null;
+            }
+        }
+
+        int queueIdEnd = scanAlphanumeric(token, TICKET_TOKEN_PREFIX.length, tokenLength);
+        if (queueIdEnd == TICKET_TOKEN_PREFIX.length || queueIdEnd == tokenLength || token[queueIdEnd] != ':') {
+            return null;
+        }
+
+        int positionStart = queueIdEnd + 1;
+        int position = 0;
+        int positionEnd = positionStart;
+        while (positionEnd < tokenLength && isDigit(token[positionEnd])) {
+            position = position * 10 + (token[positionEnd++] - '0');
+        }
+        int positionDigits = positionEnd - positionStart;
+        if (positionDigits == 0 || positionDigits > MAX_POSITION_DIGITS || token[positionStart] == '0'
+                || positionEnd == tokenLength || token[positionEnd] != ':') {
+            return null;
+        }
+
+        int authCodeStart = positionEnd + 1;
+        if (authCodeStart == tokenLength || scanAlphanumeric(token, authCodeStart, tokenLength) != tokenLength) {
+            return null;
+        }
+
+        // Only ASCII is left at this point, so every byte maps to one char.
+        String tokenString = new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1);
+        return TicketAuthDto.builder()
+                .token(tokenString)
+                .ticketId(tokenString.substring(0, positionEnd))
+                .queueId(tokenString.substring(2, queueIdEnd))
+                .position(position)
+                .authCode(tokenString.substring(authCodeStart))
+                .build();
+    }
+
+    public static boolean queueTokenValidate(String queueToken) {
+        int length = queueToken.length();
+        if (length < 3 || queueToken.charAt(0) != 'q' || queueToken.charAt(1) != ':') {
+            return false;
+        }
+        for (int i = 2; i < length; i++) {
+            if (!isAlphanumeric(queueToken.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first byte from {@code from} that is not alphanumeric, or {@code to}.
+     */
+    private static int scanAlphanumeric(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i < to && isAlphanumeric(bytes[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
     }
 
-    public static boolean queueTokenValidate(String ticketToken) {
-        return ticketToken.matches("q:[a-zA-Z0-9]+");
+    private static boolean isAlphanumeric(int c) {
+        return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
     }
 
 }
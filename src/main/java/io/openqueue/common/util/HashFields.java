@@ -0,0 +1,46 @@
+package io.openqueue.common.util;
+
+import java.util.Map;
+
+/**
+ * Conversions shared by the hash codecs. Values may come back from Redis either typed or as plain strings,
+ * depending on whether they were written by the template or by a script.
+ *
+ * @author chenjing
+ */
+final class HashFields {
+
+    private HashFields() {
+    }
+
+    static void putIfNotNull(Map<String, Object> hash, String field, Object value) {
+        if (value != null) {
+            hash.put(field, value);
+        }
+    }
+
+    static String asString(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    static int asInt(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return value == null ? 0 : Integer.parseInt(value.toString());
+    }
+
+    static long asLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    static boolean asBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+}
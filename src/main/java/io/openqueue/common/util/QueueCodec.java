@@ -0,0 +1,115 @@
+package io.openqueue.common.util;
+
+import io.openqueue.dto.QueueConfigDto;
+import io.openqueue.model.Queue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.openqueue.common.util.HashFields.*;
+
+/**
+ * Maps a {@link Queue} to its Redis hash fields and back without going through intermediate JSON objects.
+ *
+ * @author chenjing
+ */
+public final class QueueCodec {
+
+    public static final String ID = "id";
+    public static final String NAME = "name";
+    public static final String CAPACITY = "capacity";
+    public static final String HEAD = "head";
+    public static final String TAIL = "tail";
+    public static final String MAX_ACTIVE_USERS = "maxActiveUsers";
+    public static final String AVAILABLE_SECOND_PER_USER = "availableSecondPerUser";
+    public static final String HOLD_TIME_FOR_ACTIVATE = "holdTimeForActivate";
+    public static final String CALLBACK_URL = "callbackURL";
+
+    private QueueCodec() {
+    }
+
+    public static Map<String, Object> toHash(Queue queue) {
+        Map<String, Object> hash = toConfigHash(queue);
+        hash.put(HEAD, queue.getHead());
+        hash.put(TAIL, queue.getTail());
+        return hash;
+    }
+
+    /**
+     * Hash fields of everything but {@code head} and {@code tail}.
+     */
+    public static Map<String, Object> toConfigHash(Queue queue) {
+        Map<String, Object> hash = new HashMap<>(16);
+        putIfNotNull(hash, ID, queue.getId());
+        putIfNotNull(hash, NAME, queue.getName());
+        hash.put(CAPACITY, queue.getCapacity());
+        hash.put(MAX_ACTIVE_USERS, queue.getMaxActiveUsers());
+        hash.put(AVAILABLE_SECOND_PER_USER, queue.getAvailableSecondPerUser());
+        hash.put(HOLD_TIME_FOR_ACTIVATE, queue.getHoldTimeForActivate());
+        putIfNotNull(hash, CALLBACK_URL, queue.getCallbackURL());
+        return hash;
+    }
+
+    /**
+     * Set the field named by a hash entry, unknown fields are ignored.
+     *
+     * @return the same queue, so it can be used as a reducer.
+     */
+    public static Queue readField(Queue queue, Map.Entry<Object, Object> field) {
+        Object value = field.getValue();
+        switch ((String) field.getKey()) {
+            case ID:
+                queue.setId(asString(value));
+                break;
+            case NAME:
+                queue.setName(asString(value));
+                break;
+            case CAPACITY:
+                queue.setCapacity(asInt(value));
+                break;
+            case HEAD:
+                queue.setHead(asInt(value));
+                break;
+            case TAIL:
+                queue.setTail(asInt(value));
+                break;
+            case MAX_ACTIVE_USERS:
+                queue.setMaxActiveUsers(asInt(value));
+                break;
+            case AVAILABLE_SECOND_PER_USER:
+                queue.setAvailableSecondPerUser(asInt(value));
+                break;
+            case HOLD_TIME_FOR_ACTIVATE:
+                queue.setHoldTimeForActivate(asInt(value));
+                break;
+            case CALLBACK_URL:
+                queue.setCallbackURL(asString(value));
+                break;
+            default:
+                break;
+        }
+        return queue;
+    }
+
+    public static Queue fromConfig(QueueConfigDto queueConfigDto) {
+        return Queue.builder()
+                .name(queueConfigDto.getName())
+                .capacity(queueConfigDto.getCapacity())
+                .maxActiveUsers(queueConfigDto.getMaxActiveUsers())
+                .availableSecondPerUser(queueConfigDto.getAvailableSecondPerUser())
+                .holdTimeForActivate(queueConfigDto.getHoldTimeForActivate())
+                .callbackURL(queueConfigDto.getCallbackURL())
+                .build();
+    }
+
+    public static QueueConfigDto toConfig(Queue queue) {
+        return QueueConfigDto.builder()
+                .name(queue.getName())
+                .capacity(queue.getCapacity())
+                .maxActiveUsers(queue.getMaxActiveUsers())
+                .availableSecondPerUser(queue.getAvailableSecondPerUser())
+                .holdTimeForActivate(queue.getHoldTimeForActivate())
+                .callbackURL(queue.getCallbackURL())
+                .build();
+    }
+}
@@ -1,8 +1,13 @@
 package io.openqueue.common.util;
 
-import java.util.UUID;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
+ * Random codes come from a secure random generator owned by the calling thread, read through a buffer so the
+ * generator is only entered once every few dozen codes and never shared between event loop threads.
+ *
  * @author chenjing
  */
 public class RandomCodeGenerator {
@@ -13,23 +18,147 @@ public class RandomCodeGenerator {
             'Z', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l',
             'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z'};
 
+    /**
+     * Characters needed for any unsigned 64 bit number, 62^11 > 2^64.
+     */
+    private static final int LONG_WIDTH = 11;
+
+    private static final int RANDOM_BUFFER_SIZE = 512;
+
+    /**
+     * Largest value that can take one more digit without overflowing 64 unsigned bits.
+     */
+    private static final long MAX_BEFORE_SHIFT = Long.divideUnsigned(-1L, digits.length);
+
+    private static final byte[] DIGIT_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(DIGIT_VALUES, (byte) -1);
+        for (int i = 0; i < digits.length; i++) {
+            DIGIT_VALUES[digits[i]] = (byte) i;
+        }
+    }
+
+    private static final ThreadLocal<RandomBuffer> RANDOM_BUFFER = ThreadLocal.withInitial(RandomBuffer::new);
+
+    /**
+     * 64 random bits, 11 characters.
+     */
     public static String getQueueId() {
-        return "q:" + getCode();
+        return "q:" + randomCode(1);
     }
 
+    /**
+     * 128 random bits, 22 characters.
+     */
     public static String getCode() {
-        long hash = UUID.randomUUID().hashCode();
-        long num = hash < 0 ? ((long) 2 * 0x7fffffff) + hash + 2 : hash;
+        return randomCode(2);
+    }
+
+    /**
+     * Read a code made by {@link #getCode()} back into its 128 bits.
+     *
+     * @return the two halves, or null if {@code code} is not such a code.
+     */
+    public static long[] decodeCode(String code) {
+        if (code.length() != 2 * LONG_WIDTH) {
+            return null;
+        }
+        long[] halves = new long[2];
+        for (int i = 0; i < halves.length; i++) {
+            long value = 0;
+            for (int charPos = i * LONG_WIDTH; charPos < (i + 1) * LONG_WIDTH; charPos++) {
+                char c = code.charAt(charPos);
+                int digit = c < DIGIT_VALUES.length ? DIGIT_VALUES[c] : -1;
+                if (digit < 0 || Long.compareUnsigned(value, MAX_BEFORE_SHIFT) > 0) {
+                    return null;
+                }
+                long shifted = value * digits.length;
+                value = shifted + digit;
+                if (Long.compareUnsigned(value, shifted) < 0) {
+                    return null;
+                }
+            }
+            halves[i] = value;
+        }
+        return halves;
+    }
+
+    /**
+     * The code {@link #decodeCode} read {@code high} and {@code low} from.
+     */
+    public static String encodeCode(long high, long low) {
+        char[] buf = new char[2 * LONG_WIDTH];
+        encodeFixedWidth(buf, 0, high, LONG_WIDTH);
+        encodeFixedWidth(buf, LONG_WIDTH, low, LONG_WIDTH);
+        return new String(buf);
+    }
 
+    private static String randomCode(int longs) {
+        RandomBuffer randomBuffer = RANDOM_BUFFER.get();
+        char[] buf = new char[longs * LONG_WIDTH];
+        for (int i = 0; i < longs; i++) {
+            encodeFixedWidth(buf, i * LONG_WIDTH, randomBuffer.nextLong(), LONG_WIDTH);
+        }
+        return new String(buf);
+    }
+
+    /**
+     * Append {@code num}, read as unsigned, with the code alphabet and left padded to {@code width} characters.
+     */
+    public static void appendFixedWidth(StringBuilder sb, long num, int width) {
+        int start = sb.length();
+        sb.setLength(start + width);
+        int base = digits.length;
+        for (int charPos = start + width - 1; charPos >= start; charPos--) {
+            sb.setCharAt(charPos, digits[(int) Long.remainderUnsigned(num, base)]);
+            num = Long.divideUnsigned(num, base);
+        }
+    }
+
+    private static void encodeFixedWidth(char[] buf, int offset, long num, int width) {
         int base = digits.length;
-        char[] buf = new char[32];
-        int charPos = 32;
-        while ((num / base) > 0) {
-            buf[--charPos] = digits[(int) (num % base)];
-            num /= base;
-        }
-        buf[--charPos] = digits[(int) (num % base)];
-        return new String(buf, charPos, (32 - charPos));
+        int charPos = offset + width - 1;
+        // Only the first division needs to be unsigned, the quotient fits in a positive long.
+        long quotient = Long.divideUnsigned(num, base);
+        buf[charPos--] = digits[(int) (num - quotient * base)];
+        num = quotient;
+        for (; charPos >= offset; charPos--) {
+            quotient = num / base;
+            buf[charPos] = digits[(int) (num - quotient * base)];
+            num = quotient;
+        }
+    }
+
+    private static final class RandomBuffer {
+
+        private final SecureRandom random = newSecureRandom();
+        private final byte[] bytes = new byte[RANDOM_BUFFER_SIZE];
+        private int position = bytes.length;
+
+        long nextLong() {
+            if (position + Long.BYTES > bytes.length) {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (bytes[position++] & 0xff);
+            }
+            return value;
+        }
+
+        /**
+         * A DRBG keeps its state per instance, unlike the default NativePRNG which funnels all instances through
+         * one lock.
+         */
+        private static SecureRandom newSecureRandom() {
+            try {
+                return SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
     }
 
 }
@@ -0,0 +1,129 @@
+package io.openqueue.common.util;
+
+import io.openqueue.model.Ticket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.openqueue.common.util.HashFields.*;
+
+/**
+ * Maps a {@link Ticket} to its Redis hash fields and back without going through intermediate JSON objects.
+ * <p>
+ * Tickets can also be packed into a single string value, the ticket id being the key:
+ * <pre>
+ * offset  size  field
+ *      0     1  version
+ *      1     1  flags, bit 0 is occupied
+ *      2     4  countOfUsage, unsigned
+ *      6     8  issueTime
+ *     14     8  activateTime
+ *     22     n  authCode, UTF-8 up to the end of the value
+ * </pre>
+ * All numbers are big endian so they can be updated in place with BITFIELD and SETBIT.
+ *
+ * @author chenjing
+ */
+public final class TicketCodec {
+
+    public static final String ID = "id";
+    public static final String AUTH_CODE = "authCode";
+    public static final String ISSUE_TIME = "issueTime";
+    public static final String ACTIVATE_TIME = "activateTime";
+    public static final String OCCUPIED = "occupied";
+    public static final String COUNT_OF_USAGE = "countOfUsage";
+
+    public static final byte BINARY_VERSION = 1;
+    public static final int BINARY_HEADER_LENGTH = 22;
+
+    /**
+     * Bit offsets of the fields in the binary format, as used by SETBIT and BITFIELD.
+     */
+    public static final long OCCUPIED_BIT = 15;
+    public static final long COUNT_OF_USAGE_BIT = 16;
+    public static final long ACTIVATE_TIME_BIT = 112;
+
+    private static final byte OCCUPIED_FLAG = 0x01;
+
+    private TicketCodec() {
+    }
+
+    public static ByteBuffer toBinary(Ticket ticket) {
+        byte[] authCode = ticket.getAuthCode() == null ? new byte[0] : ticket.getAuthCode().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer value = ByteBuffer.allocate(BINARY_HEADER_LENGTH + authCode.length)
+                .put(BINARY_VERSION)
+                .put(ticket.isOccupied() ? OCCUPIED_FLAG : 0)
+                .putInt(ticket.getCountOfUsage())
+                .putLong(ticket.getIssueTime())
+                .putLong(ticket.getActivateTime())
+                .put(authCode);
+        value.flip();
+        return value;
+    }
+
+    /**
+     * @return the ticket, or null if the value is not a ticket of a known version. Values left behind by a partial
+     * update of a deleted ticket are zero filled, so they have no version either.
+     */
+    public static Ticket fromBinary(String ticketId, ByteBuffer value) {
+        if (value.remaining() < BINARY_HEADER_LENGTH || value.get(value.position()) != BINARY_VERSION) {
+            return null;
+        }
+        ByteBuffer buffer = value.duplicate();
+        buffer.get();
+        byte flags = buffer.get();
+        Ticket ticket = new Ticket();
+        ticket.setId(ticketId);
+        ticket.setOccupied((flags & OCCUPIED_FLAG) != 0);
+        ticket.setCountOfUsage(buffer.getInt());
+        ticket.setIssueTime(buffer.getLong());
+        ticket.setActivateTime(buffer.getLong());
+        ticket.setAuthCode(StandardCharsets.UTF_8.decode(buffer).toString());
+        return ticket;
+    }
+
+    public static Map<String, Object> toHash(Ticket ticket) {
+        Map<String, Object> hash = new HashMap<>(8);
+        putIfNotNull(hash, ID, ticket.getId());
+        putIfNotNull(hash, AUTH_CODE, ticket.getAuthCode());
+        hash.put(ISSUE_TIME, ticket.getIssueTime());
+        hash.put(ACTIVATE_TIME, ticket.getActivateTime());
+        hash.put(OCCUPIED, ticket.isOccupied());
+        hash.put(COUNT_OF_USAGE, ticket.getCountOfUsage());
+        return hash;
+    }
+
+    /**
+     * Set the field named by a hash entry, unknown fields are ignored.
+     *
+     * @return the same ticket, so it can be used as a reducer.
+     */
+    public static Ticket readField(Ticket ticket, Map.Entry<Object, Object> field) {
+        Object value = field.getValue();
+        switch ((String) field.getKey()) {
+            case ID:
+                ticket.setId(asString(value));
+                break;
+            case AUTH_CODE:
+                ticket.setAuthCode(asString(value));
+                break;
+            case ISSUE_TIME:
+                ticket.setIssueTime(asLong(value));
+                break;
+            case ACTIVATE_TIME:
+                ticket.setActivateTime(asLong(value));
+                break;
+            case OCCUPIED:
+                ticket.setOccupied(asBoolean(value));
+                break;
+            case COUNT_OF_USAGE:
+                ticket.setCountOfUsage(asInt(value));
+                break;
+            default:
+                break;
+        }
+        return ticket;
+    }
+}
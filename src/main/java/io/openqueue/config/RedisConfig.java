@@ -1,15 +1,26 @@
 package io.openqueue.config;
 
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
+import io.openqueue.common.constant.StorageEngine;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientConfigurationBuilderCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 import java.io.Serializable;
+import java.time.Duration;
+import java.util.List;
 
 /**
  * @author chenjing
@@ -29,4 +40,69 @@ public class RedisConfig {
 
         return new ReactiveRedisTemplate<>(redisConnectionFactory, serializationContext);
     }
+
+    /**
+     * Shares one pub/sub connection among all channel subscriptions of this node. It connects right away, so it is
+     * only made when Redis is the storage engine.
+     */
+    @Bean
+    @ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.REDIS, matchIfMissing = true)
+    public ReactiveRedisMessageListenerContainer reactiveRedisMessageListenerContainer(LettuceConnectionFactory redisConnectionFactory) {
+        return new ReactiveRedisMessageListenerContainer(redisConnectionFactory);
+    }
+
+    /**
+     * On Redis Cluster, refreshes the slot map every {@code openqueue.storage.redis.topology-refresh} seconds and
+     * on redirects and reconnects, so commands follow slots moved by resharding or failover.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "spring.redis.cluster.nodes")
+    public LettuceClientConfigurationBuilderCustomizer clusterTopologyRefresh(
+            @Value("${openqueue.storage.redis.topology-refresh:30}") int refreshSeconds) {
+        ClusterTopologyRefreshOptions refreshOptions = ClusterTopologyRefreshOptions.builder()
+                .enablePeriodicRefresh(Duration.ofSeconds(refreshSeconds))
+                .enableAllAdaptiveRefreshTriggers()
+                .build();
+        return builder -> builder.clientOptions(ClusterClientOptions.builder()
+                .topologyRefreshOptions(refreshOptions)
+                .build());
+    }
+
+    /**
+     * Scripts are executed by SHA1 and only sent in full when the server does not know them yet.
+     */
+    @Bean
+    public RedisScript<Long> issueTicketScript() {
+        return RedisScript.of(new ClassPathResource("scripts/issue_ticket.lua"), Long.class);
+    }
+
+    @Bean
+    public RedisScript<Long> reservePositionsScript() {
+        return RedisScript.of(new ClassPathResource("scripts/reserve_positions.lua"), Long.class);
+    }
+
+    @Bean
+    public RedisScript<List> pushQueueScript() {
+        return RedisScript.of(new ClassPathResource("scripts/push_queue.lua"), List.class);
+    }
+
+    @Bean
+    public RedisScript<List> authorizeTicketsScript() {
+        return RedisScript.of(new ClassPathResource("scripts/authorize_tickets.lua"), List.class);
+    }
+
+    @Bean
+    public RedisScript<Long> addUsageScript() {
+        return RedisScript.of(new ClassPathResource("scripts/add_usage.lua"), Long.class);
+    }
+
+    @Bean
+    public RedisScript<Long> updateTicketScript() {
+        return RedisScript.of(new ClassPathResource("scripts/update_ticket.lua"), Long.class);
+    }
+
+    @Bean
+    public RedisScript<Long> releaseLockScript() {
+        return RedisScript.of(new ClassPathResource("scripts/release_lock.lua"), Long.class);
+    }
 }
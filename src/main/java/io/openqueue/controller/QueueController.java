@@ -3,13 +3,18 @@ package io.openqueue.controller;
 import com.alibaba.fastjson.JSONObject;
 import io.openqueue.common.api.ResponseBody;
 import io.openqueue.dto.QueueConfigDto;
+import io.openqueue.dto.QueueStatusDto;
 import io.openqueue.service.QueueService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 /**
@@ -29,8 +34,15 @@ public class QueueController {
     }
 
     @GetMapping(value = "/{queueId}/status")
-    public Mono<ResponseEntity<ResponseBody>> getQueueStatus(@PathVariable("queueId") String queueId){
-        return queueService.getQueueStatus(queueId);
+    public Mono<ResponseEntity<ResponseBody>> getQueueStatus(@PathVariable("queueId") String queueId,
+                                                             @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch){
+        return queueService.getQueueStatus(queueId, ifNoneMatch);
+    }
+
+    @GetMapping(value = "/{queueId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<QueueStatusDto>> streamQueueStatus(@PathVariable("queueId") String queueId,
+                                                                   @RequestParam(required = false) Long position){
+        return queueService.streamQueueStatus(queueId, position);
     }
 
     @GetMapping(value = "/{queueId}/config")
@@ -6,15 +6,22 @@ import io.openqueue.common.constant.TicketState;
 import io.openqueue.common.exception.TicketServiceException;
 import io.openqueue.common.util.AuthUtil;
 import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.dto.TicketAuthRequestDto;
+import io.openqueue.dto.TicketDetailDto;
 import io.openqueue.dto.TicketStateDto;
 import io.openqueue.service.TicketService;
+import io.openqueue.service.TicketSigner;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 /**
  * @author chenjing
  */
@@ -26,11 +33,19 @@ public class TicketController {
     @Autowired
     private TicketService ticketService;
 
+    @Autowired
+    private TicketSigner ticketSigner;
+
     @PostMapping(value = "/apply")
     public Mono<ResponseEntity<ResponseBody>> applyTicket(@RequestParam String qid){
         return ticketService.applyTicket("q:" + qid);
     }
 
+    @PostMapping(value = "/apply/batch", produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
+    public Flux<TicketDetailDto> applyTickets(@RequestParam String qid, @RequestParam int count){
+        return ticketService.applyTickets("q:" + qid, count);
+    }
+
     @GetMapping(value = "/stat")
     public Mono<ResponseEntity<ResponseBody>> getTicketUsageStat(@RequestParam String ticket){
         TicketAuthDto ticketAuthDto = this.preprocess(ticket);
@@ -44,6 +59,11 @@ public class TicketController {
         return ticketService.getTicketAuthorization(ticketAuthDto, "q:" + qid);
     }
 
+    @PostMapping(value = "/authorization/batch")
+    public Mono<ResponseEntity<ResponseBody>> getTicketAuthorizations(@RequestBody List<TicketAuthRequestDto> requests){
+        return ticketService.getTicketAuthorizations(requests);
+    }
+
     @PutMapping(value = "/state")
     public Mono<ResponseEntity<ResponseBody>> updateTicketState(@RequestBody TicketStateDto ticketStateDto){
         TicketAuthDto ticketAuthDto = this.preprocess(ticketStateDto.getTicketToken());
@@ -61,24 +81,17 @@ public class TicketController {
     }
 
     private TicketAuthDto preprocess(String tokenBase64) {
-        String token = AuthUtil.decodeUrlBase64(tokenBase64);
+        TicketAuthDto ticketAuthDto = AuthUtil.parseTicketToken(tokenBase64);
 
-        if (!AuthUtil.validateTicketToken(token)) {
+        if (ticketAuthDto == null) {
             throw new TicketServiceException(ResultCode.ILLEGAL_TICKET_AUTH_FORMAT_EXCEPTION, HttpStatus.BAD_REQUEST);
         }
 
-        String[] ticketParts = token.split(":");
-        String queueId = "q:" + ticketParts[2];
-        int position = Integer.parseInt(ticketParts[3]);
-        String ticketId = token.substring(0, token.lastIndexOf(":"));
-        String authCode = ticketParts[4];
-
-        return TicketAuthDto.builder()
-                .token(token)
-                .ticketId(ticketId)
-                .queueId(queueId)
-                .position(position)
-                .authCode(authCode)
-                .build();
+        // Forged tokens are turned away before anything is read from Redis.
+        if (ticketSigner.isEnabled() && !ticketSigner.verify(ticketAuthDto.getTicketId(), ticketAuthDto.getAuthCode())) {
+            throw new TicketServiceException(ResultCode.MISMATCH_TICKET_AUTH_CODE_EXCEPTION, HttpStatus.UNAUTHORIZED);
+        }
+
+        return ticketAuthDto;
     }
 }
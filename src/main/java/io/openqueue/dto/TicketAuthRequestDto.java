@@ -0,0 +1,20 @@
+package io.openqueue.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One entry of a batch authorization, the same pair the single authorization takes as parameters.
+ *
+ * @author chenjing
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class TicketAuthRequestDto {
+    private String ticket;
+    private String qid;
+}
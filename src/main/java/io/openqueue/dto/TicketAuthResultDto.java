@@ -0,0 +1,21 @@
+package io.openqueue.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The outcome for one entry of a batch authorization, with the code and message the single authorization would
+ * have answered.
+ *
+ * @author chenjing
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class TicketAuthResultDto {
+    private int code;
+    private String message;
+}
@@ -0,0 +1,25 @@
+package io.openqueue.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A block of consecutive queue positions reserved by one service node.
+ *
+ * @author chenjing
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PositionLease {
+    private long first;
+    private long last;
+    private long expirationTime;
+
+    public boolean contains(long position) {
+        return position >= first && position <= last;
+    }
+}
@@ -0,0 +1,30 @@
+package io.openqueue.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of moving a queue forward once.
+ *
+ * @author chenjing
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PushResult {
+    private long admitted;
+    private long head;
+    private long tail;
+    private long freeSlots;
+    /**
+     * Earliest expiration left in the ready and active sets, -1 if both are empty.
+     */
+    private long nextExpirationTime;
+    /**
+     * Whether the queue had nothing left to do and was taken off the due queues set.
+     */
+    private boolean hibernated;
+}
@@ -0,0 +1,36 @@
+package io.openqueue.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * What one sweep of the due queues did.
+ *
+ * @author chenjing
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SweepReport {
+    private long durationMillis;
+    /**
+     * Queues pushed forward.
+     */
+    private long processed;
+    /**
+     * Queues left alone because another push held their lock.
+     */
+    private long lockSkipped;
+    /**
+     * Due queues left for the next sweep because the deadline passed.
+     */
+    private long deferred;
+    private long admitted;
+    /**
+     * Sweeps skipped since the previous report because this one was still running.
+     */
+    private long overrun;
+}
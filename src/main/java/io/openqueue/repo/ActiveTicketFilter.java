@@ -0,0 +1,254 @@
+package io.openqueue.repo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.ReactiveSubscription;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import static io.openqueue.common.constant.Keys.ACTIVE_CHANNEL_PREFIX;
+
+/**
+ * Positions of the ready and active tickets of recently checked queues, so tickets that are surely not active are
+ * turned away without asking Redis.
+ * <p>
+ * Admissions to the ready set are published by push_queue.lua, activations and revocations by the node making them,
+ * and every node listens to all of them on one pattern subscription. A ticket only becomes active out of the ready
+ * set, so a node that has not heard of an activation yet still knows the position as ready and lets it through. A
+ * queue is loaded from its active set only once that subscription is known to be live, so any change racing the load
+ * leaves at worst a position that is not active any more, and those are still checked in Redis. Until then, and
+ * whenever the subscription drops, every ticket is let through.
+ * <p>
+ * Expired positions are dropped every {@code openqueue.active-filter.purge-interval} milliseconds, so a queue's
+ * filter only holds the positions that are still ready or active.
+ *
+ * @author chenjing
+ */
+@Component
+@Slf4j
+public class ActiveTicketFilter {
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
+
+    @Autowired
+    private RedisKeys keys;
+
+    @Autowired(required = false)
+    private ReactiveRedisMessageListenerContainer reactiveRedisMessageListenerContainer;
+
+    @Value("${openqueue.active-filter.enabled:false}")
+    private boolean enabled;
+
+    @Value("${openqueue.active-filter.max-size:10000}")
+    private long maxSize;
+
+    @Value("${openqueue.active-filter.expire-after-access:600}")
+    private int expireAfterAccess;
+
+    private final String probeChannel = ACTIVE_CHANNEL_PREFIX + "probe:" + UUID.randomUUID();
+
+    private volatile boolean listening;
+
+    private Cache<String, QueueFilter> filters;
+
+    private Disposable subscription;
+
+    @PostConstruct
+    public void init() {
+        if (enabled && reactiveRedisMessageListenerContainer == null) {
+            log.info("Active ticket filter is only used with Redis as the storage engine");
+            enabled = false;
+        }
+        if (!enabled) {
+            return;
+        }
+        filters = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(Duration.ofSeconds(expireAfterAccess))
+                .build();
+
+        // Changes published while not subscribed are lost, so start over on every (re)subscription, and trust the
+        // subscription once our own probe comes back through it.
+        subscription = Mono.fromRunnable(this::reset)
+                .thenMany(reactiveRedisMessageListenerContainer.receive(PatternTopic.of(ACTIVE_CHANNEL_PREFIX + "*")))
+                .doOnSubscribe(s -> Flux.interval(Duration.ofMillis(200))
+                        .takeWhile(tick -> !listening)
+                        .concatMap(tick -> reactiveRedisTemplate.convertAndSend(probeChannel, ""))
+                        .subscribe(null, e -> log.warn("Failed to probe active ticket changes", e)))
+                .retryBackoff(Long.MAX_VALUE, Duration.ofSeconds(1), Duration.ofSeconds(30))
+                .subscribe(this::onMessage, e -> log.error("Stopped listening to active ticket changes", e));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The channel push_queue.lua publishes the queue's admitted positions on, empty while the filter is off.
+     */
+    public String admissionChannel(String queueId) {
+        return enabled ? ACTIVE_CHANNEL_PREFIX + queueId : "";
+    }
+
+    /**
+     * @return false only if the ticket at {@code position} is surely neither ready nor active.
+     */
+    public boolean mightBeActive(String queueId, int position) {
+        if (!enabled || !listening) {
+            return true;
+        }
+        QueueFilter filter = filters.get(queueId, this::load);
+        if (!filter.loaded) {
+            return true;
+        }
+        return filter.expirationTime(position) > Instant.now().getEpochSecond();
+    }
+
+    /**
+     * Drop the positions that expired from every queue's filter.
+     */
+    @Scheduled(fixedDelayString = "${openqueue.active-filter.purge-interval:10000}")
+    public void removeExpired() {
+        if (!enabled) {
+            return;
+        }
+        long currentTime = Instant.now().getEpochSecond();
+        for (QueueFilter filter : filters.asMap().values()) {
+            filter.removeExpired(currentTime);
+        }
+    }
+
+    /**
+     * Tell all nodes that the ticket at {@code position} was added to the active set.
+     */
+    public Mono<Void> activated(String queueId, int position, long expirationTime) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.convertAndSend(ACTIVE_CHANNEL_PREFIX + queueId, "+" + position + ":" + expirationTime)
+                .then();
+    }
+
+    /**
+     * Tell all nodes that the ticket at {@code position} was removed from the active set.
+     */
+    public Mono<Void> revoked(String queueId, int position) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return reactiveRedisTemplate.convertAndSend(ACTIVE_CHANNEL_PREFIX + queueId, "-" + position).then();
+    }
+
+    private void reset() {
+        listening = false;
+        filters.invalidateAll();
+    }
+
+    private void onMessage(ReactiveSubscription.Message<String, String> message) {
+        String channel = message.getChannel();
+        if (channel.equals(probeChannel)) {
+            listening = true;
+            return;
+        }
+        QueueFilter filter = filters.getIfPresent(channel.substring(ACTIVE_CHANNEL_PREFIX.length()));
+        if (filter == null) {
+            return;
+        }
+        String change = message.getMessage();
+        try {
+            if (change.charAt(0) == '+') {
+                int separator = change.indexOf(':');
+                filter.merge(Integer.parseInt(change.substring(1, separator)),
+                        Long.parseLong(change.substring(separator + 1)));
+            } else if (change.charAt(0) == 'r') {
+                // r<expirationTime>:<position>,<position>,... admitted to the ready set by a push.
+                int separator = change.indexOf(':');
+                long expirationTime = Long.parseLong(change.substring(1, separator));
+                for (String position : change.substring(separator + 1).split(",")) {
+                    filter.merge(Integer.parseInt(position), expirationTime);
+                }
+            } else {
+                filter.remove(Integer.parseInt(change.substring(1)));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Skipped malformed active ticket change " + change + " on " + channel);
+        }
+    }
+
+    private QueueFilter load(String queueId) {
+        QueueFilter filter = new QueueFilter();
+        Flux.merge(
+                // Tokens of the form t:q:<queue>:<position>:<authCode>.
+                reactiveRedisTemplate.opsForZSet().rangeWithScores(keys.activeSet(queueId), Range.closed(0L, -1L))
+                        .doOnNext(tuple -> {
+                            String token = (String) tuple.getValue();
+                            int positionEnd = token.lastIndexOf(':');
+                            load(filter, token.substring(token.lastIndexOf(':', positionEnd - 1) + 1, positionEnd),
+                                    tuple.getScore());
+                        }),
+                // Ticket ids of the form t:q:<queue>:<position>.
+                reactiveRedisTemplate.opsForZSet().rangeWithScores(keys.readySet(queueId), Range.closed(0L, -1L))
+                        .doOnNext(tuple -> {
+                            String ticketId = (String) tuple.getValue();
+                            load(filter, ticketId.substring(ticketId.lastIndexOf(':') + 1), tuple.getScore());
+                        }))
+                .subscribe(null, e -> {
+                    log.warn("Failed to load active tickets of " + queueId, e);
+                    filters.asMap().remove(queueId, filter);
+                }, () -> filter.loaded = true);
+        return filter;
+    }
+
+    private static void load(QueueFilter filter, String position, double expirationTime) {
+        filter.merge(Integer.parseInt(position), (long) expirationTime);
+    }
+
+    private static final class QueueFilter {
+        /**
+         * Ready and active positions, to the time they stop being so.
+         */
+        private final ExpiringPositions positions = new ExpiringPositions();
+        private volatile boolean loaded;
+
+        synchronized long expirationTime(int position) {
+            return positions.get(position);
+        }
+
+        synchronized void merge(int position, long expirationTime) {
+            positions.merge(position, expirationTime);
+        }
+
+        synchronized void remove(int position) {
+            positions.remove(position);
+        }
+
+        synchronized void removeExpired(long currentTime) {
+            positions.removeExpired(currentTime);
+        }
+    }
+}
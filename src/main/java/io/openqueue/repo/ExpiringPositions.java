@@ -0,0 +1,114 @@
+package io.openqueue.repo;
+
+import java.util.Arrays;
+
+/**
+ * Ticket positions to the time they expire, kept in two primitive arrays with open addressing. Removed positions
+ * keep their slot with no expiration time until the next rebuild, which {@link #removeExpired(long)} forces.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author chenjing
+ */
+final class ExpiringPositions {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int FREE = -1;
+
+    private int[] positions;
+
+    private long[] expirationTimes;
+
+    private int used;
+
+    private int size;
+
+    ExpiringPositions() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return the time the position expires, or 0 if it is not there.
+     */
+    long get(int position) {
+        int slot = slotOf(position);
+        return positions[slot] == position ? expirationTimes[slot] : 0;
+    }
+
+    /**
+     * Add the position, or keep the later of both expiration times if it is there already.
+     */
+    void merge(int position, long expirationTime) {
+        int slot = slotOf(position);
+        if (positions[slot] != position) {
+            positions[slot] = position;
+            used++;
+        } else if (expirationTimes[slot] >= expirationTime) {
+            return;
+        }
+        if (expirationTimes[slot] == 0) {
+            size++;
+        }
+        expirationTimes[slot] = expirationTime;
+        if (used * 2 > positions.length) {
+            rebuild(0);
+        }
+    }
+
+    void remove(int position) {
+        int slot = slotOf(position);
+        if (positions[slot] == position && expirationTimes[slot] != 0) {
+            expirationTimes[slot] = 0;
+            size--;
+        }
+    }
+
+    /**
+     * Drop the positions expired by {@code currentTime}, and shrink the arrays to what is left.
+     */
+    void removeExpired(long currentTime) {
+        rebuild(currentTime);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rebuild(long currentTime) {
+        int[] oldPositions = positions;
+        long[] oldExpirationTimes = expirationTimes;
+        int live = 0;
+        for (long expirationTime : oldExpirationTimes) {
+            if (expirationTime > currentTime) {
+                live++;
+            }
+        }
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(live * 4 - 1) << 1));
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldExpirationTimes[i] > currentTime) {
+                int slot = slotOf(oldPositions[i]);
+                positions[slot] = oldPositions[i];
+                expirationTimes[slot] = oldExpirationTimes[i];
+            }
+        }
+        used = live;
+        size = live;
+    }
+
+    private void allocate(int capacity) {
+        positions = new int[capacity];
+        Arrays.fill(positions, FREE);
+        expirationTimes = new long[capacity];
+    }
+
+    private int slotOf(int position) {
+        int mask = positions.length - 1;
+        int hash = position * 0x9E3779B9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (positions[slot] != position && positions[slot] != FREE) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,44 @@
+package io.openqueue.repo;
+
+import io.openqueue.common.constant.StorageEngine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.Serializable;
+
+import static io.openqueue.common.constant.Keys.NODE_SET;
+
+/**
+ * Live service nodes, scored by their last heartbeat.
+ *
+ * @author chenjing
+ */
+@Repository
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.REDIS, matchIfMissing = true)
+public class NodeRepo {
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
+
+    /**
+     * Record a heartbeat of {@code nodeId} and forget nodes silent for longer than {@code nodeTtl}.
+     *
+     * @return all live nodes, including this one.
+     */
+    public Flux<String> heartbeat(String nodeId, long currentTimeMillis, long nodeTtl) {
+        return reactiveRedisTemplate.opsForZSet().add(NODE_SET, nodeId, currentTimeMillis)
+                .then(reactiveRedisTemplate.opsForZSet()
+                        .removeRangeByScore(NODE_SET, Range.closed(0D, (double) (currentTimeMillis - nodeTtl))))
+                .thenMany(reactiveRedisTemplate.opsForZSet().range(NODE_SET, Range.closed(0L, -1L)))
+                .cast(String.class);
+    }
+
+    public Mono<Long> remove(String nodeId) {
+        return reactiveRedisTemplate.opsForZSet().remove(NODE_SET, nodeId);
+    }
+}
@@ -0,0 +1,94 @@
+package io.openqueue.repo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.openqueue.common.constant.StorageEngine;
+import io.openqueue.model.Queue;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.ReactiveSubscription;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Serializable;
+import java.time.Duration;
+
+import static io.openqueue.common.constant.Keys.QUEUE_CONFIG_CHANNEL;
+
+/**
+ * Bounded in-process cache of queue configs.
+ * <p>
+ * Only the config is cached, {@code head} and {@code tail} of a cached queue are always 0 and must be
+ * read from Redis. Config changes are broadcast over a pub/sub channel so every node drops its copy.
+ *
+ * @author chenjing
+ */
+@Component
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.REDIS, matchIfMissing = true)
+@Slf4j
+public class QueueConfigCache {
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
+
+    @Autowired
+    private ReactiveRedisMessageListenerContainer reactiveRedisMessageListenerContainer;
+
+    @Value("${openqueue.queue-cache.max-size:10000}")
+    private long maxSize;
+
+    @Value("${openqueue.queue-cache.expire-after-write:60}")
+    private int expireAfterWrite;
+
+    private Cache<String, Queue> cache;
+
+    private Disposable invalidationSubscription;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(expireAfterWrite))
+                .build();
+
+        // Invalidations published while not subscribed are lost, so start over on every (re)subscription.
+        invalidationSubscription = Mono.fromRunnable(cache::invalidateAll)
+                .thenMany(reactiveRedisMessageListenerContainer.receive(ChannelTopic.of(QUEUE_CONFIG_CHANNEL)))
+                .map(ReactiveSubscription.Message::getMessage)
+                .retryBackoff(Long.MAX_VALUE, Duration.ofSeconds(1), Duration.ofSeconds(30))
+                .subscribe(cache::invalidate, e -> log.error("Stopped listening to queue config changes", e));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        invalidationSubscription.dispose();
+    }
+
+    public Queue get(String queueId) {
+        return cache.getIfPresent(queueId);
+    }
+
+    public void put(Queue queue) {
+        cache.put(queue.getId(), queue.toBuilder().head(0).tail(0).build());
+    }
+
+    public void evict(String queueId) {
+        cache.invalidate(queueId);
+    }
+
+    /**
+     * Drop the queue's config here and on every other node.
+     */
+    public Mono<Void> invalidate(String queueId) {
+        cache.invalidate(queueId);
+        return reactiveRedisTemplate.convertAndSend(QUEUE_CONFIG_CHANNEL, queueId).then();
+    }
+}
@@ -1,72 +1,113 @@
 package io.openqueue.repo;
 
-import io.openqueue.common.util.TypeConverter;
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.PushResult;
 import io.openqueue.model.Queue;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.ReactiveRedisTemplate;
-import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.io.Serializable;
-import java.time.Duration;
-import java.util.HashMap;
-
-import static io.openqueue.common.constant.Keys.*;
+import java.util.Collection;
 
 /**
+ * Storage of queues: their config, head and tail, the leases on their positions and when they are next due to be
+ * pushed. Provided by {@link RedisQueueRepo} or {@link io.openqueue.repo.memory.MemoryQueueRepo}, see
+ * {@link io.openqueue.common.constant.StorageEngine}.
+ *
  * @author chenjing
  */
-@Repository
-public class QueueRepo {
-
-    @Autowired
-    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
-
-    public Mono<Queue> createOrUpdate(Queue queue) {
-        return reactiveRedisTemplate.opsForHash().putAll(queue.getId(), TypeConverter.pojo2Map(queue)).thenReturn(queue);
-    }
-
-    public Mono<Void> addToSet(String queueId) {
-        return reactiveRedisTemplate.opsForSet().add(ALL_QUEUES_SET, queueId).then();
-    }
-
-    public Mono<Queue> findById(String queueId) {
-        return reactiveRedisTemplate.opsForHash().entries(queueId)
-                .reduce(new HashMap<>(), (map, entry) -> {
-                    map.put(entry.getKey(), entry.getValue());
-                    return map;
-                })
-                .flatMap(map -> {
-                    if (map.isEmpty()) {
-                        return Mono.empty();
-                    } else {
-                        Queue queue = TypeConverter.map2Pojo(map, Queue.class);
-                        return Mono.just(queue);
-                    }
-                });
-    }
-
-    public Flux<String> findAllId() {
-        return reactiveRedisTemplate.opsForSet().members(ALL_QUEUES_SET).cast(String.class);
-    }
-
-    public Mono<Boolean> getQueueLock(String queueId, int timeout) {
-        return reactiveRedisTemplate.opsForValue().setIfAbsent(LOCK_PREFIX + queueId, "Locked", Duration.ofSeconds(timeout));
-    }
-
-    public Mono<Long> incAndGetTail(String queueId) {
-        return reactiveRedisTemplate.opsForHash().increment(queueId, "tail", 1);
-    }
-
-    public Mono<Long> incHead(String queueId, int increment) {
-        return reactiveRedisTemplate.opsForHash().increment(queueId, "head", increment);
-    }
-
-    public Mono<Boolean> close(String queueId) {
-        return reactiveRedisTemplate.delete(queueId)
-                .concatWith(reactiveRedisTemplate.opsForSet().remove(ALL_QUEUES_SET, queueId))
-                .reduce(0L, Long::sum)
-                .flatMap(count -> Mono.just(count == 2));
-    }
+public interface QueueRepo {
+
+    Mono<Queue> createOrUpdate(Queue queue);
+
+    /**
+     * Overwrite the config of a queue, leaving its {@code head} and {@code tail} untouched.
+     */
+    Mono<Queue> updateConfig(Queue queue);
+
+    /**
+     * @return whether the id was added, false if it is already taken.
+     */
+    Mono<Boolean> addToSet(String queueId);
+
+    /**
+     * Find a queue with up to date {@code head} and {@code tail}.
+     */
+    Mono<Queue> findById(String queueId);
+
+    /**
+     * Find the config of a queue, possibly from a cache. {@code head} and {@code tail} of the result are not
+     * meaningful.
+     */
+    Mono<Queue> findConfigById(String queueId);
+
+    Flux<String> findAllId();
+
+    /**
+     * @return how many partitions the due queues index is split into. Each partition is swept by one node.
+     */
+    int duePartitionCount();
+
+    int duePartitionOf(String queueId);
+
+    /**
+     * @return up to {@code limit} queues of the partition due by {@code currentTimeMillis}, most overdue first.
+     */
+    Flux<String> findDueIds(long currentTimeMillis, int partition, int limit);
+
+    /**
+     * @return all queues that are not hibernating, read a page at a time as they are consumed.
+     */
+    Flux<String> findScheduledIds();
+
+    /**
+     * @return the earliest expiration in the ready and active sets, or empty if both are empty.
+     */
+    Mono<Long> findNextExpiration(String queueId);
+
+    /**
+     * Set the time (epoch milliseconds) the queue is next due to be pushed.
+     */
+    Mono<Boolean> scheduleDue(String queueId, long dueTimeMillis);
+
+    /**
+     * Make the queues due at {@code dueTimeMillis}, except those already scheduled.
+     */
+    Mono<Long> scheduleDueIfAbsent(Collection<String> queueIds, long dueTimeMillis);
+
+    /**
+     * @param owner identifies this holder of the lock, it must be unique per acquisition.
+     */
+    Mono<Boolean> getQueueLock(String queueId, String owner, int timeout);
+
+    /**
+     * Release the lock if {@code owner} still holds it.
+     */
+    Mono<Boolean> releaseQueueLock(String queueId, String owner);
+
+    Mono<Long> incAndGetTail(String queueId);
+
+    /**
+     * Move the tail forward by {@code count} positions at once if the queue exists, and record them as a lease
+     * until {@code leaseExpirationTime} so the scheduler waits for their tickets to be written.
+     *
+     * @return the reserved positions, or empty if the queue does not exist.
+     */
+    Mono<PositionLease> reserveTail(String queueId, int count, long leaseExpirationTime);
+
+    Mono<Long> releaseLease(String queueId, PositionLease lease);
+
+    Mono<Long> removeExpiredLeases(String queueId, long currentTime);
+
+    /**
+     * Drop expired ready and active tickets and leases, then admit waiting tickets into the ready set and move the
+     * head past them, atomically. Up to {@code holeScanAllowance} positions without a ticket are skipped, unless a
+     * live lease covers them. A moved head is published to {@link QueueStatusFeed}.
+     *
+     * @return the outcome, or empty if the queue does not exist.
+     */
+    Mono<PushResult> push(String queueId, long currentTime, int holeScanAllowance);
+
+    Mono<Long> incHead(String queueId, int increment);
+
+    Mono<Boolean> close(String queueId);
 }
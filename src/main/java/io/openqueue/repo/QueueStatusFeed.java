@@ -0,0 +1,96 @@
+package io.openqueue.repo;
+
+import io.openqueue.dto.QueueStatusDto;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static io.openqueue.common.constant.Keys.QUEUE_STATUS_CHANNEL_PREFIX;
+
+/**
+ * Head and tail of a queue as published by its pushes. A node subscribes to a queue's channel once, while it has
+ * local listeners, and shares the messages among them. Without Redis, pushes hand their updates to
+ * {@link #publish} instead.
+ * <p>
+ * Only pushes that move the head publish, issuing a ticket does not. The tail is as of the last head move, so an
+ * update per ticket is not broadcast over the cluster.
+ *
+ * @author chenjing
+ */
+@Slf4j
+@Component
+public class QueueStatusFeed {
+
+    @Autowired(required = false)
+    private ReactiveRedisMessageListenerContainer reactiveRedisMessageListenerContainer;
+
+    private final Map<String, Flux<QueueStatusDto>> feeds = new ConcurrentHashMap<>();
+
+    private final Map<String, FluxSink<QueueStatusDto>> localSinks = new ConcurrentHashMap<>();
+
+    public Flux<QueueStatusDto> updates(String queueId) {
+        return Flux.defer(() -> feeds.computeIfAbsent(queueId, this::subscribe));
+    }
+
+    /**
+     * Hand an update to the local listeners of the queue, for pushes that are not published through Redis.
+     */
+    public void publish(String queueId, long head, long tail) {
+        FluxSink<QueueStatusDto> sink = localSinks.get(queueId);
+        if (sink != null) {
+            sink.next(QueueStatusDto.builder().head((int) head).tail((int) tail).build());
+        }
+    }
+
+    private Flux<QueueStatusDto> subscribe(String queueId) {
+        Flux<QueueStatusDto> updates;
+        if (reactiveRedisMessageListenerContainer != null) {
+            updates = reactiveRedisMessageListenerContainer.receive(ChannelTopic.of(QUEUE_STATUS_CHANNEL_PREFIX + queueId))
+                    .handle((message, sink) -> {
+                        QueueStatusDto status = parse(message.getMessage());
+                        if (status != null) {
+                            sink.next(status);
+                        }
+                    });
+        } else {
+            updates = Flux.create(sink -> {
+                localSinks.put(queueId, sink);
+                sink.onDispose(() -> localSinks.remove(queueId, sink));
+            });
+        }
+        AtomicReference<Flux<QueueStatusDto>> feed = new AtomicReference<>();
+        feed.set(updates
+                // A listener that took this feed before its entry went away reconnects it, so it still works. Only
+                // this feed's entry is removed, not one made for new listeners since.
+                .doFinally(signal -> feeds.remove(queueId, feed.get()))
+                .publish()
+                .refCount());
+        return feed.get();
+    }
+
+    /**
+     * Messages are {@code head:tail}, see push_queue.lua.
+     *
+     * @return null if the message is malformed, it is skipped instead of ending the feed.
+     */
+    private static QueueStatusDto parse(String message) {
+        int separator = message.indexOf(':');
+        try {
+            return QueueStatusDto.builder()
+                    .head(Integer.parseInt(message.substring(0, separator)))
+                    .tail(Integer.parseInt(message.substring(separator + 1)))
+                    .build();
+        } catch (RuntimeException e) {
+            log.warn("Skipped malformed queue status " + message);
+            return null;
+        }
+    }
+}
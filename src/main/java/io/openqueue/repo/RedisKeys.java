@@ -0,0 +1,121 @@
+package io.openqueue.repo;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import static io.openqueue.common.constant.Keys.*;
+
+/**
+ * Redis keys of queues and tickets. Ids, set members and the set keys handed to {@link TicketRepo} stay the same
+ * either way, only the Redis repositories go through here.
+ * <p>
+ * For Redis Cluster, {@code openqueue.storage.redis.key-shards} spreads queues over that many shards. Every key of a
+ * queue, its tickets included, starts with the hash tag of its shard, like {@code {5}q:abc}, and so do the shard's
+ * parts of the queue registry and of the due queues set. A queue and everything its scripts touch are then in one
+ * slot. With 0, the default, keys are the ids themselves and the registry is one set.
+ * <p>
+ * The due queues index is split into partitions, so each node reads only the partitions it sweeps. With shards
+ * there is one per shard, otherwise {@code openqueue.storage.redis.due-partitions} of them, named
+ * {@code set:queues:due:<partition>}.
+ *
+ * @author chenjing
+ */
+@Component
+public class RedisKeys {
+
+    @Value("${openqueue.storage.redis.key-shards:0}")
+    private int keyShards;
+
+    @Value("${openqueue.storage.redis.due-partitions:16}")
+    private int duePartitions;
+
+    public int shardCount() {
+        return Math.max(keyShards, 1);
+    }
+
+    public int shardOf(String queueId) {
+        return keyShards > 0 ? Math.floorMod(queueId.hashCode(), keyShards) : 0;
+    }
+
+    public int duePartitionCount() {
+        return keyShards > 0 ? keyShards : Math.max(duePartitions, 1);
+    }
+
+    public int duePartitionOf(String queueId) {
+        return keyShards > 0 ? shardOf(queueId) : Math.floorMod(queueId.hashCode(), duePartitionCount());
+    }
+
+    /**
+     * The prefix of every key of the queue, empty without shards.
+     */
+    public String tag(String queueId) {
+        return keyShards > 0 ? shardTag(shardOf(queueId)) : "";
+    }
+
+    public String queue(String queueId) {
+        return keyShards > 0 ? tag(queueId) + queueId : queueId;
+    }
+
+    public String activeSet(String queueId) {
+        return tagged(ACTIVE_SET_PREFIX + queueId, queueId);
+    }
+
+    public String readySet(String queueId) {
+        return tagged(READY_SET_PREFIX + queueId, queueId);
+    }
+
+    public String leaseSet(String queueId) {
+        return tagged(LEASE_SET_PREFIX + queueId, queueId);
+    }
+
+    public String lock(String queueId) {
+        return tagged(LOCK_PREFIX + queueId, queueId);
+    }
+
+    /**
+     * The key of a ready or active set, given as {@link TicketRepo} takes it.
+     */
+    public String set(String setKey) {
+        if (keyShards == 0) {
+            return setKey;
+        }
+        String prefix = setKey.startsWith(ACTIVE_SET_PREFIX) ? ACTIVE_SET_PREFIX : READY_SET_PREFIX;
+        return tag(setKey.substring(prefix.length())) + setKey;
+    }
+
+    /**
+     * The key of a ticket, {@code t:<queue id>:<position>}, in the slot of its queue.
+     */
+    public String ticket(String ticketId) {
+        if (keyShards == 0) {
+            return ticketId;
+        }
+        int separator = ticketId.lastIndexOf(':');
+        String queueId = separator > TICKET_PREFIX.length()
+                ? ticketId.substring(TICKET_PREFIX.length(), separator)
+                : ticketId;
+        return tag(queueId) + ticketId;
+    }
+
+    /**
+     * The part of the queue registry holding the shard's queues.
+     */
+    public String allQueuesSet(int shard) {
+        return keyShards > 0 ? shardTag(shard) + ALL_QUEUES_SET : ALL_QUEUES_SET;
+    }
+
+    /**
+     * The partition of the due queues set, in the slot of its shard's queues with shards.
+     */
+    public String dueQueuesSet(int partition) {
+        return keyShards > 0 ? shardTag(partition) + DUE_QUEUES_SET : DUE_QUEUES_SET + ":" + partition;
+    }
+
+    private String tagged(String key, String queueId) {
+        return keyShards > 0 ? tag(queueId) + key : key;
+    }
+
+    private static String shardTag(int shard) {
+        return "{" + shard + "}";
+    }
+}
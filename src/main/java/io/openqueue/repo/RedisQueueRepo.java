@@ -0,0 +1,294 @@
+package io.openqueue.repo;
+
+import io.openqueue.common.constant.StorageEngine;
+import io.openqueue.common.util.QueueCodec;
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.PushResult;
+import io.openqueue.model.Queue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.ReactiveZSetCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.RedisZSetCommands.Tuple;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static io.openqueue.common.constant.Keys.*;
+
+/**
+ * Queues in Redis, with their configs cached per node by {@link QueueConfigCache}. Keys are named by
+ * {@link RedisKeys}.
+ *
+ * @author chenjing
+ */
+@Repository
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.REDIS, matchIfMissing = true)
+public class RedisQueueRepo implements QueueRepo {
+
+    private static final int SCAN_PAGE_SIZE = 1000;
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
+
+    @Autowired
+    private RedisScript<Long> reservePositionsScript;
+
+    @Autowired
+    private RedisScript<Long> releaseLockScript;
+
+    @Autowired
+    private RedisScript<List> pushQueueScript;
+
+    @Autowired
+    private QueueConfigCache queueConfigCache;
+
+    @Autowired
+    private RedisKeys keys;
+
+    @Autowired
+    private ActiveTicketFilter activeTicketFilter;
+
+    @Override
+    public Mono<Queue> createOrUpdate(Queue queue) {
+        return reactiveRedisTemplate.opsForHash().putAll(keys.queue(queue.getId()), QueueCodec.toHash(queue))
+                .then(queueConfigCache.invalidate(queue.getId()))
+                .thenReturn(queue);
+    }
+
+    @Override
+    public Mono<Queue> updateConfig(Queue queue) {
+        return reactiveRedisTemplate.opsForHash().putAll(keys.queue(queue.getId()), QueueCodec.toConfigHash(queue))
+                .then(queueConfigCache.invalidate(queue.getId()))
+                .thenReturn(queue);
+    }
+
+    @Override
+    public Mono<Boolean> addToSet(String queueId) {
+        return reactiveRedisTemplate.opsForSet().add(keys.allQueuesSet(keys.shardOf(queueId)), queueId).map(added -> added == 1);
+    }
+
+    /**
+     * Find a queue with up to date {@code head} and {@code tail}. Only those two fields are read from Redis when
+     * the config is cached.
+     */
+    @Override
+    public Mono<Queue> findById(String queueId) {
+        Queue config = queueConfigCache.get(queueId);
+        if (config == null) {
+            return load(queueId);
+        }
+
+        return reactiveRedisTemplate.<String, Object>opsForHash().multiGet(keys.queue(queueId), Arrays.asList(QueueCodec.HEAD, QueueCodec.TAIL))
+                .flatMap(positions -> {
+                    if (positions.get(0) == null && positions.get(1) == null) {
+                        // Closed by some node whose invalidation has not arrived yet.
+                        queueConfigCache.evict(queueId);
+                        return Mono.empty();
+                    }
+                    return Mono.just(config.toBuilder()
+                            .head(positions.get(0) == null ? 0 : ((Number) positions.get(0)).intValue())
+                            .tail(positions.get(1) == null ? 0 : ((Number) positions.get(1)).intValue())
+                            .build());
+                });
+    }
+
+    /**
+     * Find the config of a queue, served from the local cache when possible. {@code head} and {@code tail} of the
+     * result are not meaningful.
+     */
+    @Override
+    public Mono<Queue> findConfigById(String queueId) {
+        Queue config = queueConfigCache.get(queueId);
+        if (config == null) {
+            return load(queueId);
+        }
+        return Mono.just(config);
+    }
+
+    private Mono<Queue> load(String queueId) {
+        // A hash without an id was never set up, or was closed and then touched by a late counter update.
+        return reactiveRedisTemplate.opsForHash().entries(keys.queue(queueId))
+                .reduceWith(Queue::new, QueueCodec::readField)
+                .filter(queue -> queue.getId() != null)
+                .doOnNext(queueConfigCache::put);
+    }
+
+    @Override
+    public Flux<String> findAllId() {
+        return Flux.range(0, keys.shardCount())
+                .flatMap(shard -> reactiveRedisTemplate.opsForSet().members(keys.allQueuesSet(shard)))
+                .cast(String.class);
+    }
+
+    /**
+     * With key shards, up to {@code offset + limit} queues are read from each shard and the earliest due of them
+     * taken.
+     */
+    /**
+     * See {@link RedisKeys}, with key shards each partition is in the slot of its queues.
+     */
+    @Override
+    public int duePartitionCount() {
+        return keys.duePartitionCount();
+    }
+
+    @Override
+    public int duePartitionOf(String queueId) {
+        return keys.duePartitionOf(queueId);
+    }
+
+    @Override
+    public Flux<String> findDueIds(long currentTimeMillis, int partition, int limit) {
+        return reactiveRedisTemplate.opsForZSet()
+                .rangeByScore(keys.dueQueuesSet(partition), Range.closed(0D, (double) currentTimeMillis),
+                        Limit.limit().count(limit))
+                .cast(String.class);
+    }
+
+    /**
+     * Scanned, so a queue may come twice if the set changes meanwhile.
+     */
+    @Override
+    public Flux<String> findScheduledIds() {
+        ScanOptions options = ScanOptions.scanOptions().count(SCAN_PAGE_SIZE).build();
+        return Flux.range(0, keys.duePartitionCount())
+                .concatMap(partition -> reactiveRedisTemplate.opsForZSet().scan(keys.dueQueuesSet(partition), options))
+                .map(tuple -> (String) tuple.getValue());
+    }
+
+    @Override
+    public Mono<Long> findNextExpiration(String queueId) {
+        return Flux.merge(
+                reactiveRedisTemplate.opsForZSet().rangeWithScores(keys.activeSet(queueId), Range.closed(0L, 0L)),
+                reactiveRedisTemplate.opsForZSet().rangeWithScores(keys.readySet(queueId), Range.closed(0L, 0L)))
+                .map(tuple -> tuple.getScore().longValue())
+                .reduce(Math::min);
+    }
+
+    @Override
+    public Mono<Boolean> scheduleDue(String queueId, long dueTimeMillis) {
+        return reactiveRedisTemplate.opsForZSet().add(keys.dueQueuesSet(keys.duePartitionOf(queueId)), queueId, dueTimeMillis);
+    }
+
+    /**
+     * One ZADD per partition of the queues.
+     */
+    @Override
+    public Mono<Long> scheduleDueIfAbsent(Collection<String> queueIds, long dueTimeMillis) {
+        Map<Integer, List<Tuple>> tuplesByPartition = queueIds.stream()
+                .collect(Collectors.groupingBy(keys::duePartitionOf, Collectors.mapping(
+                        queueId -> (Tuple) new DefaultTuple(queueId.getBytes(StandardCharsets.UTF_8), (double) dueTimeMillis),
+                        Collectors.toList())));
+        return Flux.fromIterable(tuplesByPartition.entrySet())
+                .flatMap(partitionTuples -> reactiveRedisTemplate.execute(connection -> connection.zSetCommands()
+                        .zAdd(Mono.just(ReactiveZSetCommands.ZAddCommand.tuples(partitionTuples.getValue()).nx()
+                                .to(rawKey(keys.dueQueuesSet(partitionTuples.getKey())))))))
+                .reduce(0L, (count, response) -> count + response.getOutput().longValue());
+    }
+
+    @Override
+    public Mono<Boolean> getQueueLock(String queueId, String owner, int timeout) {
+        return reactiveRedisTemplate.opsForValue().setIfAbsent(keys.lock(queueId), owner, Duration.ofSeconds(timeout));
+    }
+
+    @Override
+    public Mono<Boolean> releaseQueueLock(String queueId, String owner) {
+        return reactiveRedisTemplate.execute(releaseLockScript, Collections.singletonList(keys.lock(queueId)),
+                Collections.singletonList(owner))
+                .next()
+                .map(released -> released == 1);
+    }
+
+    @Override
+    public Mono<Long> incAndGetTail(String queueId) {
+        return reactiveRedisTemplate.opsForHash().increment(keys.queue(queueId), "tail", 1);
+    }
+
+    @Override
+    public Mono<PositionLease> reserveTail(String queueId, int count, long leaseExpirationTime) {
+        return reactiveRedisTemplate.execute(reservePositionsScript, Arrays.asList(keys.queue(queueId), keys.leaseSet(queueId), keys.dueQueuesSet(keys.duePartitionOf(queueId))),
+                Arrays.asList(String.valueOf(count), String.valueOf(leaseExpirationTime), String.valueOf(System.currentTimeMillis()),
+                        keys.tag(queueId)))
+                .next()
+                .filter(last -> last >= 0)
+                .map(last -> PositionLease.builder()
+                        .first(last - count + 1)
+                        .last(last)
+                        .expirationTime(leaseExpirationTime)
+                        .build());
+    }
+
+    @Override
+    public Mono<Long> releaseLease(String queueId, PositionLease lease) {
+        return reactiveRedisTemplate.opsForZSet().remove(keys.leaseSet(queueId), leaseMember(lease));
+    }
+
+    @Override
+    public Mono<Long> removeExpiredLeases(String queueId, long currentTime) {
+        return reactiveRedisTemplate.opsForZSet()
+                .removeRangeByScore(keys.leaseSet(queueId), Range.closed((double) 0, (double) currentTime));
+    }
+
+    private static ByteBuffer rawKey(String key) {
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String leaseMember(PositionLease lease) {
+        return lease.getFirst() + ":" + lease.getLast();
+    }
+
+    /**
+     * Runs push_queue.lua, so the whole push is one round trip and the head is published by Redis.
+     */
+    @Override
+    public Mono<PushResult> push(String queueId, long currentTime, int holeScanAllowance) {
+        return reactiveRedisTemplate.execute(pushQueueScript,
+                Arrays.asList(keys.queue(queueId), keys.activeSet(queueId), keys.readySet(queueId), keys.leaseSet(queueId),
+                        keys.dueQueuesSet(keys.duePartitionOf(queueId))),
+                Arrays.asList(String.valueOf(currentTime), TICKET_PREFIX + queueId + ":", String.valueOf(holeScanAllowance),
+                        QUEUE_STATUS_CHANNEL_PREFIX + queueId, keys.tag(queueId),
+                        activeTicketFilter.admissionChannel(queueId)))
+                .next()
+                .filter(result -> !result.isEmpty())
+                .map(result -> PushResult.builder()
+                        .admitted((Long) result.get(0))
+                        .head((Long) result.get(1))
+                        .tail((Long) result.get(2))
+                        .freeSlots((Long) result.get(3))
+                        .nextExpirationTime((Long) result.get(4))
+                        .hibernated((Long) result.get(5) == 1)
+                        .build());
+    }
+
+    @Override
+    public Mono<Long> incHead(String queueId, int increment) {
+        return reactiveRedisTemplate.opsForHash().increment(keys.queue(queueId), "head", increment);
+    }
+
+    @Override
+    public Mono<Boolean> close(String queueId) {
+        return reactiveRedisTemplate.delete(keys.queue(queueId))
+                .concatWith(reactiveRedisTemplate.opsForSet().remove(keys.allQueuesSet(keys.shardOf(queueId)), queueId))
+                .reduce(0L, Long::sum)
+                .flatMap(count -> reactiveRedisTemplate.opsForZSet()
+                        .remove(keys.dueQueuesSet(keys.duePartitionOf(queueId)), queueId).thenReturn(count))
+                .flatMap(count -> queueConfigCache.invalidate(queueId).thenReturn(count == 2));
+    }
+}
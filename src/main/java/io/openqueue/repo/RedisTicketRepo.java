@@ -0,0 +1,263 @@
+package io.openqueue.repo;
+
+import io.openqueue.common.constant.StorageEngine;
+import io.openqueue.common.util.TicketCodec;
+import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.model.Ticket;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static io.openqueue.common.constant.Keys.TICKET_PREFIX;
+
+/**
+ * Tickets are stored as hashes, or packed into one string value each when {@code openqueue.ticket.binary} is set
+ * (see {@link TicketCodec}). Either way, tickets stored in the other format are still read and updated, so the
+ * format can be switched while tickets are outstanding. Keys are named by {@link RedisKeys}.
+ *
+ * @author chenjing
+ */
+@Repository
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.REDIS, matchIfMissing = true)
+public class RedisTicketRepo implements TicketRepo {
+
+    private static final int PIPELINE_WINDOW = 512;
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
+
+    @Autowired
+    private RedisScript<Long> issueTicketScript;
+
+    @Autowired
+    private RedisScript<List> authorizeTicketsScript;
+
+    @Autowired
+    private RedisScript<Long> addUsageScript;
+
+    @Autowired
+    private RedisScript<Long> updateTicketScript;
+
+    @Autowired
+    private RedisKeys keys;
+
+    @Value("${openqueue.ticket.binary:false}")
+    private boolean binaryFormat;
+
+    @Override
+    public Mono<Ticket> create(Ticket ticket){
+        if (binaryFormat) {
+            return reactiveRedisTemplate.execute(connection -> connection.stringCommands()
+                    .set(rawKey(keys.ticket(ticket.getId())), TicketCodec.toBinary(ticket)))
+                    .then(Mono.just(ticket));
+        }
+        return reactiveRedisTemplate.opsForHash().putAll(keys.ticket(ticket.getId()), TicketCodec.toHash(ticket)).thenReturn(ticket);
+    }
+
+    /**
+     * Write tickets without waiting for each reply, so a batch costs a few round trips instead of one per ticket.
+     */
+    @Override
+    public Flux<Ticket> createAll(Flux<Ticket> tickets) {
+        return tickets.flatMapSequential(this::create, PIPELINE_WINDOW);
+    }
+
+    /**
+     * Check the queue exists, take the next tail position and write the ticket in one round trip.
+     *
+     * @return the issued ticket, or empty if the queue does not exist.
+     */
+    @Override
+    public Mono<Ticket> issue(String queueId, String authCode, long issueTime) {
+        String ticketIdPrefix = TICKET_PREFIX + queueId + ":";
+        return reactiveRedisTemplate.execute(issueTicketScript,
+                Arrays.asList(keys.queue(queueId), keys.dueQueuesSet(keys.duePartitionOf(queueId))),
+                Arrays.asList(ticketIdPrefix, authCode, String.valueOf(issueTime), binaryFormat ? "1" : "0",
+                        keys.tag(queueId)))
+                .next()
+                .filter(position -> position > 0)
+                .map(position -> Ticket.builder()
+                        .id(ticketIdPrefix + position)
+                        .authCode(authCode)
+                        .issueTime(issueTime)
+                        .build());
+    }
+
+    @Override
+    public Mono<Ticket> findById(String ticketId){
+        return inFormat(() -> findBinaryById(ticketId), () -> findHashById(ticketId));
+    }
+
+    private Mono<Ticket> findHashById(String ticketId) {
+        // A hash without an id is what a late counter update leaves behind a revoked ticket.
+        return reactiveRedisTemplate.opsForHash().entries(keys.ticket(ticketId))
+                .reduceWith(Ticket::new, TicketCodec::readField)
+                .filter(ticket -> ticket.getId() != null);
+    }
+
+    private Mono<Ticket> findBinaryById(String ticketId) {
+        return reactiveRedisTemplate.execute(connection -> connection.stringCommands().get(rawKey(keys.ticket(ticketId))))
+                .next()
+                .flatMap(value -> Mono.justOrEmpty(TicketCodec.fromBinary(ticketId, value)));
+    }
+
+    @Override
+    public Mono<Boolean> exists(String ticketId) {
+        return reactiveRedisTemplate.hasKey(keys.ticket(ticketId));
+    }
+
+    @Override
+    public Mono<Long> incUsage(String ticketId) {
+        return addUsage(ticketId, 1);
+    }
+
+    @Override
+    public Mono<Integer> authorize(String activeSetKey, String ticketId, String token, int usageIncrement) {
+        return reactiveRedisTemplate.execute(authorizeTicketsScript, Arrays.asList(keys.set(activeSetKey), keys.ticket(ticketId)),
+                Arrays.asList(String.valueOf(usageIncrement), token))
+                .next()
+                .map(statuses -> ((Long) statuses.get(0)).intValue());
+    }
+
+    /**
+     * Authorize one use of each ticket, with one script call per queue, all sent without waiting for each reply.
+     *
+     * @return the outcome of each ticket, in the order given.
+     */
+    @Override
+    public Flux<Integer> authorizeAll(List<TicketAuthDto> tickets, int usageIncrement) {
+        Map<String, List<Integer>> indexesByQueue = new LinkedHashMap<>();
+        for (int i = 0; i < tickets.size(); i++) {
+            indexesByQueue.computeIfAbsent(tickets.get(i).getQueueId(), queueId -> new ArrayList<>()).add(i);
+        }
+
+        return Flux.defer(() -> {
+            int[] results = new int[tickets.size()];
+            return Flux.fromIterable(indexesByQueue.entrySet())
+                    .flatMap(queueTickets -> {
+                        List<Integer> indexes = queueTickets.getValue();
+                        List<String> scriptKeys = new ArrayList<>(indexes.size() + 1);
+                        List<String> args = new ArrayList<>(indexes.size() + 1);
+                        scriptKeys.add(keys.activeSet(queueTickets.getKey()));
+                        args.add(String.valueOf(usageIncrement));
+                        for (int index : indexes) {
+                            scriptKeys.add(keys.ticket(tickets.get(index).getTicketId()));
+                            args.add(tickets.get(index).getToken());
+                        }
+                        return reactiveRedisTemplate.execute(authorizeTicketsScript, scriptKeys, args)
+                                .next()
+                                .doOnNext(statuses -> {
+                                    for (int i = 0; i < indexes.size(); i++) {
+                                        results[indexes.get(i)] = ((Long) statuses.get(i)).intValue();
+                                    }
+                                });
+                    }, PIPELINE_WINDOW)
+                    .thenMany(Flux.fromStream(() -> Arrays.stream(results).boxed()));
+        });
+    }
+
+    /**
+     * Count {@code uses} more uses of the ticket in either format, unless it does not exist any more.
+     *
+     * @return the new count of usage, or empty if the ticket does not exist.
+     */
+    @Override
+    public Mono<Long> addUsage(String ticketId, long uses) {
+        return reactiveRedisTemplate.execute(addUsageScript, Collections.singletonList(keys.ticket(ticketId)),
+                Collections.singletonList(String.valueOf(uses)))
+                .next()
+                .filter(count -> count >= 0);
+    }
+
+    @Override
+    public Mono<Void> setActivateTime(String ticketId, long currentTime) {
+        return updateTicket(ticketId, TicketCodec.ACTIVATE_TIME, currentTime);
+    }
+
+    @Override
+    public Mono<Void> setOccupied(String ticketId){
+        return updateTicket(ticketId, TicketCodec.OCCUPIED, 0);
+    }
+
+    /**
+     * Set a field in whichever format the ticket is stored, without creating the key if the ticket is gone.
+     */
+    private Mono<Void> updateTicket(String ticketId, String field, long value) {
+        return reactiveRedisTemplate.execute(updateTicketScript, Collections.singletonList(keys.ticket(ticketId)),
+                Arrays.asList(field, String.valueOf(value)))
+                .then();
+    }
+
+    /**
+     * Run the command for the configured format, and the one for the other format if the ticket turns out to be
+     * stored the other way.
+     */
+    private <T> Mono<T> inFormat(Supplier<Mono<T>> binaryCommand, Supplier<Mono<T>> hashCommand) {
+        Supplier<Mono<T>> command = binaryFormat ? binaryCommand : hashCommand;
+        Supplier<Mono<T>> fallback = binaryFormat ? hashCommand : binaryCommand;
+        return command.get().onErrorResume(RedisTicketRepo::isWrongType, e -> fallback.get());
+    }
+
+    private static boolean isWrongType(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().startsWith("WRONGTYPE")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ByteBuffer rawKey(String key) {
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Mono<Boolean> isTicketInSet(String setKey, String ticketId){
+        return reactiveRedisTemplate.opsForZSet().score(keys.set(setKey), ticketId)
+                .filter(score -> score > 0)
+                .hasElement();
+    }
+
+    @Override
+    public Mono<Void> addToSet(String setKey, String ticketId, long expirationTime){
+        return reactiveRedisTemplate.opsForZSet().add(keys.set(setKey), ticketId, expirationTime).then();
+    }
+
+    @Override
+    public Mono<Long> removeOutOfSetById(String setKey, String ticketId){
+        return reactiveRedisTemplate.opsForZSet().remove(keys.set(setKey), ticketId);
+    }
+
+    @Override
+    public Mono<Long> removeOutOfSetByTime(String setKey, long expirationTime) {
+        return reactiveRedisTemplate.opsForZSet().removeRangeByScore(keys.set(setKey), Range.closed((double) 0, (double) expirationTime));
+    }
+
+    @Override
+    public Mono<Long> countTicketInSet(String setKey) {
+        return reactiveRedisTemplate.opsForZSet().size(keys.set(setKey));
+    }
+
+    @Override
+    public Mono<Long> revoke(String ticketId){
+        return reactiveRedisTemplate.delete(keys.ticket(ticketId));
+    }
+
+}
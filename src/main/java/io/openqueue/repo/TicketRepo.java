@@ -1,88 +1,81 @@
 package io.openqueue.repo;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
-import io.openqueue.common.util.TypeConverter;
+import io.openqueue.dto.TicketAuthDto;
 import io.openqueue.model.Ticket;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Range;
-import org.springframework.data.redis.core.ReactiveRedisTemplate;
-import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import javax.validation.constraints.NotNull;
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 /**
+ * Storage of tickets and of the ready and active sets of each queue. Sets are addressed by their keys, see
+ * {@link io.openqueue.common.constant.Keys}: ready set members are ticket ids, active set members are ticket tokens.
+ * Provided by {@link RedisTicketRepo} or {@link io.openqueue.repo.memory.MemoryTicketRepo}, see
+ * {@link io.openqueue.common.constant.StorageEngine}.
+ *
  * @author chenjing
  */
-@Repository
-public class TicketRepo {
-
-    @Autowired
-    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
-
-    public Mono<Ticket> create(Ticket ticket){
-        return reactiveRedisTemplate.opsForHash().putAll(ticket.getId(), TypeConverter.pojo2Map(ticket)).thenReturn(ticket);
-    }
-
-    public Mono<Ticket> findById(String ticketId){
-        Flux<Map.Entry<Object, Object>> ticketMap = reactiveRedisTemplate.opsForHash().entries(ticketId);
-        return ticketMap
-                .reduce(new HashMap<>(), (map, entry) -> {
-                    map.put(entry.getKey(), entry.getValue());
-                    return map;
-                })
-                .flatMap(map -> {
-                    if (map.isEmpty()) {
-                        return Mono.empty();
-                    } else {
-                        JSON map2Json = (JSON) JSON.toJSON(map);
-                        Ticket ticket = map2Json.toJavaObject(Ticket.class);
-                        return Mono.just(ticket);
-                    }
-                });
-    }
-
-    public Mono<Long> incUsage(String ticketId) {
-        return reactiveRedisTemplate.opsForHash().increment(ticketId, "countOfUsage", 1);
-    }
-
-    public Mono<Void> setActivateTime(String ticketId, long currentTime) {
-        return reactiveRedisTemplate.opsForHash().put(ticketId, "activateTime", currentTime).then();
-    }
-
-    public Mono<Void> setOccupied(String ticketId){
-        return reactiveRedisTemplate.opsForHash().put(ticketId, "occupied", Boolean.TRUE).then();
-    }
-
-    public Mono<Boolean> isTicketInSet(String setKey, String ticketId){
-        return reactiveRedisTemplate.opsForZSet().score(setKey, ticketId)
-                .filter(score -> score > 0)
-                .hasElement();
-    }
-
-    public Mono<Void> addToSet(String setKey, String ticketId, long expirationTime){
-        return reactiveRedisTemplate.opsForZSet().add(setKey, ticketId, expirationTime).then();
-    }
-
-    public Mono<Long> removeOutOfSetById(String setKey, String ticketId){
-        return reactiveRedisTemplate.opsForZSet().remove(setKey, ticketId);
-    }
-
-    public Mono<Long> removeOutOfSetByTime(String setKey, long expirationTime) {
-        return reactiveRedisTemplate.opsForZSet().removeRangeByScore(setKey, Range.closed((double) 0, (double) expirationTime));
-    }
-
-    public Mono<Long> countTicketInSet(String setKey) {
-        return reactiveRedisTemplate.opsForZSet().size(setKey);
-    }
-
-    public Mono<Long> revoke(String ticketId){
-        return reactiveRedisTemplate.delete(ticketId);
-    }
+public interface TicketRepo {
 
+    int AUTHORIZED = 0;
+    int NOT_ACTIVE = 1;
+    int OCCUPIED = 2;
+
+    Mono<Ticket> create(Ticket ticket);
+
+    /**
+     * Write tickets without waiting for each one, in order.
+     */
+    Flux<Ticket> createAll(Flux<Ticket> tickets);
+
+    /**
+     * Check the queue exists, take the next tail position and write the ticket, atomically.
+     *
+     * @return the issued ticket, or empty if the queue does not exist.
+     */
+    Mono<Ticket> issue(String queueId, String authCode, long issueTime);
+
+    Mono<Ticket> findById(String ticketId);
+
+    Mono<Boolean> exists(String ticketId);
+
+    Mono<Long> incUsage(String ticketId);
+
+    /**
+     * Check that the ticket is active and not occupied, and if so count {@code usageIncrement} more uses of it,
+     * atomically.
+     *
+     * @return {@link #AUTHORIZED}, {@link #NOT_ACTIVE} or {@link #OCCUPIED}.
+     */
+    Mono<Integer> authorize(String activeSetKey, String ticketId, String token, int usageIncrement);
+
+    /**
+     * Authorize one use of each ticket as {@link #authorize} does.
+     *
+     * @return the outcome of each ticket, in the order given.
+     */
+    Flux<Integer> authorizeAll(List<TicketAuthDto> tickets, int usageIncrement);
+
+    /**
+     * Count {@code uses} more uses of the ticket, unless it does not exist any more.
+     *
+     * @return the new count of usage, or empty if the ticket does not exist.
+     */
+    Mono<Long> addUsage(String ticketId, long uses);
+
+    Mono<Void> setActivateTime(String ticketId, long currentTime);
+
+    Mono<Void> setOccupied(String ticketId);
+
+    Mono<Boolean> isTicketInSet(String setKey, String ticketId);
+
+    Mono<Void> addToSet(String setKey, String ticketId, long expirationTime);
+
+    Mono<Long> removeOutOfSetById(String setKey, String ticketId);
+
+    Mono<Long> removeOutOfSetByTime(String setKey, long expirationTime);
+
+    Mono<Long> countTicketInSet(String setKey);
+
+    Mono<Long> revoke(String ticketId);
 }
@@ -0,0 +1,133 @@
+package io.openqueue.repo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts ticket uses in memory and writes them to Redis in batches, every flush interval or as soon as enough
+ * tickets have pending uses. A crash loses at most the uses of one interval, a shutdown flushes them first.
+ *
+ * @author chenjing
+ */
+@Component
+@Slf4j
+public class TicketUsageCounter {
+
+    @Autowired
+    private TicketRepo ticketRepo;
+
+    @Value("${openqueue.usage.write-behind:true}")
+    private boolean enabled;
+
+    @Value("${openqueue.usage.flush-threshold:1000}")
+    private int flushThreshold;
+
+    private static final int FLUSH_CONCURRENCY = 64;
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void increment(String ticketId) {
+        Counter counter = counters.get(ticketId);
+        if (counter != null) {
+            counter.uses.increment();
+            return;
+        }
+        counters.computeIfAbsent(ticketId, id -> new Counter()).uses.increment();
+        if (counters.size() >= flushThreshold) {
+            flushInBackground();
+        }
+    }
+
+    /**
+     * @return uses of the ticket counted on this node and not written to Redis yet.
+     */
+    public long pending(String ticketId) {
+        Counter counter = counters.get(ticketId);
+        return counter == null ? 0 : counter.uses.sum() - counter.flushed;
+    }
+
+    @Scheduled(fixedDelayString = "${openqueue.usage.flush-interval:200}")
+    public void flushInBackground() {
+        flush().subscribe(null, e -> log.error("Failed to flush ticket usage", e));
+    }
+
+    /**
+     * Write all pending uses, tickets without any since the last flush are forgotten. Uses that failed to be
+     * written stay pending.
+     *
+     * @return the number of uses written, 0 if another flush is running.
+     */
+    public Mono<Long> flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return Mono.just(0L);
+        }
+        return Flux.fromIterable(counters.entrySet())
+                .flatMap(entry -> {
+                    String ticketId = entry.getKey();
+                    Counter counter = entry.getValue();
+                    long uses = counter.uses.sum();
+                    long delta = uses - counter.flushed;
+                    if (delta == 0) {
+                        retire(ticketId, counter);
+                        return Mono.empty();
+                    }
+                    return ticketRepo.addUsage(ticketId, delta)
+                            // Gone tickets do not come back, their uses are dropped.
+                            .defaultIfEmpty(0L)
+                            .doOnNext(count -> counter.flushed = uses)
+                            .thenReturn(delta)
+                            // Left pending, the next flush tries again.
+                            .onErrorResume(e -> {
+                                log.warn("Failed to flush usage of " + ticketId, e);
+                                return Mono.just(0L);
+                            });
+                }, FLUSH_CONCURRENCY)
+                .reduce(0L, Long::sum)
+                .doFinally(signal -> flushing.set(false));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        Long flushed = flush().block(Duration.ofSeconds(5));
+        log.info("Flushed {} pending ticket uses", flushed);
+    }
+
+    /**
+     * Drop a counter that was idle for a whole interval. A use racing the removal is carried over to a new one.
+     */
+    private void retire(String ticketId, Counter counter) {
+        if (!counters.remove(ticketId, counter)) {
+            return;
+        }
+        long late = counter.uses.sum() - counter.flushed;
+        if (late > 0) {
+            counters.computeIfAbsent(ticketId, id -> new Counter()).uses.add(late);
+        }
+    }
+
+    private static final class Counter {
+        private final LongAdder uses = new LongAdder();
+        /**
+         * Uses already written, only moved by the flush.
+         */
+        private volatile long flushed;
+    }
+}
@@ -0,0 +1,121 @@
+package io.openqueue.repo.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Snapshot of a {@link MemoryStore}, from which its {@link Journal} is replayed.
+ * <p>
+ * Writes go on while one is taken. Each queue is copied under its monitor along with the lsn of its last record,
+ * but for its tickets, which are written chunk by chunk as they were at that point, see {@link TicketTable.Snapshot}.
+ * Replay skips a queue's records up to that lsn. The journal is rotated right before, so its earlier segments are
+ * covered by the snapshot and deleted once it is on disk. A checkpoint is named after the lsn replay starts at.
+ *
+ * @author chenjing
+ */
+final class Checkpoint {
+
+    private static final int MAGIC = 0x4f514350;
+
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".dat";
+
+    private Checkpoint() {
+    }
+
+    static void write(Path dir, long lsn, MemoryStore store) throws IOException {
+        Path tmp = dir.resolve(PREFIX + lsn + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(lsn);
+            String[] queueIds = store.queueIds.toArray(new String[0]);
+            out.writeInt(queueIds.length);
+            for (String queueId : queueIds) {
+                out.writeUTF(queueId);
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            for (QueueState state : store.queues.values()) {
+                header.reset();
+                TicketTable.Snapshot tickets;
+                synchronized (state) {
+                    // Closed, and its last record may be from before the snapshot.
+                    if (store.queues.get(state.id) != state) {
+                        continue;
+                    }
+                    tickets = state.writeHeaderTo(new DataOutputStream(header));
+                }
+                out.writeBoolean(true);
+                header.writeTo(out);
+                state.writeTicketsTo(out, tickets);
+            }
+            out.writeBoolean(false);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path(dir, lsn), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (long older : lsns(dir)) {
+            if (older < lsn) {
+                Files.deleteIfExists(path(dir, older));
+            }
+        }
+    }
+
+    /**
+     * Load the latest checkpoint into {@code store}, which is empty.
+     *
+     * @return the lsn to replay the journal from, 1 if there is no checkpoint.
+     */
+    static long read(Path dir, MemoryStore store) throws IOException {
+        List<Long> lsns = lsns(dir);
+        if (lsns.isEmpty()) {
+            return 1;
+        }
+        long lsn = lsns.get(lsns.size() - 1);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path(dir, lsn)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readLong() != lsn) {
+                throw new IOException("Not a checkpoint: " + path(dir, lsn));
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                store.queueIds.add(in.readUTF());
+            }
+            while (in.readBoolean()) {
+                QueueState state = QueueState.readFrom(in);
+                store.queues.put(state.id, state);
+            }
+        }
+        return lsn;
+    }
+
+    private static List<Long> lsns(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static Path path(Path dir, long lsn) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+    }
+}
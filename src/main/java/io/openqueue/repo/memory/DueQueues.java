@@ -0,0 +1,90 @@
+package io.openqueue.repo.memory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+/**
+ * When each scheduled queue is next due, in epoch milliseconds, also kept ordered by due time so the due queues
+ * are read off the front instead of sorting every queue on each sweep. A queue's entries are changed under its
+ * map entry, a reader going through the order may miss a queue being moved.
+ *
+ * @author chenjing
+ */
+final class DueQueues {
+
+    private final Map<String, Long> dueTimes = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListSet<Due> byDueTime = new ConcurrentSkipListSet<>();
+
+    /**
+     * @return the previous due time, or null if the queue was not scheduled.
+     */
+    Long put(String queueId, long dueTimeMillis) {
+        Long[] previous = new Long[1];
+        dueTimes.compute(queueId, (id, dueTime) -> {
+            if (dueTime != null) {
+                byDueTime.remove(new Due(dueTime, id));
+            }
+            previous[0] = dueTime;
+            byDueTime.add(new Due(dueTimeMillis, id));
+            return dueTimeMillis;
+        });
+        return previous[0];
+    }
+
+    /**
+     * @return the due time the queue already had, or null if it is scheduled now.
+     */
+    Long putIfAbsent(String queueId, long dueTimeMillis) {
+        boolean[] added = new boolean[1];
+        Long dueTime = dueTimes.computeIfAbsent(queueId, id -> {
+            added[0] = true;
+            byDueTime.add(new Due(dueTimeMillis, id));
+            return dueTimeMillis;
+        });
+        return added[0] ? null : dueTime;
+    }
+
+    void remove(String queueId) {
+        dueTimes.computeIfPresent(queueId, (id, dueTime) -> {
+            byDueTime.remove(new Due(dueTime, id));
+            return null;
+        });
+    }
+
+    Set<String> keySet() {
+        return dueTimes.keySet();
+    }
+
+    void clear() {
+        dueTimes.keySet().forEach(this::remove);
+    }
+
+    /**
+     * Queues due by {@code currentTimeMillis}, most overdue first, ties by id.
+     */
+    Stream<String> dueBy(long currentTimeMillis) {
+        return byDueTime.stream()
+                .takeWhile(due -> due.dueTimeMillis <= currentTimeMillis)
+                .map(due -> due.queueId);
+    }
+
+    private static final class Due implements Comparable<Due> {
+        private final long dueTimeMillis;
+        private final String queueId;
+
+        private Due(long dueTimeMillis, String queueId) {
+            this.dueTimeMillis = dueTimeMillis;
+            this.queueId = queueId;
+        }
+
+        @Override
+        public int compareTo(Due other) {
+            int byTime = Long.compare(dueTimeMillis, other.dueTimeMillis);
+            return byTime != 0 ? byTime : queueId.compareTo(other.queueId);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package io.openqueue.repo.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Positions scored by expiration time, the ready or active set of one queue, without an object per position.
+ * <p>
+ * An open addressing map from position to expiration answers lookups, and a binary heap ordered by expiration
+ * finds what is due. Removing a position only touches the map: its heap entry is dropped when it comes up and no
+ * longer matches the map, and the heap is rebuilt once such entries outnumber the live ones.
+ * <p>
+ * Not thread safe, guarded by its {@link QueueState}.
+ *
+ * @author chenjing
+ */
+final class ExpirySet {
+
+    static final long ABSENT = Long.MIN_VALUE;
+
+    /**
+     * Positions start at 1, so 0 marks a free slot.
+     */
+    private static final long FREE = 0;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private long[] expirations = new long[INITIAL_CAPACITY];
+    private int size;
+
+    private long[] heapExpirations = new long[INITIAL_CAPACITY];
+    private long[] heapPositions = new long[INITIAL_CAPACITY];
+    private int heapSize;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the expiration of {@code position}, or {@link #ABSENT}.
+     */
+    long get(long position) {
+        int slot = find(position);
+        return slot < 0 ? ABSENT : expirations[slot];
+    }
+
+    /**
+     * @return whether {@code position} was not in the set before.
+     */
+    boolean put(long position, long expiration) {
+        int slot = find(position);
+        boolean added = slot < 0;
+        if (added) {
+            if ((size + 1) * 2 > positions.length) {
+                resize(positions.length * 2);
+            }
+            slot = freeSlot(position);
+            positions[slot] = position;
+            size++;
+        } else if (expirations[slot] == expiration) {
+            return false;
+        }
+        expirations[slot] = expiration;
+        heapPush(expiration, position);
+        compactHeap();
+        return added;
+    }
+
+    boolean remove(long position) {
+        int slot = find(position);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        compactHeap();
+        return true;
+    }
+
+    /**
+     * Remove every position expiring at or before {@code time}.
+     *
+     * @return how many were removed.
+     */
+    int removeUpTo(long time) {
+        int removed = 0;
+        while (heapSize > 0 && heapExpirations[0] <= time) {
+            long position = heapPositions[0];
+            long expiration = heapExpirations[0];
+            heapPop();
+            int slot = find(position);
+            if (slot >= 0 && expirations[slot] == expiration) {
+                removeSlot(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the earliest expiration, or -1 if the set is empty.
+     */
+    long firstExpiration() {
+        while (heapSize > 0) {
+            long position = heapPositions[0];
+            long expiration = heapExpirations[0];
+            if (get(position) == expiration) {
+                return expiration;
+            }
+            heapPop();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the lowest position in the set, or {@link Long#MAX_VALUE} if it is empty.
+     */
+    long minPosition() {
+        long min = Long.MAX_VALUE;
+        for (long position : positions) {
+            if (position != FREE && position < min) {
+                min = position;
+            }
+        }
+        return min;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] != FREE) {
+                out.writeLong(positions[i]);
+                out.writeLong(expirations[i]);
+            }
+        }
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        for (int count = in.readInt(); count > 0; count--) {
+            put(in.readLong(), in.readLong());
+        }
+    }
+
+    private static int hash(long position, int mask) {
+        long h = position * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long position) {
+        int mask = positions.length - 1;
+        for (int slot = hash(position, mask); positions[slot] != FREE; slot = (slot + 1) & mask) {
+            if (positions[slot] == position) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int freeSlot(long position) {
+        int mask = positions.length - 1;
+        int slot = hash(position, mask);
+        while (positions[slot] != FREE) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Linear probing deletion: shift back the entries after the slot that would otherwise be cut off from their
+     * home slot.
+     */
+    private void removeSlot(int slot) {
+        int mask = positions.length - 1;
+        int free = slot;
+        for (int next = (free + 1) & mask; positions[next] != FREE; next = (next + 1) & mask) {
+            int home = hash(positions[next], mask);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                positions[free] = positions[next];
+                expirations[free] = expirations[next];
+                free = next;
+            }
+        }
+        positions[free] = FREE;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldPositions = positions;
+        long[] oldExpirations = expirations;
+        positions = new long[capacity];
+        expirations = new long[capacity];
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldPositions[i] != FREE) {
+                int slot = freeSlot(oldPositions[i]);
+                positions[slot] = oldPositions[i];
+                expirations[slot] = oldExpirations[i];
+            }
+        }
+    }
+
+    private void heapPush(long expiration, long position) {
+        if (heapSize == heapExpirations.length) {
+            heapExpirations = Arrays.copyOf(heapExpirations, heapSize * 2);
+            heapPositions = Arrays.copyOf(heapPositions, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapExpirations[parent] <= expiration) {
+                break;
+            }
+            heapExpirations[i] = heapExpirations[parent];
+            heapPositions[i] = heapPositions[parent];
+            i = parent;
+        }
+        heapExpirations[i] = expiration;
+        heapPositions[i] = position;
+    }
+
+    private void heapPop() {
+        heapSize--;
+        if (heapSize > 0) {
+            siftDown(0, heapExpirations[heapSize], heapPositions[heapSize]);
+        }
+    }
+
+    private void siftDown(int i, long expiration, long position) {
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heapExpirations[child + 1] < heapExpirations[child]) {
+                child++;
+            }
+            if (expiration <= heapExpirations[child]) {
+                break;
+            }
+            heapExpirations[i] = heapExpirations[child];
+            heapPositions[i] = heapPositions[child];
+            i = child;
+        }
+        heapExpirations[i] = expiration;
+        heapPositions[i] = position;
+    }
+
+    private void compactHeap() {
+        if (heapSize <= 2 * size + INITIAL_CAPACITY) {
+            return;
+        }
+        heapSize = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] != FREE) {
+                heapExpirations[heapSize] = expirations[i];
+                heapPositions[heapSize] = positions[i];
+                heapSize++;
+            }
+        }
+        for (int i = (heapSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i, heapExpirations[i], heapPositions[i]);
+        }
+    }
+}
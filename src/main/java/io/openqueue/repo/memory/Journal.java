@@ -0,0 +1,347 @@
+package io.openqueue.repo.memory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append only log of the memory engine's writes, in memory mapped segment files of a fixed size.
+ * <p>
+ * A record is {@code length, lsn, op, queue id, arguments, crc}, where the lsn counts records across segments and
+ * the crc covers everything before it. Segments are created full of zeros, so a zero length ends one, and so does a
+ * record torn by a crash. A segment is named after the lsn of its first record.
+ * <p>
+ * Appends only copy into the mapped segment. {@link #force()} writes them out, which callers batch. A full segment
+ * is written out by the append that starts the next one, after letting go of the lock, so the next segment may
+ * reach the disk first. Replay stops at the first lsn missing between segments, a crash can only lose the records
+ * after some point.
+ *
+ * @author chenjing
+ */
+final class Journal implements AutoCloseable {
+
+    static final byte CREATE_QUEUE = 1;
+    static final byte UPDATE_CONFIG = 2;
+    static final byte LIST_QUEUE = 3;
+    static final byte INC_TAIL = 4;
+    static final byte RESERVE_TAIL = 5;
+    static final byte RELEASE_LEASE = 6;
+    static final byte REMOVE_EXPIRED_LEASES = 7;
+    static final byte PUSH = 8;
+    static final byte INC_HEAD = 9;
+    static final byte CLOSE = 10;
+    static final byte CREATE_TICKET = 11;
+    static final byte ISSUE = 12;
+    static final byte ADD_USAGE = 13;
+    static final byte SET_ACTIVATE_TIME = 14;
+    static final byte SET_OCCUPIED = 15;
+    static final byte ADD_TO_SET = 16;
+    static final byte REMOVE_FROM_SET = 17;
+    static final byte REMOVE_FROM_SET_BY_TIME = 18;
+    static final byte REVOKE = 19;
+
+    static final Consumer<Writer> NO_ARGUMENTS = writer -> {
+    };
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Length, lsn, op, and crc.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 1 + 4;
+
+    private static final ThreadLocal<Writer> WRITERS = ThreadLocal.withInitial(Writer::new);
+
+    private final Path dir;
+
+    private final int segmentSize;
+
+    private final CRC32C crc = new CRC32C();
+
+    private FileChannel channel;
+
+    private MappedByteBuffer segment;
+
+    private long segmentFirstLsn;
+
+    private long lastLsn;
+
+    /**
+     * Position of the segment as of the last {@link #force()}.
+     */
+    private int forcedPosition;
+
+    /**
+     * @param lastLsn lsn of the last record already in the directory, the next one gets the lsn after it.
+     */
+    Journal(Path dir, int segmentSize, long lastLsn) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.lastLsn = lastLsn;
+        openSegment();
+    }
+
+    /**
+     * Append a record, the arguments written by {@code arguments}.
+     *
+     * @return the lsn of the record.
+     */
+    long append(String queueId, byte op, Consumer<Writer> arguments) {
+        Writer writer = WRITERS.get();
+        writer.buffer.clear();
+        writer.putString(queueId);
+        arguments.accept(writer);
+        ByteBuffer body = writer.buffer.flip();
+        int length = RECORD_OVERHEAD + body.remaining();
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Journal record of " + length + " bytes does not fit in a segment");
+        }
+
+        MappedByteBuffer full = null;
+        long lsn;
+        synchronized (this) {
+            if (segment.remaining() < length) {
+                full = segment;
+                openSegment();
+            }
+            lsn = ++lastLsn;
+            int start = segment.position();
+            segment.putInt(length).putLong(lsn).put(op).put(body);
+            crc.reset();
+            crc.update(segment.duplicate().position(start).limit(segment.position()));
+            segment.putInt((int) crc.getValue());
+        }
+        if (full != null) {
+            full.force();
+        }
+        return lsn;
+    }
+
+    synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * Start a new segment, so every record from here on is in a segment that starts after the old ones.
+     *
+     * @return the lsn of the first record of the new segment.
+     */
+    long rotate() {
+        MappedByteBuffer full;
+        long firstLsn;
+        synchronized (this) {
+            full = segment;
+            openSegment();
+            firstLsn = segmentFirstLsn;
+        }
+        full.force();
+        return firstLsn;
+    }
+
+    /**
+     * Write the records appended so far out to disk, while appends go on.
+     */
+    void force() {
+        MappedByteBuffer forced;
+        synchronized (this) {
+            if (segment.position() == forcedPosition) {
+                return;
+            }
+            forced = segment;
+            forcedPosition = segment.position();
+        }
+        forced.force();
+    }
+
+    /**
+     * Delete the segments holding only records before {@code lsn}.
+     */
+    synchronized void deleteBefore(long lsn) throws IOException {
+        List<Long> firstLsns = segmentFirstLsns(dir);
+        for (int i = 0; i + 1 < firstLsns.size() && firstLsns.get(i + 1) <= lsn; i++) {
+            Files.deleteIfExists(segmentPath(dir, firstLsns.get(i)));
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        segment.force();
+        channel.close();
+    }
+
+    private void openSegment() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            // A segment left with this name holds no intact record, or lastLsn would be in it.
+            segmentFirstLsn = lastLsn + 1;
+            channel = FileChannel.open(segmentPath(dir, segmentFirstLsn), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            forcedPosition = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read every intact record of the segments that may hold records from {@code fromLsn} on, in lsn order, up to
+     * the first lsn missing. Segments after that are deleted, the journal goes on from the last record read.
+     *
+     * @return the lsn of the last record read, or {@code fromLsn - 1} if there was none.
+     */
+    static long replay(Path dir, long fromLsn, RecordHandler handler) throws IOException {
+        List<Long> firstLsns = segmentFirstLsns(dir);
+        long lastLsn = fromLsn - 1;
+        for (int i = 0; i < firstLsns.size(); i++) {
+            if (i + 1 < firstLsns.size() && firstLsns.get(i + 1) <= fromLsn) {
+                continue;
+            }
+            if (firstLsns.get(i) > lastLsn + 1) {
+                // The end of an earlier segment was lost in a crash.
+                for (int j = i; j < firstLsns.size(); j++) {
+                    Files.deleteIfExists(segmentPath(dir, firstLsns.get(j)));
+                }
+                break;
+            }
+            try (FileChannel channel = FileChannel.open(segmentPath(dir, firstLsns.get(i)), StandardOpenOption.READ)) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                lastLsn = Math.max(lastLsn, replay(segment, fromLsn, handler));
+            }
+        }
+        return lastLsn;
+    }
+
+    private static long replay(ByteBuffer segment, long fromLsn, RecordHandler handler) {
+        CRC32C crc = new CRC32C();
+        long lastLsn = -1;
+        while (segment.remaining() >= RECORD_OVERHEAD) {
+            int start = segment.position();
+            int length = segment.getInt(start);
+            if (length < RECORD_OVERHEAD || length > segment.limit() - start) {
+                break;
+            }
+            crc.reset();
+            crc.update(segment.duplicate().position(start).limit(start + length - 4));
+            if ((int) crc.getValue() != segment.getInt(start + length - 4)) {
+                break;
+            }
+            long lsn = segment.getLong(start + 4);
+            byte op = segment.get(start + 12);
+            Reader reader = new Reader(segment.duplicate().position(start + 13).limit(start + length - 4).slice());
+            if (lsn >= fromLsn) {
+                handler.handle(lsn, reader.getString(), op, reader);
+            }
+            lastLsn = lsn;
+            segment.position(start + length);
+        }
+        return lastLsn;
+    }
+
+    private static List<Long> segmentFirstLsns(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static Path segmentPath(Path dir, long firstLsn) {
+        return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX));
+    }
+
+    interface RecordHandler {
+        void handle(long lsn, String queueId, byte op, Reader arguments);
+    }
+
+    /**
+     * Writes the arguments of a record, into a buffer of the appending thread.
+     */
+    static final class Writer {
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        Writer putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        Writer putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        Writer putBoolean(boolean value) {
+            ensure(1);
+            buffer.put(value ? (byte) 1 : 0);
+            return this;
+        }
+
+        /**
+         * Null is written as a length of -1.
+         */
+        Writer putString(String value) {
+            if (value == null) {
+                return putInt(-1);
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer = larger.put(buffer.flip());
+            }
+        }
+    }
+
+    static final class Reader {
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        long getLong() {
+            return buffer.getLong();
+        }
+
+        int getInt() {
+            return buffer.getInt();
+        }
+
+        boolean getBoolean() {
+            return buffer.get() != 0;
+        }
+
+        String getString() {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
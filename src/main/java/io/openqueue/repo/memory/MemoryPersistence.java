@@ -0,0 +1,221 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.common.constant.StorageEngine;
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.Queue;
+import io.openqueue.model.Ticket;
+import io.openqueue.repo.QueueRepo;
+import io.openqueue.repo.TicketRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the memory engine across restarts when {@code openqueue.storage.memory.data-dir} is set: every write is
+ * journaled, see {@link Journal}, and a {@link Checkpoint} is taken every checkpoint-interval milliseconds on a
+ * thread of its own, so a large store does not hold up the other scheduled tasks.
+ * <p>
+ * On start the latest checkpoint is loaded and the journal after it replayed through the repositories, which
+ * redo each write. The journal is written out every fsync-interval milliseconds, a crash of the machine loses the
+ * writes since, and a crash of the process none of them.
+ * <p>
+ * Tickets behind the head, no longer ready or active, are dropped by the pushes, so they are left out of the next
+ * checkpoint and the journal segments before it are deleted.
+ *
+ * @author chenjing
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.MEMORY)
+public class MemoryPersistence {
+
+    @Autowired
+    private MemoryStore store;
+
+    @Autowired
+    private QueueRepo queueRepo;
+
+    @Autowired
+    private TicketRepo ticketRepo;
+
+    @Value("${openqueue.storage.memory.data-dir:}")
+    private String dataDir;
+
+    @Value("${openqueue.storage.memory.segment-size:67108864}")
+    private int segmentSize;
+
+    @Value("${openqueue.storage.memory.checkpoint-interval:60000}")
+    private long checkpointInterval;
+
+    private Path dir;
+
+    private Scheduler checkpointScheduler;
+
+    @PostConstruct
+    public void recover() throws IOException {
+        if (dataDir == null || dataDir.isEmpty()) {
+            return;
+        }
+        dir = Paths.get(dataDir);
+        Files.createDirectories(dir);
+
+        long startTime = System.currentTimeMillis();
+        long checkpointLsn = Checkpoint.read(dir, store);
+        long lastLsn = Journal.replay(dir, checkpointLsn, this::redo);
+        store.journal = new Journal(dir, segmentSize, Math.max(lastLsn, checkpointLsn - 1));
+
+        // Due times are not journaled, the first push puts the idle queues back to sleep.
+        long currentTimeMillis = System.currentTimeMillis();
+        store.queues.keySet().forEach(queueId -> store.dueTimes.putIfAbsent(queueId, currentTimeMillis));
+        checkpoint();
+        log.info("Recovered {} queues from {} up to lsn {} in {} ms", store.queues.size(), dir, lastLsn,
+                System.currentTimeMillis() - startTime);
+
+        if (checkpointInterval > 0) {
+            checkpointScheduler = Schedulers.newSingle("memory-checkpoint", true);
+            checkpointScheduler.schedulePeriodically(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException | RuntimeException e) {
+                    log.error("Failed to checkpoint " + dir, e);
+                }
+            }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${openqueue.storage.memory.fsync-interval:1000}")
+    public void force() {
+        Journal journal = store.journal;
+        if (journal != null) {
+            journal.force();
+        }
+    }
+
+    public synchronized void checkpoint() throws IOException {
+        Journal journal = store.journal;
+        if (journal == null) {
+            return;
+        }
+        long lsn = journal.rotate();
+        Checkpoint.write(dir, lsn, store);
+        journal.deleteBefore(lsn);
+    }
+
+    /**
+     * The journal stays open, writes made by other beans shutting down still reach the page cache and with it the
+     * disk.
+     */
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (checkpointScheduler != null) {
+            checkpointScheduler.dispose();
+        }
+        checkpoint();
+        force();
+    }
+
+    private void redo(long lsn, String queueId, byte op, Journal.Reader arguments) {
+        QueueState state = store.queues.get(queueId);
+        if (state != null && lsn <= state.lsn) {
+            return;
+        }
+        switch (op) {
+            case Journal.CREATE_QUEUE:
+                queueRepo.createOrUpdate(readQueue(queueId, arguments)).block();
+                break;
+            case Journal.UPDATE_CONFIG:
+                queueRepo.updateConfig(readQueue(queueId, arguments)).block();
+                break;
+            case Journal.LIST_QUEUE:
+                queueRepo.addToSet(queueId).block();
+                break;
+            case Journal.INC_TAIL:
+                queueRepo.incAndGetTail(queueId).block();
+                break;
+            case Journal.RESERVE_TAIL:
+                queueRepo.reserveTail(queueId, arguments.getInt(), arguments.getLong()).block();
+                break;
+            case Journal.RELEASE_LEASE:
+                queueRepo.releaseLease(queueId, PositionLease.builder()
+                        .first(arguments.getLong())
+                        .last(arguments.getLong())
+                        .build()).block();
+                break;
+            case Journal.REMOVE_EXPIRED_LEASES:
+                queueRepo.removeExpiredLeases(queueId, arguments.getLong()).block();
+                break;
+            case Journal.PUSH:
+                queueRepo.push(queueId, arguments.getLong(), arguments.getInt()).block();
+                break;
+            case Journal.INC_HEAD:
+                queueRepo.incHead(queueId, arguments.getInt()).block();
+                break;
+            case Journal.CLOSE:
+                queueRepo.close(queueId).block();
+                break;
+            case Journal.CREATE_TICKET:
+                ticketRepo.create(Ticket.builder()
+                        .id(arguments.getString())
+                        .authCode(arguments.getString())
+                        .issueTime(arguments.getLong())
+                        .activateTime(arguments.getLong())
+                        .occupied(arguments.getBoolean())
+                        .countOfUsage(arguments.getInt())
+                        .build()).block();
+                break;
+            case Journal.ISSUE:
+                ticketRepo.issue(queueId, arguments.getString(), arguments.getLong()).block();
+                break;
+            case Journal.ADD_USAGE:
+                ticketRepo.addUsage(arguments.getString(), arguments.getLong()).block();
+                break;
+            case Journal.SET_ACTIVATE_TIME:
+                ticketRepo.setActivateTime(arguments.getString(), arguments.getLong()).block();
+                break;
+            case Journal.SET_OCCUPIED:
+                ticketRepo.setOccupied(arguments.getString()).block();
+                break;
+            case Journal.ADD_TO_SET:
+                ticketRepo.addToSet(arguments.getString(), arguments.getString(), arguments.getLong()).block();
+                break;
+            case Journal.REMOVE_FROM_SET:
+                ticketRepo.removeOutOfSetById(arguments.getString(), arguments.getString()).block();
+                break;
+            case Journal.REMOVE_FROM_SET_BY_TIME:
+                ticketRepo.removeOutOfSetByTime(arguments.getString(), arguments.getLong()).block();
+                break;
+            case Journal.REVOKE:
+                ticketRepo.revoke(arguments.getString()).block();
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record " + op + " at lsn " + lsn);
+        }
+    }
+
+    private static Queue readQueue(String queueId, Journal.Reader arguments) {
+        return Queue.builder()
+                .id(queueId)
+                .name(arguments.getString())
+                .callbackURL(arguments.getString())
+                .capacity(arguments.getInt())
+                .head(arguments.getInt())
+                .tail(arguments.getInt())
+                .maxActiveUsers(arguments.getInt())
+                .availableSecondPerUser(arguments.getInt())
+                .holdTimeForActivate(arguments.getInt())
+                .build();
+    }
+}
@@ -0,0 +1,375 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.common.constant.StorageEngine;
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.PushResult;
+import io.openqueue.model.Queue;
+import io.openqueue.repo.QueueRepo;
+import io.openqueue.repo.QueueStatusFeed;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Queues in this node's heap, see {@link MemoryStore}. A push works like push_queue.lua on the queue's
+ * {@link QueueState}, and also drops the tickets no operation can reach any more.
+ *
+ * @author chenjing
+ */
+@Repository
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.MEMORY)
+public class MemoryQueueRepo implements QueueRepo {
+
+    @Autowired
+    private MemoryStore store;
+
+    @Autowired
+    private QueueStatusFeed queueStatusFeed;
+
+    @Override
+    public Mono<Queue> createOrUpdate(Queue queue) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.computeIfAbsent(queue.getId(), queueId -> new QueueState(queueId, queue));
+            synchronized (state) {
+                state.config = queue.toBuilder().build();
+                state.head = queue.getHead();
+                state.tail = queue.getTail();
+                store.journal(state, Journal.CREATE_QUEUE, writer -> writeQueue(writer, queue));
+            }
+            return queue;
+        });
+    }
+
+    @Override
+    public Mono<Queue> updateConfig(Queue queue) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.computeIfAbsent(queue.getId(), queueId -> new QueueState(queueId, queue));
+            synchronized (state) {
+                state.config = queue.toBuilder().build();
+                store.journal(state, Journal.UPDATE_CONFIG, writer -> writeQueue(writer, queue));
+            }
+            return queue;
+        });
+    }
+
+    @Override
+    public Mono<Boolean> addToSet(String queueId) {
+        return Mono.fromSupplier(() -> {
+            boolean added = store.queueIds.add(queueId);
+            Journal journal = store.journal;
+            if (added && journal != null) {
+                journal.append(queueId, Journal.LIST_QUEUE, Journal.NO_ARGUMENTS);
+            }
+            return added;
+        });
+    }
+
+    @Override
+    public Mono<Queue> findById(String queueId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return null;
+            }
+            synchronized (state) {
+                return state.snapshot();
+            }
+        });
+    }
+
+    @Override
+    public Mono<Queue> findConfigById(String queueId) {
+        return findById(queueId);
+    }
+
+    @Override
+    public Flux<String> findAllId() {
+        return Flux.defer(() -> Flux.fromArray(store.queueIds.toArray(new String[0])));
+    }
+
+    /**
+     * Local to this node, which sweeps every queue.
+     */
+    @Override
+    public int duePartitionCount() {
+        return 1;
+    }
+
+    @Override
+    public int duePartitionOf(String queueId) {
+        return 0;
+    }
+
+    @Override
+    public Flux<String> findDueIds(long currentTimeMillis, int partition, int limit) {
+        return Flux.defer(() -> Flux.fromStream(store.dueTimes.dueBy(currentTimeMillis)
+                .limit(limit)));
+    }
+
+    @Override
+    public Flux<String> findScheduledIds() {
+        return Flux.defer(() -> Flux.fromArray(store.dueTimes.keySet().toArray(new String[0])));
+    }
+
+    @Override
+    public Mono<Long> findNextExpiration(String queueId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return null;
+            }
+            synchronized (state) {
+                long nextExpiration = nextExpiration(state);
+                return nextExpiration < 0 ? null : nextExpiration;
+            }
+        });
+    }
+
+    @Override
+    public Mono<Boolean> scheduleDue(String queueId, long dueTimeMillis) {
+        return Mono.fromSupplier(() -> store.dueTimes.put(queueId, dueTimeMillis) == null);
+    }
+
+    @Override
+    public Mono<Long> scheduleDueIfAbsent(Collection<String> queueIds, long dueTimeMillis) {
+        return Mono.fromSupplier(() -> queueIds.stream()
+                .filter(queueId -> store.dueTimes.putIfAbsent(queueId, dueTimeMillis) == null)
+                .count());
+    }
+
+    @Override
+    public Mono<Boolean> getQueueLock(String queueId, String owner, int timeout) {
+        return Mono.fromSupplier(() -> {
+            long currentTimeMillis = System.currentTimeMillis();
+            MemoryStore.Lock acquired = new MemoryStore.Lock(owner, currentTimeMillis + timeout * 1000L);
+            MemoryStore.Lock lock = store.locks.compute(queueId, (id, held) ->
+                    held == null || held.expirationTimeMillis <= currentTimeMillis ? acquired : held);
+            return lock == acquired;
+        });
+    }
+
+    @Override
+    public Mono<Boolean> releaseQueueLock(String queueId, String owner) {
+        return Mono.fromSupplier(() -> {
+            boolean[] released = new boolean[1];
+            store.locks.computeIfPresent(queueId, (id, held) -> {
+                released[0] = held.owner.equals(owner);
+                return released[0] ? null : held;
+            });
+            return released[0];
+        });
+    }
+
+    @Override
+    public Mono<Long> incAndGetTail(String queueId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return null;
+            }
+            synchronized (state) {
+                state.tail++;
+                store.journal(state, Journal.INC_TAIL, Journal.NO_ARGUMENTS);
+                return state.tail;
+            }
+        });
+    }
+
+    @Override
+    public Mono<PositionLease> reserveTail(String queueId, int count, long leaseExpirationTime) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return null;
+            }
+            synchronized (state) {
+                state.tail += count;
+                store.dueTimes.putIfAbsent(queueId, System.currentTimeMillis());
+                PositionLease lease = PositionLease.builder()
+                        .first(state.tail - count + 1)
+                        .last(state.tail)
+                        .expirationTime(leaseExpirationTime)
+                        .build();
+                state.leases.add(lease);
+                store.journal(state, Journal.RESERVE_TAIL, writer -> writer.putInt(count).putLong(leaseExpirationTime));
+                return lease;
+            }
+        });
+    }
+
+    @Override
+    public Mono<Long> releaseLease(String queueId, PositionLease lease) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return 0L;
+            }
+            synchronized (state) {
+                boolean removed = state.leases.removeIf(held ->
+                        held.getFirst() == lease.getFirst() && held.getLast() == lease.getLast());
+                if (removed) {
+                    store.journal(state, Journal.RELEASE_LEASE,
+                            writer -> writer.putLong(lease.getFirst()).putLong(lease.getLast()));
+                }
+                return removed ? 1L : 0L;
+            }
+        });
+    }
+
+    @Override
+    public Mono<Long> removeExpiredLeases(String queueId, long currentTime) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return 0L;
+            }
+            synchronized (state) {
+                int before = state.leases.size();
+                if (state.leases.removeIf(lease -> lease.getExpirationTime() <= currentTime)) {
+                    store.journal(state, Journal.REMOVE_EXPIRED_LEASES, writer -> writer.putLong(currentTime));
+                }
+                return (long) (before - state.leases.size());
+            }
+        });
+    }
+
+    @Override
+    public Mono<PushResult> push(String queueId, long currentTime, int holeScanAllowance) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                store.dueTimes.remove(queueId);
+                return null;
+            }
+            PushResult result;
+            long head;
+            synchronized (state) {
+                head = state.head;
+                result = push(queueId, state, currentTime, holeScanAllowance);
+                store.journal(state, Journal.PUSH, writer -> writer.putLong(currentTime).putInt(holeScanAllowance));
+            }
+            if (result.getHead() > head) {
+                queueStatusFeed.publish(queueId, result.getHead(), result.getTail());
+            }
+            return result;
+        });
+    }
+
+    private PushResult push(String queueId, QueueState state, long currentTime, int holeScanAllowance) {
+        state.active.removeUpTo(currentTime);
+        state.ready.removeUpTo(currentTime);
+        state.leases.removeIf(lease -> lease.getExpirationTime() <= currentTime);
+
+        long head = state.head;
+        long tail = state.tail;
+        long freeSlots = state.config.getMaxActiveUsers() - state.active.size() - state.ready.size();
+        long newUser = Math.min(freeSlots, tail - head);
+        long admitted = 0;
+        long newHead = head;
+
+        if (newUser > 0) {
+            long expirationTime = currentTime + state.config.getHoldTimeForActivate();
+            long window = Math.min(tail - head, newUser + holeScanAllowance);
+
+            // Positions without a ticket are skipped, unless a live lease still covers them: their ticket may be on
+            // its way, so admission stops there.
+            for (long position = head + 1; position <= head + window && admitted < newUser; position++) {
+                if (state.tickets.exists(position)) {
+                    admitted++;
+                    state.ready.put(position, expirationTime);
+                } else if (isLeased(state, position)) {
+                    break;
+                }
+                newHead = position;
+            }
+            state.head = newHead;
+        }
+
+        long nextExpiration = nextExpiration(state);
+        boolean hibernated = newHead >= tail && nextExpiration < 0 && state.leases.isEmpty();
+        if (hibernated) {
+            store.dueTimes.remove(queueId);
+        }
+
+        // Tickets behind the head that are neither ready nor active can not be activated, authorized or counted
+        // any more, only revoked, which finds nothing to do either way.
+        if (state.tickets.hasChunkBefore(newHead + 1)) {
+            long oldest = Math.min(newHead + 1, Math.min(state.ready.minPosition(), state.active.minPosition()));
+            state.tickets.releaseBefore(oldest);
+        }
+
+        return PushResult.builder()
+                .admitted(admitted)
+                .head(newHead)
+                .tail(tail)
+                .freeSlots(freeSlots)
+                .nextExpirationTime(nextExpiration)
+                .hibernated(hibernated)
+                .build();
+    }
+
+    private static boolean isLeased(QueueState state, long position) {
+        for (PositionLease lease : state.leases) {
+            if (position >= lease.getFirst() && position <= lease.getLast()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long nextExpiration(QueueState state) {
+        long active = state.active.firstExpiration();
+        long ready = state.ready.firstExpiration();
+        if (active < 0 || ready < 0) {
+            return Math.max(active, ready);
+        }
+        return Math.min(active, ready);
+    }
+
+    @Override
+    public Mono<Long> incHead(String queueId, int increment) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return null;
+            }
+            synchronized (state) {
+                state.head += increment;
+                store.journal(state, Journal.INC_HEAD, writer -> writer.putInt(increment));
+                return state.head;
+            }
+        });
+    }
+
+    @Override
+    public Mono<Boolean> close(String queueId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.remove(queueId);
+            boolean unlisted = store.queueIds.remove(queueId);
+            store.dueTimes.remove(queueId);
+            if (state == null) {
+                return false;
+            }
+            synchronized (state) {
+                store.journal(state, Journal.CLOSE, Journal.NO_ARGUMENTS);
+            }
+            return unlisted;
+        });
+    }
+
+    private static void writeQueue(Journal.Writer writer, Queue queue) {
+        writer.putString(queue.getName())
+                .putString(queue.getCallbackURL())
+                .putInt(queue.getCapacity())
+                .putInt(queue.getHead())
+                .putInt(queue.getTail())
+                .putInt(queue.getMaxActiveUsers())
+                .putInt(queue.getAvailableSecondPerUser())
+                .putInt(queue.getHoldTimeForActivate());
+    }
+}
@@ -0,0 +1,58 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.common.constant.StorageEngine;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Everything the memory engine holds, shared by {@link MemoryQueueRepo} and {@link MemoryTicketRepo}.
+ *
+ * @author chenjing
+ */
+@Component
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.MEMORY)
+public class MemoryStore {
+
+    final Map<String, QueueState> queues = new ConcurrentHashMap<>();
+
+    final Set<String> queueIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * When each scheduled queue is next due. New tickets wake a queue, and pushes hibernate it, while holding the
+     * queue's monitor, so a ticket can not slip past a push that is putting its queue to sleep.
+     */
+    final DueQueues dueTimes = new DueQueues();
+
+    final Map<String, Lock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Journal of the writes when the engine is persisted, see {@link MemoryPersistence}, otherwise null.
+     */
+    volatile Journal journal;
+
+    /**
+     * Journal a write to a queue. Called while holding the queue's monitor, so the queue's records are in the order
+     * its writes were made.
+     */
+    void journal(QueueState state, byte op, Consumer<Journal.Writer> arguments) {
+        Journal journal = this.journal;
+        if (journal != null) {
+            state.lsn = journal.append(state.id, op, arguments);
+        }
+    }
+
+    static final class Lock {
+        final String owner;
+        final long expirationTimeMillis;
+
+        Lock(String owner, long expirationTimeMillis) {
+            this.owner = owner;
+            this.expirationTimeMillis = expirationTimeMillis;
+        }
+    }
+}
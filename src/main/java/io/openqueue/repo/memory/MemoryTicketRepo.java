@@ -0,0 +1,349 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.common.constant.StorageEngine;
+import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.model.Ticket;
+import io.openqueue.repo.TicketRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+import static io.openqueue.common.constant.Keys.ACTIVE_SET_PREFIX;
+import static io.openqueue.common.constant.Keys.READY_SET_PREFIX;
+import static io.openqueue.common.constant.Keys.TICKET_PREFIX;
+
+/**
+ * Tickets in this node's heap, in the {@link TicketTable} of their queue, see {@link MemoryStore}.
+ * <p>
+ * Ticket ids and set keys are read back into a queue and a position, so the ready and active sets only keep
+ * positions. An active set member is a token, which matches if its auth code is the ticket's. Tickets of a queue
+ * that does not exist, or no longer does, are not kept.
+ *
+ * @author chenjing
+ */
+@Repository
+@ConditionalOnProperty(name = StorageEngine.PROPERTY, havingValue = StorageEngine.MEMORY)
+public class MemoryTicketRepo implements TicketRepo {
+
+    @Autowired
+    private MemoryStore store;
+
+    @Override
+    public Mono<Ticket> create(Ticket ticket) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOf(ticket.getId());
+            if (state != null) {
+                synchronized (state) {
+                    if (state.tickets.put(position(ticket.getId()), ticket.getAuthCode(), ticket.getIssueTime(),
+                            ticket.getActivateTime(), ticket.isOccupied(), ticket.getCountOfUsage())) {
+                        store.journal(state, Journal.CREATE_TICKET, writer -> writer.putString(ticket.getId())
+                                .putString(ticket.getAuthCode())
+                                .putLong(ticket.getIssueTime())
+                                .putLong(ticket.getActivateTime())
+                                .putBoolean(ticket.isOccupied())
+                                .putInt(ticket.getCountOfUsage()));
+                    }
+                }
+            }
+            return ticket;
+        });
+    }
+
+    @Override
+    public Flux<Ticket> createAll(Flux<Ticket> tickets) {
+        return tickets.concatMap(this::create);
+    }
+
+    @Override
+    public Mono<Ticket> issue(String queueId, String authCode, long issueTime) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = store.queues.get(queueId);
+            if (state == null) {
+                return null;
+            }
+            long position;
+            synchronized (state) {
+                position = ++state.tail;
+                // Wake the queue if it was hibernating, a scheduled queue keeps its due time.
+                store.dueTimes.putIfAbsent(queueId, issueTime * 1000);
+                state.tickets.put(position, authCode, issueTime, 0, false, 0);
+                store.journal(state, Journal.ISSUE, writer -> writer.putString(authCode).putLong(issueTime));
+            }
+            return Ticket.builder()
+                    .id(TICKET_PREFIX + queueId + ":" + position)
+                    .authCode(authCode)
+                    .issueTime(issueTime)
+                    .build();
+        });
+    }
+
+    @Override
+    public Mono<Ticket> findById(String ticketId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOf(ticketId);
+            if (state == null) {
+                return null;
+            }
+            synchronized (state) {
+                return state.tickets.get(ticketId, position(ticketId));
+            }
+        });
+    }
+
+    @Override
+    public Mono<Boolean> exists(String ticketId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOf(ticketId);
+            if (state == null) {
+                return false;
+            }
+            synchronized (state) {
+                return state.tickets.exists(position(ticketId));
+            }
+        });
+    }
+
+    @Override
+    public Mono<Long> incUsage(String ticketId) {
+        return addUsage(ticketId, 1);
+    }
+
+    @Override
+    public Mono<Integer> authorize(String activeSetKey, String ticketId, String token, int usageIncrement) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOf(ticketId);
+            if (state == null) {
+                return NOT_ACTIVE;
+            }
+            synchronized (state) {
+                return authorize(state, ticketId, token, usageIncrement);
+            }
+        });
+    }
+
+    @Override
+    public Flux<Integer> authorizeAll(List<TicketAuthDto> tickets, int usageIncrement) {
+        return Flux.fromIterable(tickets)
+                .concatMap(ticket -> authorize(ACTIVE_SET_PREFIX + ticket.getQueueId(), ticket.getTicketId(),
+                        ticket.getToken(), usageIncrement));
+    }
+
+    private int authorize(QueueState state, String ticketId, String token, int usageIncrement) {
+        long position = position(ticketId);
+        if (state.active.get(position) <= 0 || !state.tickets.codeMatches(position, authCodeOf(token))) {
+            return NOT_ACTIVE;
+        }
+        if (state.tickets.isOccupied(position)) {
+            return OCCUPIED;
+        }
+        if (usageIncrement > 0) {
+            state.tickets.addUses(position, usageIncrement);
+            store.journal(state, Journal.ADD_USAGE, writer -> writer.putString(ticketId).putLong(usageIncrement));
+        }
+        return AUTHORIZED;
+    }
+
+    @Override
+    public Mono<Long> addUsage(String ticketId, long uses) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOf(ticketId);
+            if (state == null) {
+                return null;
+            }
+            synchronized (state) {
+                long count = state.tickets.addUses(position(ticketId), uses);
+                if (count < 0) {
+                    return null;
+                }
+                store.journal(state, Journal.ADD_USAGE, writer -> writer.putString(ticketId).putLong(uses));
+                return count;
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> setActivateTime(String ticketId, long currentTime) {
+        return Mono.fromRunnable(() -> {
+            QueueState state = queueOf(ticketId);
+            if (state != null) {
+                synchronized (state) {
+                    if (state.tickets.setActivateTime(position(ticketId), currentTime)) {
+                        store.journal(state, Journal.SET_ACTIVATE_TIME,
+                                writer -> writer.putString(ticketId).putLong(currentTime));
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> setOccupied(String ticketId) {
+        return Mono.fromRunnable(() -> {
+            QueueState state = queueOf(ticketId);
+            if (state != null) {
+                synchronized (state) {
+                    if (state.tickets.setOccupied(position(ticketId))) {
+                        store.journal(state, Journal.SET_OCCUPIED, writer -> writer.putString(ticketId));
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public Mono<Boolean> isTicketInSet(String setKey, String ticketId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOfSet(setKey);
+            if (state == null || !isMember(setKey, ticketId)) {
+                return false;
+            }
+            synchronized (state) {
+                return set(state, setKey).get(position(ticketId)) > 0 && codeMatches(state, setKey, ticketId);
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> addToSet(String setKey, String ticketId, long expirationTime) {
+        return Mono.fromRunnable(() -> {
+            QueueState state = queueOfSet(setKey);
+            if (state != null && isMember(setKey, ticketId)) {
+                synchronized (state) {
+                    set(state, setKey).put(position(ticketId), expirationTime);
+                    store.journal(state, Journal.ADD_TO_SET,
+                            writer -> writer.putString(setKey).putString(ticketId).putLong(expirationTime));
+                }
+            }
+        });
+    }
+
+    @Override
+    public Mono<Long> removeOutOfSetById(String setKey, String ticketId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOfSet(setKey);
+            if (state == null || !isMember(setKey, ticketId)) {
+                return 0L;
+            }
+            synchronized (state) {
+                if (!codeMatches(state, setKey, ticketId) || !set(state, setKey).remove(position(ticketId))) {
+                    return 0L;
+                }
+                store.journal(state, Journal.REMOVE_FROM_SET, writer -> writer.putString(setKey).putString(ticketId));
+                return 1L;
+            }
+        });
+    }
+
+    @Override
+    public Mono<Long> removeOutOfSetByTime(String setKey, long expirationTime) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOfSet(setKey);
+            if (state == null) {
+                return 0L;
+            }
+            synchronized (state) {
+                long removed = set(state, setKey).removeUpTo(expirationTime);
+                if (removed > 0) {
+                    store.journal(state, Journal.REMOVE_FROM_SET_BY_TIME,
+                            writer -> writer.putString(setKey).putLong(expirationTime));
+                }
+                return removed;
+            }
+        });
+    }
+
+    @Override
+    public Mono<Long> countTicketInSet(String setKey) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOfSet(setKey);
+            if (state == null) {
+                return 0L;
+            }
+            synchronized (state) {
+                return (long) set(state, setKey).size();
+            }
+        });
+    }
+
+    @Override
+    public Mono<Long> revoke(String ticketId) {
+        return Mono.fromSupplier(() -> {
+            QueueState state = queueOf(ticketId);
+            if (state == null) {
+                return 0L;
+            }
+            synchronized (state) {
+                if (!state.tickets.remove(position(ticketId))) {
+                    return 0L;
+                }
+                store.journal(state, Journal.REVOKE, writer -> writer.putString(ticketId));
+                return 1L;
+            }
+        });
+    }
+
+    /**
+     * @param ticketId {@code t:<queue>:<position>}, or a token {@code t:<queue>:<position>:<authCode>}.
+     */
+    private QueueState queueOf(String ticketId) {
+        int positionStart = positionStart(ticketId);
+        return positionStart < 0 ? null : store.queues.get(ticketId.substring(TICKET_PREFIX.length(), positionStart - 1));
+    }
+
+    private QueueState queueOfSet(String setKey) {
+        String prefix = setKey.startsWith(ACTIVE_SET_PREFIX) ? ACTIVE_SET_PREFIX : READY_SET_PREFIX;
+        return setKey.startsWith(prefix) ? store.queues.get(setKey.substring(prefix.length())) : null;
+    }
+
+    private static ExpirySet set(QueueState state, String setKey) {
+        return setKey.startsWith(ACTIVE_SET_PREFIX) ? state.active : state.ready;
+    }
+
+    /**
+     * Whether the ticket id, or token, is of a ticket of the set's queue.
+     */
+    private static boolean isMember(String setKey, String ticketId) {
+        int prefixLength = setKey.startsWith(ACTIVE_SET_PREFIX) ? ACTIVE_SET_PREFIX.length() : READY_SET_PREFIX.length();
+        int queueIdLength = setKey.length() - prefixLength;
+        return positionStart(ticketId) == TICKET_PREFIX.length() + queueIdLength + 1
+                && ticketId.regionMatches(TICKET_PREFIX.length(), setKey, prefixLength, queueIdLength)
+                && position(ticketId) > 0;
+    }
+
+    /**
+     * Active set members are tokens, they only match the ticket with their auth code.
+     */
+    private static boolean codeMatches(QueueState state, String setKey, String token) {
+        return !setKey.startsWith(ACTIVE_SET_PREFIX) || state.tickets.codeMatches(position(token), authCodeOf(token));
+    }
+
+    /**
+     * Queue ids have one colon, {@code q:<id>}, so the position follows the third one.
+     */
+    private static int positionStart(String ticketId) {
+        if (!ticketId.startsWith(TICKET_PREFIX)) {
+            return -1;
+        }
+        int queueIdColon = ticketId.indexOf(':', TICKET_PREFIX.length());
+        int positionColon = queueIdColon < 0 ? -1 : ticketId.indexOf(':', queueIdColon + 1);
+        return positionColon < 0 ? -1 : positionColon + 1;
+    }
+
+    private static long position(String ticketId) {
+        int positionStart = positionStart(ticketId);
+        int positionEnd = ticketId.indexOf(':', positionStart);
+        try {
+            return Long.parseLong(ticketId.substring(positionStart, positionEnd < 0 ? ticketId.length() : positionEnd));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String authCodeOf(String token) {
+        return token.substring(token.lastIndexOf(':') + 1);
+    }
+}
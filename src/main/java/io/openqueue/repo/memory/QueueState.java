@@ -0,0 +1,144 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.Queue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One queue held by the memory engine. Every read and write of it holds its monitor, which makes each repository
+ * operation atomic the way a script is in Redis.
+ *
+ * @author chenjing
+ */
+final class QueueState {
+
+    final String id;
+
+    /**
+     * The config, its {@code head} and {@code tail} are not kept up to date.
+     */
+    Queue config;
+
+    long head;
+
+    long tail;
+
+    final TicketTable tickets = new TicketTable();
+
+    final ExpirySet ready = new ExpirySet();
+
+    final ExpirySet active = new ExpirySet();
+
+    /**
+     * Few at a time, one per batch or block of positions in flight.
+     */
+    final List<PositionLease> leases = new ArrayList<>();
+
+    /**
+     * Lsn of the last {@link Journal} record of the queue, 0 if it was not journaled.
+     */
+    long lsn;
+
+    QueueState(String id, Queue config) {
+        this.id = id;
+        this.config = config;
+    }
+
+    Queue snapshot() {
+        return config.toBuilder().head((int) head).tail((int) tail).build();
+    }
+
+    /**
+     * Write everything but the tickets, and start the snapshot of those for {@link #writeTicketsTo}. Called under
+     * the monitor, so the queue is copied as of its {@link #lsn}.
+     */
+    TicketTable.Snapshot writeHeaderTo(DataOutput out) throws IOException {
+        out.writeUTF(id);
+        out.writeLong(lsn);
+        writeNullable(out, config.getName());
+        writeNullable(out, config.getCallbackURL());
+        out.writeInt(config.getCapacity());
+        out.writeInt(config.getMaxActiveUsers());
+        out.writeInt(config.getAvailableSecondPerUser());
+        out.writeInt(config.getHoldTimeForActivate());
+        out.writeLong(head);
+        out.writeLong(tail);
+        out.writeInt(leases.size());
+        for (PositionLease lease : leases) {
+            out.writeLong(lease.getFirst());
+            out.writeLong(lease.getLast());
+            out.writeLong(lease.getExpirationTime());
+        }
+        ready.writeTo(out);
+        active.writeTo(out);
+        return tickets.startSnapshot();
+    }
+
+    /**
+     * Write the tickets chunk by chunk, taking the monitor only to copy each one, so the queue is not held up for
+     * as long as the writing takes.
+     */
+    void writeTicketsTo(DataOutput out, TicketTable.Snapshot snapshot) throws IOException {
+        try {
+            snapshot.writeHeaderTo(out);
+            while (true) {
+                TicketTable.Chunk chunk;
+                synchronized (this) {
+                    if (!snapshot.hasNext()) {
+                        break;
+                    }
+                    chunk = snapshot.next();
+                }
+                TicketTable.writeChunk(out, chunk);
+            }
+        } finally {
+            synchronized (this) {
+                tickets.endSnapshot();
+            }
+        }
+    }
+
+    static QueueState readFrom(DataInput in) throws IOException {
+        String id = in.readUTF();
+        long lsn = in.readLong();
+        QueueState state = new QueueState(id, Queue.builder()
+                .id(id)
+                .name(readNullable(in))
+                .callbackURL(readNullable(in))
+                .capacity(in.readInt())
+                .maxActiveUsers(in.readInt())
+                .availableSecondPerUser(in.readInt())
+                .holdTimeForActivate(in.readInt())
+                .build());
+        state.lsn = lsn;
+        state.head = in.readLong();
+        state.tail = in.readLong();
+        for (int count = in.readInt(); count > 0; count--) {
+            state.leases.add(PositionLease.builder()
+                    .first(in.readLong())
+                    .last(in.readLong())
+                    .expirationTime(in.readLong())
+                    .build());
+        }
+        state.ready.readFrom(in);
+        state.active.readFrom(in);
+        state.tickets.readFrom(in);
+        return state;
+    }
+
+    private static void writeNullable(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
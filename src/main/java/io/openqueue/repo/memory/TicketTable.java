@@ -0,0 +1,444 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.common.util.RandomCodeGenerator;
+import io.openqueue.model.Ticket;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The tickets of one queue by position, in chunks of primitive arrays instead of an object per ticket: 13 bytes a
+ * ticket, plus 16 for its auth code when codes are stored. Chunks are allocated as positions are written and
+ * dropped once every position in them is behind the oldest one still in use, so the table is a ring over the live
+ * positions.
+ * <p>
+ * Auth codes made by {@link RandomCodeGenerator#getCode()} are packed into two longs. Any other code, such as one
+ * written with signing on, is kept as a string on the side. Times are epoch seconds read as unsigned ints, which
+ * last until 2106.
+ * <p>
+ * Not thread safe, guarded by its {@link QueueState}.
+ *
+ * @author chenjing
+ */
+final class TicketTable {
+
+    static final int CHUNK_BITS = 12;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final byte EXISTS = 1;
+    private static final byte OCCUPIED = 2;
+    private static final byte PACKED_CODE = 4;
+    private static final byte OTHER_CODE = 8;
+
+    /**
+     * {@code chunks[i]} holds the positions of chunk {@code firstChunk + i}, null until one of them is written.
+     */
+    private Chunk[] chunks = new Chunk[4];
+
+    private long firstChunk;
+
+    private final Map<Long, String> otherCodes = new HashMap<>();
+
+    private int size;
+
+    /**
+     * The snapshot being written, if any.
+     */
+    private Snapshot snapshot;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Write a ticket at {@code position}, replacing any ticket there.
+     *
+     * @return false if the position is behind the table and can not be written any more.
+     */
+    boolean put(long position, String authCode, long issueTime, long activateTime, boolean occupied, int countOfUsage) {
+        Chunk chunk = writableChunk(position, true);
+        if (chunk == null) {
+            return false;
+        }
+        int i = (int) (position & CHUNK_MASK);
+        if ((chunk.flags[i] & EXISTS) == 0) {
+            chunk.live++;
+            size++;
+        } else if ((chunk.flags[i] & OTHER_CODE) != 0) {
+            otherCodes.remove(position);
+        }
+
+        byte flags = occupied ? (byte) (EXISTS | OCCUPIED) : EXISTS;
+        long[] code = authCode.isEmpty() ? null : RandomCodeGenerator.decodeCode(authCode);
+        if (code != null) {
+            if (chunk.codeHigh == null) {
+                chunk.codeHigh = new long[CHUNK_SIZE];
+                chunk.codeLow = new long[CHUNK_SIZE];
+            }
+            chunk.codeHigh[i] = code[0];
+            chunk.codeLow[i] = code[1];
+            flags |= PACKED_CODE;
+        } else if (!authCode.isEmpty()) {
+            otherCodes.put(position, authCode);
+            flags |= OTHER_CODE;
+        }
+        chunk.flags[i] = flags;
+        chunk.uses[i] = countOfUsage;
+        chunk.issueTimes[i] = (int) issueTime;
+        chunk.activateTimes[i] = (int) activateTime;
+        return true;
+    }
+
+    boolean exists(long position) {
+        Chunk chunk = chunk(position, false);
+        return chunk != null && (chunk.flags[(int) (position & CHUNK_MASK)] & EXISTS) != 0;
+    }
+
+    /**
+     * @return the ticket, or null if there is none at {@code position}.
+     */
+    Ticket get(String ticketId, long position) {
+        if (!exists(position)) {
+            return null;
+        }
+        Chunk chunk = chunk(position, false);
+        int i = (int) (position & CHUNK_MASK);
+        return Ticket.builder()
+                .id(ticketId)
+                .authCode(authCode(position))
+                .issueTime(Integer.toUnsignedLong(chunk.issueTimes[i]))
+                .activateTime(Integer.toUnsignedLong(chunk.activateTimes[i]))
+                .occupied((chunk.flags[i] & OCCUPIED) != 0)
+                .countOfUsage(chunk.uses[i])
+                .build();
+    }
+
+    /**
+     * @return the auth code, empty if the ticket was written without one, or null if there is no ticket.
+     */
+    String authCode(long position) {
+        if (!exists(position)) {
+            return null;
+        }
+        Chunk chunk = chunk(position, false);
+        int i = (int) (position & CHUNK_MASK);
+        if ((chunk.flags[i] & PACKED_CODE) != 0) {
+            return RandomCodeGenerator.encodeCode(chunk.codeHigh[i], chunk.codeLow[i]);
+        }
+        if ((chunk.flags[i] & OTHER_CODE) != 0) {
+            return otherCodes.get(position);
+        }
+        return "";
+    }
+
+    /**
+     * Whether {@code authCode} is the code of the ticket. Tickets written without one match no code.
+     */
+    boolean codeMatches(long position, String authCode) {
+        if (!exists(position)) {
+            return false;
+        }
+        Chunk chunk = chunk(position, false);
+        int i = (int) (position & CHUNK_MASK);
+        if ((chunk.flags[i] & PACKED_CODE) != 0) {
+            long[] code = RandomCodeGenerator.decodeCode(authCode);
+            return code != null && code[0] == chunk.codeHigh[i] && code[1] == chunk.codeLow[i];
+        }
+        if ((chunk.flags[i] & OTHER_CODE) != 0) {
+            return authCode.equals(otherCodes.get(position));
+        }
+        return false;
+    }
+
+    boolean isOccupied(long position) {
+        Chunk chunk = chunk(position, false);
+        return chunk != null && (chunk.flags[(int) (position & CHUNK_MASK)] & OCCUPIED) != 0;
+    }
+
+    boolean setOccupied(long position) {
+        if (!exists(position)) {
+            return false;
+        }
+        writableChunk(position, false).flags[(int) (position & CHUNK_MASK)] |= OCCUPIED;
+        return true;
+    }
+
+    boolean setActivateTime(long position, long activateTime) {
+        if (!exists(position)) {
+            return false;
+        }
+        writableChunk(position, false).activateTimes[(int) (position & CHUNK_MASK)] = (int) activateTime;
+        return true;
+    }
+
+    /**
+     * Count {@code uses} more uses, saturating at {@link Integer#MAX_VALUE}.
+     *
+     * @return the new count, or -1 if there is no ticket.
+     */
+    long addUses(long position, long uses) {
+        if (!exists(position)) {
+            return -1;
+        }
+        Chunk chunk = writableChunk(position, false);
+        int i = (int) (position & CHUNK_MASK);
+        chunk.uses[i] = (int) Math.min(Integer.MAX_VALUE, chunk.uses[i] + uses);
+        return chunk.uses[i];
+    }
+
+    boolean remove(long position) {
+        if (!exists(position)) {
+            return false;
+        }
+        Chunk chunk = writableChunk(position, false);
+        int i = (int) (position & CHUNK_MASK);
+        if ((chunk.flags[i] & OTHER_CODE) != 0) {
+            otherCodes.remove(position);
+        }
+        chunk.flags[i] = 0;
+        chunk.live--;
+        size--;
+        return true;
+    }
+
+    /**
+     * Whether some chunk lies wholly before {@code position}, so {@link #releaseBefore} would free memory.
+     */
+    boolean hasChunkBefore(long position) {
+        return firstChunk < position >>> CHUNK_BITS;
+    }
+
+    /**
+     * Drop the chunks wholly before {@code position}, with their tickets. Those positions can not be written again.
+     */
+    void releaseBefore(long position) {
+        long newFirstChunk = position >>> CHUNK_BITS;
+        if (newFirstChunk <= firstChunk) {
+            return;
+        }
+        int dropped = (int) Math.min(newFirstChunk - firstChunk, chunks.length);
+        for (int i = 0; i < dropped; i++) {
+            if (chunks[i] != null) {
+                if (snapshot != null) {
+                    snapshot.save(firstChunk + i, chunks[i]);
+                }
+                size -= chunks[i].live;
+            }
+        }
+        System.arraycopy(chunks, dropped, chunks, 0, chunks.length - dropped);
+        Arrays.fill(chunks, chunks.length - dropped, chunks.length, null);
+        firstChunk = newFirstChunk;
+
+        long firstPosition = firstChunk << CHUNK_BITS;
+        if (!otherCodes.isEmpty()) {
+            otherCodes.keySet().removeIf(codePosition -> codePosition < firstPosition);
+        }
+    }
+
+    /**
+     * Start a snapshot of the table as it is now, to be written out chunk by chunk while writes go on. A chunk
+     * changed before the snapshot got to it is copied first. Only one snapshot is taken at a time.
+     */
+    Snapshot startSnapshot() {
+        snapshot = new Snapshot();
+        return snapshot;
+    }
+
+    void endSnapshot() {
+        snapshot = null;
+    }
+
+    /**
+     * Read what a {@link Snapshot} wrote into this table, which is empty.
+     */
+    void readFrom(DataInput in) throws IOException {
+        firstChunk = in.readLong();
+        for (int count = in.readInt(); count > 0; count--) {
+            long chunkNumber = in.readLong();
+            Chunk chunk = chunk(chunkNumber << CHUNK_BITS | 1, true);
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                chunk.flags[i] = in.readByte();
+                chunk.uses[i] = in.readInt();
+                chunk.issueTimes[i] = in.readInt();
+                chunk.activateTimes[i] = in.readInt();
+                long codeHigh = in.readLong();
+                long codeLow = in.readLong();
+                if ((chunk.flags[i] & PACKED_CODE) != 0) {
+                    if (chunk.codeHigh == null) {
+                        chunk.codeHigh = new long[CHUNK_SIZE];
+                        chunk.codeLow = new long[CHUNK_SIZE];
+                    }
+                    chunk.codeHigh[i] = codeHigh;
+                    chunk.codeLow[i] = codeLow;
+                }
+                if ((chunk.flags[i] & EXISTS) != 0) {
+                    chunk.live++;
+                    size++;
+                }
+                if ((chunk.flags[i] & OTHER_CODE) != 0) {
+                    otherCodes.put(chunkNumber << CHUNK_BITS | i, in.readUTF());
+                }
+            }
+        }
+    }
+
+    /**
+     * The chunk at {@code position}, which is about to be written, saved first for the snapshot if it needs it.
+     */
+    private Chunk writableChunk(long position, boolean create) {
+        Chunk chunk = chunk(position, create);
+        if (snapshot != null && chunk != null) {
+            snapshot.save(position >>> CHUNK_BITS, chunk);
+        }
+        return chunk;
+    }
+
+    private Chunk chunk(long position, boolean create) {
+        long chunkIndex = position >>> CHUNK_BITS;
+        if (position <= 0 || chunkIndex < firstChunk) {
+            return null;
+        }
+        long offset = chunkIndex - firstChunk;
+        if (offset >= chunks.length) {
+            if (!create) {
+                return null;
+            }
+            int length = chunks.length;
+            while (length <= offset) {
+                length *= 2;
+            }
+            chunks = Arrays.copyOf(chunks, length);
+        }
+        Chunk chunk = chunks[(int) offset];
+        if (chunk == null && create) {
+            chunk = new Chunk();
+            chunks[(int) offset] = chunk;
+        }
+        return chunk;
+    }
+
+    /**
+     * The chunks in use when it was started, as fixed size records so a ticket's record is found from its position
+     * alone, with any auth code kept on the side right after it. Taking a chunk needs the table's guard, writing it
+     * out does not.
+     */
+    final class Snapshot {
+
+        private final long firstChunk = TicketTable.this.firstChunk;
+
+        /**
+         * Numbers of the chunks to write, ascending, those before {@code next} are taken.
+         */
+        private final long[] chunkNumbers;
+
+        private int next;
+
+        /**
+         * Copies of chunks changed or dropped before they were taken.
+         */
+        private final Map<Long, Chunk> saved = new HashMap<>();
+
+        private Snapshot() {
+            chunkNumbers = new long[(int) Arrays.stream(chunks).filter(chunk -> chunk != null && chunk.live > 0).count()];
+            int count = 0;
+            for (int offset = 0; offset < chunks.length; offset++) {
+                if (chunks[offset] != null && chunks[offset].live > 0) {
+                    chunkNumbers[count++] = firstChunk + offset;
+                }
+            }
+        }
+
+        void writeHeaderTo(DataOutput out) throws IOException {
+            out.writeLong(firstChunk);
+            out.writeInt(chunkNumbers.length);
+        }
+
+        boolean hasNext() {
+            return next < chunkNumbers.length;
+        }
+
+        /**
+         * Take the next chunk as it was when the snapshot started.
+         */
+        Chunk next() {
+            long chunkNumber = chunkNumbers[next++];
+            Chunk chunk = saved.remove(chunkNumber);
+            return chunk != null ? chunk : copy(chunkNumber, chunks[(int) (chunkNumber - TicketTable.this.firstChunk)]);
+        }
+
+        private void save(long chunkNumber, Chunk chunk) {
+            if (Arrays.binarySearch(chunkNumbers, next, chunkNumbers.length, chunkNumber) >= 0
+                    && !saved.containsKey(chunkNumber)) {
+                saved.put(chunkNumber, copy(chunkNumber, chunk));
+            }
+        }
+
+        private Chunk copy(long chunkNumber, Chunk chunk) {
+            Chunk copy = new Chunk(chunk);
+            copy.number = chunkNumber;
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                if ((chunk.flags[i] & OTHER_CODE) != 0) {
+                    if (copy.otherCodes == null) {
+                        copy.otherCodes = new String[CHUNK_SIZE];
+                    }
+                    copy.otherCodes[i] = otherCodes.get(chunkNumber << CHUNK_BITS | i);
+                }
+            }
+            return copy;
+        }
+    }
+
+    static void writeChunk(DataOutput out, Chunk chunk) throws IOException {
+        out.writeLong(chunk.number);
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            out.writeByte(chunk.flags[i]);
+            out.writeInt(chunk.uses[i]);
+            out.writeInt(chunk.issueTimes[i]);
+            out.writeInt(chunk.activateTimes[i]);
+            out.writeLong(chunk.codeHigh == null ? 0 : chunk.codeHigh[i]);
+            out.writeLong(chunk.codeLow == null ? 0 : chunk.codeLow[i]);
+            if ((chunk.flags[i] & OTHER_CODE) != 0) {
+                out.writeUTF(chunk.otherCodes[i]);
+            }
+        }
+    }
+
+    static final class Chunk {
+        private final byte[] flags;
+        private final int[] uses;
+        private final int[] issueTimes;
+        private final int[] activateTimes;
+        private long[] codeHigh;
+        private long[] codeLow;
+        private int live;
+        /**
+         * Only set on snapshot copies, along with the codes kept on the side.
+         */
+        private long number;
+        private String[] otherCodes;
+
+        private Chunk() {
+            flags = new byte[CHUNK_SIZE];
+            uses = new int[CHUNK_SIZE];
+            issueTimes = new int[CHUNK_SIZE];
+            activateTimes = new int[CHUNK_SIZE];
+        }
+
+        private Chunk(Chunk chunk) {
+            flags = chunk.flags.clone();
+            uses = chunk.uses.clone();
+            issueTimes = chunk.issueTimes.clone();
+            activateTimes = chunk.activateTimes.clone();
+            codeHigh = chunk.codeHigh == null ? null : chunk.codeHigh.clone();
+            codeLow = chunk.codeLow == null ? null : chunk.codeLow.clone();
+            live = chunk.live;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package io.openqueue.service;
+
+import io.openqueue.model.PositionLease;
+import io.openqueue.repo.QueueRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out queue positions from blocks leased off the queue's tail, so that only one
+ * {@code HINCRBY tail} is needed per block instead of one per ticket.
+ * <p>
+ * Positions are strictly ordered within a node and loosely ordered across nodes. A lease that goes idle,
+ * or gets close to its expiration time, is retired and its record released, so the scheduler can skip
+ * the positions that were never handed out.
+ * <p>
+ * Only queues whose config is found get positions, so a closed queue stops issuing tickets on every node
+ * once its cached config is invalidated. A queue is only tracked from its first lease on, and forgotten
+ * once idle or gone.
+ *
+ * @author chenjing
+ */
+@Component
+@Slf4j
+public class PositionLeaseManager {
+
+    @Autowired
+    private QueueRepo queueRepo;
+
+    @Value("${openqueue.lease.enabled:false}")
+    private boolean enabled;
+
+    @Value("${openqueue.lease.size:256}")
+    private int leaseSize;
+
+    @Value("${openqueue.lease.ttl:30}")
+    private int leaseTtl;
+
+    @Value("${openqueue.lease.max-idle:2}")
+    private int maxIdle;
+
+    private final Map<String, QueueLeases> queueLeases = new ConcurrentHashMap<>();
+
+    /**
+     * Retired leases wait here one reclaim round before their records are released, so tickets
+     * handed out just before retirement have time to be written.
+     */
+    private final java.util.Queue<RetiredLease> retiredLeases = new ConcurrentLinkedQueue<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the next position for a new ticket of the queue, or empty if the queue does not exist.
+     */
+    public Mono<Long> nextPosition(String queueId) {
+        return queueRepo.findConfigById(queueId)
+                .switchIfEmpty(Mono.fromRunnable(() -> dropLeases(queueId)))
+                .flatMap(queue -> nextLeasedPosition(queueId));
+    }
+
+    /**
+     * Retire the leases of a closed queue, its remaining positions are never handed out.
+     */
+    public void dropLeases(String queueId) {
+        QueueLeases leases = queueLeases.remove(queueId);
+        if (leases != null) {
+            leases.drop(now());
+        }
+    }
+
+    private Mono<Long> nextLeasedPosition(String queueId) {
+        QueueLeases leases = queueLeases.get(queueId);
+        if (leases != null) {
+            return leases.nextPosition();
+        }
+        // Concurrent first requests each lease a block, the ones not needed right away are prefetched or retired.
+        return queueRepo.reserveTail(queueId, leaseSize, now() + leaseTtl)
+                .flatMap(lease -> {
+                    QueueLeases registered = queueLeases.computeIfAbsent(queueId, QueueLeases::new);
+                    registered.accept(new LocalLease(lease));
+                    return registered.nextPosition();
+                });
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public void reclaimLeases() {
+        reclaimLeases(now());
+    }
+
+    void reclaimLeases(long now) {
+        Flux.fromIterable(retiredLeases)
+                .filter(retired -> retired.retireTime < now)
+                .doOnNext(retiredLeases::remove)
+                .flatMap(retired -> queueRepo.releaseLease(retired.queueId, retired.lease))
+                .subscribe(released -> { }, e -> log.warn("Failed to release position leases", e));
+
+        queueLeases.values().forEach(leases -> leases.retireStale(now));
+    }
+
+    @PreDestroy
+    public void releaseAll() {
+        long now = now();
+        queueLeases.values().forEach(leases -> leases.drop(now));
+        queueLeases.clear();
+
+        Flux.fromIterable(retiredLeases)
+                .flatMap(retired -> queueRepo.releaseLease(retired.queueId, retired.lease))
+                .then()
+                .block(Duration.ofSeconds(leaseTtl));
+        retiredLeases.clear();
+    }
+
+    private static long now() {
+        return Instant.now().getEpochSecond();
+    }
+
+    private class QueueLeases {
+        private final String queueId;
+        private volatile LocalLease current;
+        private LocalLease prefetched;
+        private Mono<LocalLease> pending;
+        /**
+         * No longer the queue's entry, callers holding on to it start over.
+         */
+        private boolean dropped;
+
+        QueueLeases(String queueId) {
+            this.queueId = queueId;
+        }
+
+        Mono<Long> nextPosition() {
+            return Mono.defer(() -> {
+                LocalLease lease = current;
+                long position = lease == null ? -1 : lease.take();
+                if (position > 0) {
+                    if (lease.remaining() <= leaseSize / 4) {
+                        prefetch();
+                    }
+                    return Mono.just(position);
+                }
+
+                if (promote(lease)) {
+                    return nextPosition();
+                }
+                Mono<LocalLease> fetched = fetch();
+                if (fetched == null) {
+                    return nextLeasedPosition(queueId);
+                }
+                return fetched.flatMap(fetchedLease -> nextPosition());
+            });
+        }
+
+        /**
+         * Swap in the prefetched lease once the current one runs out.
+         *
+         * @return whether there is a different current lease to take positions from.
+         */
+        private synchronized boolean promote(LocalLease exhausted) {
+            if (current != exhausted) {
+                return current != null;
+            }
+            if (prefetched == null) {
+                return false;
+            }
+            retire(exhausted, now());
+            current = prefetched;
+            prefetched = null;
+            return true;
+        }
+
+        private synchronized void prefetch() {
+            if (prefetched == null && pending == null && !dropped) {
+                fetch().subscribe(lease -> { }, e -> log.warn("Failed to prefetch positions of {}", queueId, e));
+            }
+        }
+
+        /**
+         * @return the lease being fetched, empty if the queue is gone, or null if this entry was dropped.
+         */
+        private synchronized Mono<LocalLease> fetch() {
+            if (dropped) {
+                return null;
+            }
+            if (pending == null) {
+                pending = queueRepo.reserveTail(queueId, leaseSize, now() + leaseTtl)
+                        .map(LocalLease::new)
+                        .doOnNext(this::accept)
+                        .switchIfEmpty(Mono.fromRunnable(() -> dropLeases(queueId)))
+                        .doFinally(signal -> clearPending())
+                        .cache();
+            }
+            return pending;
+        }
+
+        private synchronized void clearPending() {
+            pending = null;
+        }
+
+        private synchronized void accept(LocalLease lease) {
+            if (dropped) {
+                retire(lease, now());
+            } else if (current == null || current.remaining() == 0) {
+                if (current != null) {
+                    retire(current, now());
+                }
+                current = lease;
+            } else if (prefetched == null) {
+                prefetched = lease;
+            } else {
+                retire(lease, now());
+            }
+        }
+
+        /**
+         * Retire leases once traffic stops or before their records expire in Redis, and forget the queue
+         * when it has none left.
+         */
+        synchronized void retireStale(long now) {
+            boolean idle = current == null || now - current.lastUsedTime > maxIdle;
+            if (current != null && (idle || current.isOld(now))) {
+                retire(current, now);
+                current = null;
+            }
+            if (prefetched != null && (idle || prefetched.isOld(now))) {
+                retire(prefetched, now);
+                prefetched = null;
+            }
+            if (current == null && prefetched != null) {
+                current = prefetched;
+                prefetched = null;
+            }
+            if (current == null && pending == null) {
+                dropped = true;
+                queueLeases.remove(queueId, this);
+            }
+        }
+
+        synchronized void drop(long now) {
+            dropped = true;
+            queueLeases.remove(queueId, this);
+            if (current != null) {
+                retire(current, now);
+                current = null;
+            }
+            if (prefetched != null) {
+                retire(prefetched, now);
+                prefetched = null;
+            }
+        }
+
+        private void retire(LocalLease lease, long now) {
+            lease.close();
+            retiredLeases.add(new RetiredLease(queueId, lease.lease, now));
+        }
+    }
+
+    private class LocalLease {
+        private final PositionLease lease;
+        private final AtomicLong cursor;
+        private final long leaseTime;
+        private volatile long lastUsedTime;
+
+        LocalLease(PositionLease lease) {
+            this.lease = lease;
+            this.cursor = new AtomicLong(lease.getFirst());
+            this.leaseTime = now();
+            this.lastUsedTime = leaseTime;
+        }
+
+        long take() {
+            long position = cursor.getAndIncrement();
+            if (position > lease.getLast()) {
+                return -1;
+            }
+            lastUsedTime = now();
+            return position;
+        }
+
+        long remaining() {
+            return Math.max(0, lease.getLast() - cursor.get() + 1);
+        }
+
+        void close() {
+            cursor.set(lease.getLast() + 1);
+        }
+
+        boolean isOld(long now) {
+            return now - leaseTime > leaseTtl / 2;
+        }
+    }
+
+    private static class RetiredLease {
+        private final String queueId;
+        private final PositionLease lease;
+        private final long retireTime;
+
+        RetiredLease(String queueId, PositionLease lease, long retireTime) {
+            this.queueId = queueId;
+            this.lease = lease;
+            this.retireTime = retireTime;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.openqueue.service;
+
+/**
+ * What the services tell whoever moves queues forward, so a queue is pushed as soon as it can admit someone
+ * instead of at the next sweep.
+ *
+ * @author chenjing
+ */
+public interface QueueEvents {
+
+    /**
+     * A ticket was issued. It may be admitted right away if the queue had capacity left.
+     */
+    void onTicketIssued(String queueId);
+
+    /**
+     * Capacity was freed in the queue, such as by a revoked ticket.
+     */
+    void requestPush(String queueId);
+
+    /**
+     * A ticket of the queue expires at {@code expirationTime} (epoch seconds), freeing its slot.
+     */
+    void scheduleWakeUp(String queueId, long expirationTime);
+}
@@ -1,21 +1,32 @@
 package io.openqueue.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import io.openqueue.common.api.ResponseBody;
 import io.openqueue.common.api.ResultCode;
+import io.openqueue.common.exception.TicketServiceException;
+import io.openqueue.common.util.QueueCodec;
 import io.openqueue.common.util.RandomCodeGenerator;
-import io.openqueue.common.util.TypeConverter;
 import io.openqueue.dto.QueueConfigDto;
 import io.openqueue.dto.QueueSetupDto;
 import io.openqueue.dto.QueueStatusDto;
 import io.openqueue.model.Queue;
 import io.openqueue.repo.QueueRepo;
+import io.openqueue.repo.QueueStatusFeed;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.*;
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author chenjing
@@ -23,11 +34,56 @@ import java.util.*;
 @Service
 public class QueueService {
 
+    private static final int MAX_QUEUE_ID_ATTEMPTS = 3;
+
+    private static final class StatusSnapshot {
+        private final QueueStatusDto status;
+        private final String eTag;
+        private final long expirationTime;
+
+        private StatusSnapshot(QueueStatusDto status, long expirationTime) {
+            this.status = status;
+            this.eTag = "\"" + status.getHead() + "-" + status.getTail() + "\"";
+            this.expirationTime = expirationTime;
+        }
+    }
+
     @Autowired
     private QueueRepo queueRepo;
 
+    @Autowired
+    private QueueStatusFeed queueStatusFeed;
+
+    @Autowired
+    private PositionLeaseManager positionLeaseManager;
+
+    @Value("${openqueue.stream.min-interval:1000}")
+    private long streamIntervalMillis;
+
+    @Value("${openqueue.status.max-age:2}")
+    private int statusMaxAgeSeconds;
+
+    @Value("${openqueue.status.max-size:10000}")
+    private long statusMaxSize;
+
+    private Duration statusMaxAge;
+
+    /**
+     * Status of recently asked queues. Requests for a queue that is being loaded wait for that load.
+     */
+    private AsyncCache<String, StatusSnapshot> statusSnapshots;
+
+    @PostConstruct
+    public void init() {
+        statusMaxAge = Duration.ofSeconds(statusMaxAgeSeconds);
+        statusSnapshots = Caffeine.newBuilder()
+                .maximumSize(statusMaxSize)
+                .expireAfterWrite(statusMaxAge)
+                .buildAsync();
+    }
+
     public Mono<ResponseEntity<ResponseBody>> setupQueue(QueueConfigDto queueConfigDto) {
-        Queue queue = TypeConverter.cast(queueConfigDto, Queue.class);
+        Queue queue = QueueCodec.fromConfig(queueConfigDto);
 
         QueueSetupDto queueSetupDto = QueueSetupDto.builder()
                 .callbackFormat(queueConfigDto.getCallbackURL() + "?opqticket=xxxxxx")
@@ -35,53 +91,114 @@ public class QueueService {
 
         ResponseBody responseBody = new ResponseBody(ResultCode.SETUP_QUEUE_SUCCESS, queueSetupDto);
 
-        return getQueueId()
+        return reserveQueueId()
                 .flatMap(qid -> {
                     queue.setId(qid);
                     queueSetupDto.setQueueId(qid);
                     queueSetupDto.setQueueUrl("webapp.openqueue.cloud/q/" + qid.split(":")[1]);
                     return queueRepo.createOrUpdate(queue);
                 })
-                .flatMap(newQueue -> queueRepo.addToSet(newQueue.getId()))
                 .thenReturn(ResponseEntity.status(HttpStatus.CREATED).body(responseBody));
 
     }
 
-    private Mono<String> getQueueId() {
-        String qid = RandomCodeGenerator.getQueueId();
-
-        return queueRepo.findAllId()
-                .reduce(new HashSet<String>(), (set, id) -> {
-                    set.add(id);
-                    return set;
-                })
-                .defaultIfEmpty(new HashSet<>())
-                .flatMap(allQueues -> {
-                    if (allQueues.contains(qid)) {
-                        return getQueueId();
-                    }
-                    return Mono.just(qid);
-                });
+    /**
+     * Claim a random id by adding it to the registry, so no other queue can take it, without reading the registry.
+     */
+    private Mono<String> reserveQueueId() {
+        return Mono.defer(() -> {
+            String qid = RandomCodeGenerator.getQueueId();
+            return queueRepo.addToSet(qid)
+                    .filter(Boolean::booleanValue)
+                    .map(added -> qid);
+        }).repeatWhenEmpty(MAX_QUEUE_ID_ATTEMPTS, attempts -> attempts);
     }
 
-    public Mono<ResponseEntity<ResponseBody>> getQueueStatus(String queueId) {
-        return queueRepo.findById(queueId)
-                .flatMap(queue -> {
-                    QueueStatusDto queueStatusDto = QueueStatusDto.builder()
-                            .head(queue.getHead())
-                            .tail(queue.getTail())
-                            .build();
-                    ResponseBody responseBody = new ResponseBody(ResultCode.GET_QUEUE_STATUS_SUCCESS, queueStatusDto);
-                    return Mono.just(ResponseEntity.ok(responseBody));
+    /**
+     * Head and tail of the queue, read from Redis at most once per {@code openqueue.status.max-age} on this node.
+     * The response is tagged with its head and tail and may be cached publicly until the snapshot is renewed, a
+     * matching {@code If-None-Match} is answered with 304 and no body.
+     */
+    public Mono<ResponseEntity<ResponseBody>> getQueueStatus(String queueId, String ifNoneMatch) {
+        return Mono.fromFuture(statusSnapshots.get(queueId, (id, executor) -> loadStatusSnapshot(id).toFuture()))
+                .map(snapshot -> {
+                    long maxAge = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(
+                            snapshot.expirationTime - System.currentTimeMillis() + 999));
+                    CacheControl cacheControl = CacheControl.maxAge(maxAge, TimeUnit.SECONDS).cachePublic();
+                    if (eTagMatches(ifNoneMatch, snapshot.eTag)) {
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                                .eTag(snapshot.eTag)
+                                .cacheControl(cacheControl)
+                                .<ResponseBody>build();
+                    }
+                    return ResponseEntity.ok()
+                            .eTag(snapshot.eTag)
+                            .cacheControl(cacheControl)
+                            .body(new ResponseBody(ResultCode.GET_QUEUE_STATUS_SUCCESS, snapshot.status));
                 })
                 .defaultIfEmpty(ResponseEntity.status(HttpStatus.NOT_FOUND)
                         .body(new ResponseBody(ResultCode.QUEUE_NOT_EXIST_EXCEPTION)));
     }
 
-    public Mono<ResponseEntity<ResponseBody>> getQueueConfig(String queueId) {
+    /**
+     * Empty if the queue does not exist, which the cache does not keep.
+     */
+    private Mono<StatusSnapshot> loadStatusSnapshot(String queueId) {
         return queueRepo.findById(queueId)
+                .map(queue -> new StatusSnapshot(
+                        QueueStatusDto.builder()
+                                .head(queue.getHead())
+                                .tail(queue.getTail())
+                                .build(),
+                        System.currentTimeMillis() + statusMaxAge.toMillis()));
+    }
+
+    private static boolean eTagMatches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Current head and tail of the queue, then each move of the head at most once per
+     * {@code openqueue.stream.min-interval}. With a {@code position}, the stream ends with a {@code ready} event once
+     * the head reaches it.
+     * <p>
+     * The tail in an event is only as fresh as the head move that sent it: tickets issued since show up with the next
+     * one.
+     */
+    public Flux<ServerSentEvent<QueueStatusDto>> streamQueueStatus(String queueId, Long position) {
+        Mono<QueueStatusDto> current = queueRepo.findById(queueId)
+                .map(queue -> QueueStatusDto.builder()
+                        .head(queue.getHead())
+                        .tail(queue.getTail())
+                        .build())
+                .switchIfEmpty(Mono.error(new TicketServiceException(ResultCode.QUEUE_NOT_EXIST_EXCEPTION, HttpStatus.NOT_FOUND)));
+        AtomicInteger lastHead = new AtomicInteger(-1);
+
+        // Updates are listened to before the current status is read, so none falls in between.
+        return Flux.merge(queueStatusFeed.updates(queueId).sample(Duration.ofMillis(streamIntervalMillis)), current)
+                .filter(status -> lastHead.getAndAccumulate(status.getHead(), Math::max) < status.getHead())
+                .takeUntil(status -> position != null && status.getHead() >= position)
+                .map(status -> ServerSentEvent.builder(status)
+                        .event(position != null && status.getHead() >= position ? "ready" : "status")
+                        .build());
+    }
+
+    public Mono<ResponseEntity<ResponseBody>> getQueueConfig(String queueId) {
+        return queueRepo.findConfigById(queueId)
                 .flatMap(queue -> {
-                    QueueConfigDto queueConfigDto = TypeConverter.cast(queue, QueueConfigDto.class);
+                    QueueConfigDto queueConfigDto = QueueCodec.toConfig(queue);
                     ResponseBody responseBody = new ResponseBody(ResultCode.GET_QUEUE_CONFIG_SUCCESS, queueConfigDto);
                     return Mono.just(ResponseEntity.ok(responseBody));
                 })
@@ -90,11 +207,11 @@ public class QueueService {
     }
 
     public Mono<ResponseEntity<ResponseBody>> updateQueueConfig(String queueId, QueueConfigDto queueConfigDto) {
-        return queueRepo.findById(queueId)
+        return queueRepo.findConfigById(queueId)
                 .flatMap(queue -> {
-                    Queue newQueue = TypeConverter.cast(queueConfigDto, Queue.class);
+                    Queue newQueue = QueueCodec.fromConfig(queueConfigDto);
                     newQueue.setId(queue.getId());
-                    return queueRepo.createOrUpdate(newQueue);
+                    return queueRepo.updateConfig(newQueue);
                 })
                 .flatMap(queue -> Mono.just(ResponseEntity.ok().body(new ResponseBody(ResultCode.UPDATE_QUEUE_CONFIG_SUCCESS))))
                 .defaultIfEmpty(ResponseEntity.status(HttpStatus.NOT_FOUND)
@@ -102,8 +219,9 @@ public class QueueService {
     }
 
     public Mono<ResponseEntity<ResponseBody>> closeQueue(String queueId) {
-        return queueRepo.findById(queueId)
+        return queueRepo.findConfigById(queueId)
                 .flatMap(queue -> queueRepo.close(queue.getId()))
+                .doOnNext(closed -> positionLeaseManager.dropLeases(queueId))
                 .flatMap(success -> {
                     if (success) {
                         ResponseBody responseBody = new ResponseBody(ResultCode.CLOSE_QUEUE_SUCCESS);
@@ -3,20 +3,29 @@ package io.openqueue.service;
 import io.openqueue.common.api.ResponseBody;
 import io.openqueue.common.api.ResultCode;
 import io.openqueue.common.exception.TicketServiceException;
+import io.openqueue.common.util.AuthUtil;
 import io.openqueue.common.util.RandomCodeGenerator;
 import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.dto.TicketAuthRequestDto;
+import io.openqueue.dto.TicketAuthResultDto;
+import io.openqueue.dto.TicketDetailDto;
 import io.openqueue.dto.TicketUsageStatDto;
 import io.openqueue.model.Ticket;
+import io.openqueue.repo.ActiveTicketFilter;
 import io.openqueue.repo.QueueRepo;
 import io.openqueue.repo.TicketRepo;
+import io.openqueue.repo.TicketUsageCounter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.Instant;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static io.openqueue.common.constant.Keys.ACTIVE_SET_PREFIX;
 import static io.openqueue.common.constant.Keys.READY_SET_PREFIX;
@@ -27,32 +36,60 @@ import static io.openqueue.common.constant.Keys.READY_SET_PREFIX;
 @Service
 public class TicketService {
 
+    public static final int MAX_TICKETS_PER_BATCH = 10000;
+
+    public static final int MAX_AUTHORIZATIONS_PER_BATCH = 1000;
+
+    private static final int BATCH_LEASE_TIME = 60;
+
+    /**
+     * Sent on every protected page view, so it is built once.
+     */
+    private static final ResponseEntity<ResponseBody> AUTHORIZED_RESPONSE =
+            ResponseEntity.ok(new ResponseBody(ResultCode.TICKET_AUTHORIZED_SUCCESS));
+
     @Autowired
     private TicketRepo ticketRepo;
 
     @Autowired
     private QueueRepo queueRepo;
 
+    @Autowired
+    private PositionLeaseManager positionLeaseManager;
+
+    @Autowired
+    private TicketSigner ticketSigner;
+
+    @Autowired
+    private QueueEvents queueEvents;
+
+    @Autowired
+    private ActiveTicketFilter activeTicketFilter;
+
+    @Autowired
+    private TicketUsageCounter ticketUsageCounter;
+
     public Mono<ResponseEntity<ResponseBody>> applyTicket(String queueId) {
-        return queueRepo.findById(queueId)
-                .hasElement()
-                .flatMap(hasElement -> {
-                    if (!hasElement) {
-                        throw new TicketServiceException(ResultCode.QUEUE_NOT_EXIST_EXCEPTION, HttpStatus.NOT_FOUND);
-                    }
-                    return Mono.empty();
-                })
-                .then(queueRepo.incAndGetTail(queueId))
-                .flatMap(position -> {
-                    String authCode = RandomCodeGenerator.getCode();
-                    String ticketId = "t:" + queueId + ":" + position;
-                    Ticket ticket = Ticket.builder()
-                            .id(ticketId)
-                            .issueTime(Instant.now().getEpochSecond())
-                            .authCode(authCode)
-                            .build();
-                    return ticketRepo.create(ticket);
-                })
+        long issueTime = Instant.now().getEpochSecond();
+
+        Mono<Ticket> issuedTicket;
+        if (positionLeaseManager.isEnabled()) {
+            issuedTicket = positionLeaseManager.nextPosition(queueId)
+                    .map(position -> newTicket("t:" + queueId + ":" + position, issueTime))
+                    .flatMap(ticketRepo::create)
+                    .doOnNext(ticket -> queueEvents.onTicketIssued(queueId));
+        } else if (ticketSigner.isEnabled()) {
+            // Signed auth codes depend on the position, so the position is leased first and the ticket written
+            // along with its code.
+            issuedTicket = createInLease(queueId, 1, issueTime).singleOrEmpty();
+        } else {
+            issuedTicket = ticketRepo.issue(queueId, RandomCodeGenerator.getCode(), issueTime)
+                    .doOnNext(ticket -> queueEvents.onTicketIssued(queueId));
+        }
+
+        return issuedTicket
+                .switchIfEmpty(Mono.defer(() -> Mono.error(
+                        new TicketServiceException(ResultCode.QUEUE_NOT_EXIST_EXCEPTION, HttpStatus.NOT_FOUND))))
                 .flatMap(ticket -> {
                             ResponseBody responseBody = new ResponseBody(ResultCode.APPLY_TICKET_SUCCESS, ticket);
                             return Mono.just(ResponseEntity.status(HttpStatus.CREATED).body(responseBody));
@@ -60,7 +97,52 @@ public class TicketService {
                 );
     }
 
+    public Flux<TicketDetailDto> applyTickets(String queueId, int count) {
+        if (count < 1 || count > MAX_TICKETS_PER_BATCH) {
+            throw new TicketServiceException(ResultCode.ILLEGAL_TICKET_BATCH_SIZE_EXCEPTION, HttpStatus.BAD_REQUEST);
+        }
+
+        long issueTime = Instant.now().getEpochSecond();
+        return createInLease(queueId, count, issueTime)
+                .switchIfEmpty(Mono.defer(() -> Mono.error(
+                        new TicketServiceException(ResultCode.QUEUE_NOT_EXIST_EXCEPTION, HttpStatus.NOT_FOUND))))
+                .map(ticket -> TicketDetailDto.builder()
+                        .ticketId(ticket.getId())
+                        .issueTime(Instant.ofEpochSecond(ticket.getIssueTime()))
+                        .authCode(ticket.getAuthCode())
+                        .build());
+    }
+
+    /**
+     * Lease {@code count} positions off the tail and write a ticket at each, empty if the queue does not exist.
+     */
+    private Flux<Ticket> createInLease(String queueId, int count, long issueTime) {
+        return queueRepo.reserveTail(queueId, count, issueTime + BATCH_LEASE_TIME)
+                .flatMapMany(lease -> {
+                    Flux<Ticket> tickets = Flux.range(0, count)
+                            .map(offset -> newTicket("t:" + queueId + ":" + (lease.getFirst() + offset), issueTime));
+                    // Once written, or given up, the scheduler no longer needs to wait for these positions.
+                    return ticketRepo.createAll(tickets)
+                            .doFinally(signal -> queueRepo.releaseLease(queueId, lease)
+                                    .doFinally(released -> queueEvents.onTicketIssued(queueId))
+                                    .subscribe());
+                });
+    }
+
+    private Ticket newTicket(String ticketId, long issueTime) {
+        String authCode = ticketSigner.isEnabled() ? ticketSigner.sign(ticketId) : RandomCodeGenerator.getCode();
+        return Ticket.builder()
+                .id(ticketId)
+                .issueTime(issueTime)
+                .authCode(authCode)
+                .build();
+    }
+
     public Mono<ResponseEntity<ResponseBody>> getTicketUsageStat(TicketAuthDto ticketAuthDto) {
+        if (!activeTicketFilter.mightBeActive(ticketAuthDto.getQueueId(), ticketAuthDto.getPosition())) {
+            return Mono.error(new TicketServiceException(ResultCode.TICKET_NOT_ACTIVE_EXCEPTION, HttpStatus.PRECONDITION_FAILED));
+        }
+
         String queueActiveSetKey = ACTIVE_SET_PREFIX + ticketAuthDto.getQueueId();
         return ticketRepo.isTicketInSet(queueActiveSetKey, ticketAuthDto.getToken())
                 .flatMap(active -> {
@@ -72,7 +154,7 @@ public class TicketService {
                 .then(ticketRepo.findById(ticketAuthDto.getTicketId()))
                 .flatMap(ticket -> {
                     TicketUsageStatDto ticketUsageStatDto = TicketUsageStatDto.builder()
-                            .countOfUsage(ticket.getCountOfUsage())
+                            .countOfUsage(ticket.getCountOfUsage() + (int) ticketUsageCounter.pending(ticket.getId()))
                             .activateTime(ticket.getActivateTime())
                             .build();
                     return Mono.just(ResponseEntity.ok(new ResponseBody(ResultCode.GET_TICKET_USAGE_STAT_SUCCESS, ticketUsageStatDto)));
@@ -84,26 +166,105 @@ public class TicketService {
             throw new TicketServiceException(ResultCode.MISMATCH_QUEUE_ID_EXCEPTION, HttpStatus.CONFLICT);
         }
 
-        String queueActiveSetKey = ACTIVE_SET_PREFIX + ticketAuthDto.getQueueId();
+        if (!activeTicketFilter.mightBeActive(ticketAuthDto.getQueueId(), ticketAuthDto.getPosition())) {
+            return Mono.error(new TicketServiceException(ResultCode.TICKET_NOT_ACTIVE_EXCEPTION, HttpStatus.PRECONDITION_FAILED));
+        }
 
-        return ticketRepo.isTicketInSet(queueActiveSetKey, ticketAuthDto.getToken())
-                .flatMap(active -> {
-                    if (!active) {
-                        throw new TicketServiceException(ResultCode.TICKET_NOT_ACTIVE_EXCEPTION, HttpStatus.PRECONDITION_FAILED);
+        String queueActiveSetKey = ACTIVE_SET_PREFIX + ticketAuthDto.getQueueId();
+        int usageIncrement = ticketUsageCounter.isEnabled() ? 0 : 1;
+        return ticketRepo.authorize(queueActiveSetKey, ticketAuthDto.getTicketId(), ticketAuthDto.getToken(), usageIncrement)
+                .map(status -> {
+                    switch (status) {
+                        case TicketRepo.AUTHORIZED:
+                            if (ticketUsageCounter.isEnabled()) {
+                                ticketUsageCounter.increment(ticketAuthDto.getTicketId());
+                            }
+                            return AUTHORIZED_RESPONSE;
+                        case TicketRepo.OCCUPIED:
+                            throw new TicketServiceException(ResultCode.TICKET_OCCUPIED_EXCEPTION, HttpStatus.CONFLICT);
+                        default:
+                            throw new TicketServiceException(ResultCode.TICKET_NOT_ACTIVE_EXCEPTION, HttpStatus.PRECONDITION_FAILED);
                     }
-                    return Mono.empty();
-                })
-                .then(ticketRepo.findById(ticketAuthDto.getTicketId()))
-                .flatMap(ticket -> {
-                    if (ticket.isOccupied()) {
-                        throw new TicketServiceException(ResultCode.TICKET_OCCUPIED_EXCEPTION, HttpStatus.CONFLICT);
+                });
+    }
+
+    /**
+     * Authorize each ticket as {@link #getTicketAuthorization} would, but answer every ticket in one response, in
+     * the order given. Tickets that fail the local checks are answered without touching Redis, the others are checked
+     * in one pipelined batch.
+     */
+    public Mono<ResponseEntity<ResponseBody>> getTicketAuthorizations(List<TicketAuthRequestDto> requests) {
+        if (requests == null || requests.isEmpty() || requests.size() > MAX_AUTHORIZATIONS_PER_BATCH) {
+            throw new TicketServiceException(ResultCode.ILLEGAL_TICKET_BATCH_SIZE_EXCEPTION, HttpStatus.BAD_REQUEST);
+        }
+
+        TicketAuthResultDto[] results = new TicketAuthResultDto[requests.size()];
+        List<Integer> pendingIndexes = new ArrayList<>(requests.size());
+        List<TicketAuthDto> pendingTickets = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            TicketAuthRequestDto request = requests.get(i);
+            TicketAuthDto ticketAuthDto = request == null || request.getTicket() == null
+                    ? null
+                    : AuthUtil.parseTicketToken(request.getTicket());
+            ResultCode rejection = ticketAuthDto == null
+                    ? ResultCode.ILLEGAL_TICKET_AUTH_FORMAT_EXCEPTION
+                    : checkBeforeAuthorize(ticketAuthDto, "q:" + request.getQid());
+            if (rejection != null) {
+                results[i] = authResult(rejection);
+            } else {
+                pendingIndexes.add(i);
+                pendingTickets.add(ticketAuthDto);
+            }
+        }
+
+        int usageIncrement = ticketUsageCounter.isEnabled() ? 0 : 1;
+        return ticketRepo.authorizeAll(pendingTickets, usageIncrement)
+                .index()
+                .doOnNext(status -> {
+                    TicketAuthDto ticketAuthDto = pendingTickets.get(status.getT1().intValue());
+                    ResultCode resultCode;
+                    switch (status.getT2()) {
+                        case TicketRepo.AUTHORIZED:
+                            if (ticketUsageCounter.isEnabled()) {
+                                ticketUsageCounter.increment(ticketAuthDto.getTicketId());
+                            }
+                            resultCode = ResultCode.TICKET_AUTHORIZED_SUCCESS;
+                            break;
+                        case TicketRepo.OCCUPIED:
+                            resultCode = ResultCode.TICKET_OCCUPIED_EXCEPTION;
+                            break;
+                        default:
+                            resultCode = ResultCode.TICKET_NOT_ACTIVE_EXCEPTION;
                     }
-                    return Mono.empty();
+                    results[pendingIndexes.get(status.getT1().intValue())] = authResult(resultCode);
                 })
-                .then(ticketRepo.incUsage(ticketAuthDto.getTicketId()))
-                .flatMap(usage -> {
-                    return Mono.just(ResponseEntity.ok(new ResponseBody(ResultCode.TICKET_AUTHORIZED_SUCCESS)));
-                });
+                .then(Mono.fromSupplier(() -> ResponseEntity.ok(
+                        new ResponseBody(ResultCode.GET_TICKET_AUTHORIZATIONS_SUCCESS, Arrays.asList(results)))));
+    }
+
+    /**
+     * The checks the controller and {@link #getTicketAuthorization} make before going to Redis.
+     *
+     * @return why the ticket is turned away, or null if it has to be checked in Redis.
+     */
+    private ResultCode checkBeforeAuthorize(TicketAuthDto ticketAuthDto, String qid) {
+        if (ticketAuthDto == null) {
+            return ResultCode.ILLEGAL_TICKET_AUTH_FORMAT_EXCEPTION;
+        }
+        if (ticketSigner.isEnabled() && !ticketSigner.verify(ticketAuthDto.getTicketId(), ticketAuthDto.getAuthCode())) {
+            return ResultCode.MISMATCH_TICKET_AUTH_CODE_EXCEPTION;
+        }
+        if (!qid.equals(ticketAuthDto.getQueueId())) {
+            return ResultCode.MISMATCH_QUEUE_ID_EXCEPTION;
+        }
+        if (!activeTicketFilter.mightBeActive(ticketAuthDto.getQueueId(), ticketAuthDto.getPosition())) {
+            return ResultCode.TICKET_NOT_ACTIVE_EXCEPTION;
+        }
+        return null;
+    }
+
+    private static TicketAuthResultDto authResult(ResultCode resultCode) {
+        return new TicketAuthResultDto(resultCode.getCode(), resultCode.getMessage());
     }
 
     public Mono<ResponseEntity<ResponseBody>> setTicketOccupied(TicketAuthDto ticketAuthDto) {
@@ -140,8 +301,17 @@ public class TicketService {
                 .thenReturn(ResponseEntity.ok(new ResponseBody(ResultCode.ACTIVATE_TICKET_SUCCESS)));
     }
 
-    private Mono<Ticket> validateTicket(TicketAuthDto ticketAuthDto) {
+    private Mono<Void> validateTicket(TicketAuthDto ticketAuthDto) {
         TicketServiceException ticketServiceException = new TicketServiceException(ResultCode.MISMATCH_TICKET_AUTH_CODE_EXCEPTION, HttpStatus.UNAUTHORIZED);
+
+        // A signed auth code proves itself, no need to read the ticket.
+        if (ticketSigner.isEnabled()) {
+            if (!ticketSigner.verify(ticketAuthDto.getTicketId(), ticketAuthDto.getAuthCode())) {
+                return Mono.error(ticketServiceException);
+            }
+            return Mono.empty();
+        }
+
         return ticketRepo.findById(ticketAuthDto.getTicketId())
                 .flatMap(ticket -> {
                     if (!ticketAuthDto.getAuthCode().equals(ticket.getAuthCode())) {
@@ -152,36 +322,56 @@ public class TicketService {
                 .switchIfEmpty(Mono.error(ticketServiceException))
                 .onErrorResume(throwable -> {
                     throw ticketServiceException;
-                });
+                })
+                .then();
     }
 
     private Mono<Void> doActivatedTicket(TicketAuthDto ticketAuthDto) {
         String queueActiveSetKey = ACTIVE_SET_PREFIX + ticketAuthDto.getQueueId();
         String queueReadySetKey = READY_SET_PREFIX + ticketAuthDto.getQueueId();
 
-        return queueRepo.findById(ticketAuthDto.getQueueId())
+        return queueRepo.findConfigById(ticketAuthDto.getQueueId())
                 .flatMap(queue -> {
                     long expirationTime = Instant.now().getEpochSecond() + queue.getAvailableSecondPerUser();
-                    return ticketRepo.addToSet(queueActiveSetKey, ticketAuthDto.getToken(), expirationTime);
+                    return ticketRepo.addToSet(queueActiveSetKey, ticketAuthDto.getToken(), expirationTime)
+                            .then(activeTicketFilter.activated(ticketAuthDto.getQueueId(), ticketAuthDto.getPosition(), expirationTime))
+                            .doOnSuccess(added -> queueEvents.scheduleWakeUp(ticketAuthDto.getQueueId(), expirationTime));
                 })
-                .then(ticketRepo.incUsage(ticketAuthDto.getTicketId()))
+                .then(countUsage(ticketAuthDto.getTicketId()))
                 .then(ticketRepo.setActivateTime(ticketAuthDto.getTicketId(), Instant.now().getEpochSecond()))
                 .then(ticketRepo.removeOutOfSetById(queueReadySetKey, ticketAuthDto.getTicketId()))
                 .then();
     }
 
-    public Mono<ResponseEntity<ResponseBody>> revokeTicket(TicketAuthDto ticketAuthDto) {
-        Ticket ticket = ticketRepo.findById(ticketAuthDto.getTicketId()).block();
-        if (ticket == null || !ticketAuthDto.getAuthCode().equals(ticket.getAuthCode())) {
-            throw new TicketServiceException(ResultCode.MISMATCH_TICKET_AUTH_CODE_EXCEPTION, HttpStatus.UNAUTHORIZED);
+    private Mono<Void> countUsage(String ticketId) {
+        if (ticketUsageCounter.isEnabled()) {
+            return Mono.fromRunnable(() -> ticketUsageCounter.increment(ticketId));
         }
+        return ticketRepo.incUsage(ticketId).then();
+    }
 
+    public Mono<ResponseEntity<ResponseBody>> revokeTicket(TicketAuthDto ticketAuthDto) {
         String queueActiveSetKey = ACTIVE_SET_PREFIX + ticketAuthDto.getQueueId();
         String queueReadySetKey = READY_SET_PREFIX + ticketAuthDto.getQueueId();
 
-        return ticketRepo.removeOutOfSetById(queueActiveSetKey, ticketAuthDto.getToken())
-                .then(ticketRepo.removeOutOfSetById(queueReadySetKey, ticketAuthDto.getToken()))
-                .then(ticketRepo.revoke(ticketAuthDto.getTicketId()))
+        return validateTicket(ticketAuthDto)
+                .then(ticketRepo.removeOutOfSetById(queueActiveSetKey, ticketAuthDto.getToken()))
+                .flatMap(removedActive -> {
+                    if (removedActive > 0) {
+                        return activeTicketFilter.revoked(ticketAuthDto.getQueueId(), ticketAuthDto.getPosition())
+                                .thenReturn(removedActive);
+                    }
+                    return Mono.just(removedActive);
+                })
+                .flatMap(removedActive -> ticketRepo.removeOutOfSetById(queueReadySetKey, ticketAuthDto.getTicketId())
+                        .map(removedReady -> removedActive + removedReady))
+                .flatMap(freedSlots -> ticketRepo.revoke(ticketAuthDto.getTicketId())
+                        .doOnSuccess(revoked -> {
+                            // The slot goes to the next user right away instead of at the next sweep.
+                            if (freedSlots > 0) {
+                                queueEvents.requestPush(ticketAuthDto.getQueueId());
+                            }
+                        }))
                 .thenReturn(ResponseEntity.accepted().body(new ResponseBody(ResultCode.REVOKE_TICKET_SUCCESS)));
     }
 }
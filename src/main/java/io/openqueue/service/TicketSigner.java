@@ -0,0 +1,120 @@
+package io.openqueue.service;
+
+import io.openqueue.common.util.RandomCodeGenerator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Signs ticket auth codes with an HMAC over the ticket id, that is queue id and position, so a ticket token can be
+ * authenticated in memory instead of being compared with the auth code stored in Redis.
+ * <p>
+ * The signature is the signing key's id followed by a fixed width MAC, which keeps it within the
+ * ticket token's alphanumeric auth code format. The first configured key signs new tickets and
+ * every configured key is accepted, so keys can be rotated without invalidating issued tickets.
+ *
+ * @author chenjing
+ */
+@Component
+public class TicketSigner {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * Width of each half of the truncated 128-bit MAC in base 62.
+     */
+    private static final int MAC_PART_WIDTH = 11;
+
+    private static final int MAC_WIDTH = MAC_PART_WIDTH * 2;
+
+    @Value("${openqueue.token.signed:false}")
+    private boolean enabled;
+
+    /**
+     * Comma separated {@code keyId:secret} pairs, the first one is used for signing.
+     */
+    @Value("${openqueue.token.signing-keys:}")
+    private String signingKeys;
+
+    private final Map<String, SigningKey> keys = new LinkedHashMap<>();
+
+    private SigningKey activeKey;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        for (String pair : signingKeys.split(",")) {
+            int separator = pair.indexOf(':');
+            String keyId = separator > 0 ? pair.substring(0, separator).trim() : "";
+            if (!keyId.matches("[a-zA-Z0-9]+") || separator == pair.length() - 1) {
+                throw new IllegalStateException("Illegal ticket signing key, expect keyId:secret with an alphanumeric id.");
+            }
+            keys.put(keyId, new SigningKey(keyId, pair.substring(separator + 1).trim()));
+        }
+        activeKey = keys.values().iterator().next();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String sign(String ticketId) {
+        StringBuilder signature = new StringBuilder(activeKey.id.length() + MAC_WIDTH).append(activeKey.id);
+        appendMac(signature, activeKey, ticketId);
+        return signature.toString();
+    }
+
+    public boolean verify(String ticketId, String signature) {
+        if (signature == null || signature.length() <= MAC_WIDTH) {
+            return false;
+        }
+
+        SigningKey key = keys.get(signature.substring(0, signature.length() - MAC_WIDTH));
+        if (key == null) {
+            return false;
+        }
+
+        StringBuilder expected = new StringBuilder(signature.length()).append(key.id);
+        appendMac(expected, key, ticketId);
+        return MessageDigest.isEqual(expected.toString().getBytes(StandardCharsets.US_ASCII),
+                signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void appendMac(StringBuilder sb, SigningKey key, String ticketId) {
+        ByteBuffer digest = ByteBuffer.wrap(key.mac.get().doFinal(ticketId.getBytes(StandardCharsets.UTF_8)));
+
+        RandomCodeGenerator.appendFixedWidth(sb, digest.getLong(), MAC_PART_WIDTH);
+        RandomCodeGenerator.appendFixedWidth(sb, digest.getLong(), MAC_PART_WIDTH);
+    }
+
+    private static class SigningKey {
+        private final String id;
+        private final ThreadLocal<Mac> mac;
+
+        SigningKey(String id, String secret) {
+            this.id = id;
+            SecretKeySpec keySpec = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+            this.mac = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac instance = Mac.getInstance(ALGORITHM);
+                    instance.init(keySpec);
+                    return instance;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Failed to init ticket signing key " + id, e);
+                }
+            });
+        }
+    }
+}
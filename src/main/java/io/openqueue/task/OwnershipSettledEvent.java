@@ -0,0 +1,16 @@
+package io.openqueue.task;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published once this node knows which queues it owns: after its first successful heartbeat, or on start when the
+ * storage engine is local to it.
+ *
+ * @author chenjing
+ */
+public class OwnershipSettledEvent extends ApplicationEvent {
+
+    public OwnershipSettledEvent(QueueOwnership source) {
+        super(source);
+    }
+}
@@ -0,0 +1,160 @@
+package io.openqueue.task;
+
+import io.openqueue.repo.NodeRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits the queues among the live service nodes, so each node only sweeps its share.
+ * <p>
+ * Queues are owned by partition of the due queues index (see {@link io.openqueue.repo.QueueRepo#duePartitionOf}),
+ * so a node reads only the partitions it owns. Nodes announce themselves with heartbeats in Redis. A partition
+ * belongs to the node with the highest rendezvous hash for it, so when a node joins or leaves, only the partitions
+ * it gains or loses change owner. Shares are only as even as the partitions are many. While membership settles two
+ * nodes may both think they own a partition; the queue lock keeps their pushes apart.
+ *
+ * @author chenjing
+ */
+@Component
+@Slf4j
+public class QueueOwnership {
+
+    /**
+     * Absent when the storage engine is local to this node, which then owns every queue.
+     */
+    @Autowired(required = false)
+    private NodeRepo nodeRepo;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${openqueue.cluster.node-ttl:5000}")
+    private long nodeTtl;
+
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private volatile Members members = new Members(new String[0]);
+
+    @Scheduled(fixedRateString = "${openqueue.cluster.heartbeat-interval:1000}")
+    public void heartbeat() {
+        if (nodeRepo == null) {
+            return;
+        }
+        nodeRepo.heartbeat(nodeId, System.currentTimeMillis(), nodeTtl)
+                .collectList()
+                .timeout(Duration.ofMillis(nodeTtl))
+                .subscribe(nodeIds -> {
+                    updateMembers(nodeIds);
+                    settle();
+                }, e -> log.warn("Heartbeat failed, keeping the last known nodes", e));
+    }
+
+    /**
+     * Alone, this node owns every queue from the start.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void settleAlone() {
+        if (nodeRepo == null) {
+            settle();
+        }
+    }
+
+    /**
+     * Leave right away so the other nodes take over without waiting for the heartbeat to expire.
+     */
+    @PreDestroy
+    public void leave() {
+        if (nodeRepo == null) {
+            return;
+        }
+        nodeRepo.remove(nodeId).block(Duration.ofSeconds(1));
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Whether this node sweeps the partition of the due queues index. Before the first heartbeat every node sweeps
+     * everything.
+     */
+    public boolean owns(int partition) {
+        Members current = members;
+        if (current.nodeIds.length == 0) {
+            return true;
+        }
+        long partitionHash = mix(partition);
+        int owner = 0;
+        long highestScore = Long.MIN_VALUE;
+        for (int i = 0; i < current.nodeIds.length; i++) {
+            long score = mix(current.nodeHashes[i] ^ partitionHash);
+            if (score > highestScore) {
+                highestScore = score;
+                owner = i;
+            }
+        }
+        return current.nodeIds[owner].equals(nodeId);
+    }
+
+    void updateMembers(List<String> nodeIds) {
+        if (nodeIds.size() != members.nodeIds.length) {
+            log.info("Live nodes: {}", nodeIds);
+        }
+        members = new Members(nodeIds.toArray(new String[0]));
+    }
+
+    private void settle() {
+        if (settled.compareAndSet(false, true)) {
+            eventPublisher.publishEvent(new OwnershipSettledEvent(this));
+        }
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * SplitMix64 finalizer, spreads node hashes and partitions that differ in few bits.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final class Members {
+        private final String[] nodeIds;
+        private final long[] nodeHashes;
+
+        private Members(String[] nodeIds) {
+            this.nodeIds = nodeIds;
+            this.nodeHashes = new long[nodeIds.length];
+            for (int i = 0; i < nodeIds.length; i++) {
+                nodeHashes[i] = mix(hash(nodeIds[i]));
+            }
+        }
+    }
+}
@@ -1,87 +1,388 @@
 package io.openqueue.task;
 
-import io.openqueue.model.Queue;
+import io.openqueue.model.PushResult;
+import io.openqueue.model.SweepReport;
 import io.openqueue.repo.QueueRepo;
-import io.openqueue.repo.TicketRepo;
+import io.openqueue.service.QueueEvents;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
-import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.IntStream;
+import javax.annotation.PreDestroy;
 
-import static io.openqueue.common.constant.Keys.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Moves queues forward. A queue is pushed shortly after something frees capacity in it: a revoked ticket, an
+ * expiring ready or active ticket, or a new ticket in a queue that had capacity left. Requests for the same queue
+ * within the debounce window are served by one push. The periodic sweep only catches what events missed, e.g.
+ * expirations scheduled by a node that went away, and only covers the queues this node owns.
+ * <p>
+ * The sweep does not visit every queue. Each push records when the queue is next due in Redis: soon after it
+ * admitted someone, then backing off while nothing moves, never later than the next expiration. A queue with no
+ * tickets left hibernates off the index until a new ticket wakes it, so a sweep costs as much as the queues that
+ * are due, however many queues exist. Each node reads only the partitions of the index it owns.
+ * <p>
+ * A sweep runs on its own scheduler with a bounded number of pushes in flight. It stops starting pushes at its
+ * deadline and gives up on those still running then, leaving the rest due, and a sweep that comes while the
+ * previous one is still running is skipped. A push given up on keeps the queue lock until it times out.
+ *
  * @author chenjing
  */
 @Component
 @Slf4j
-public class ScheduledQueueTask {
+public class ScheduledQueueTask implements QueueEvents {
     @Autowired
     private QueueRepo queueRepo;
 
     @Autowired
-    private TicketRepo ticketRepo;
+    private QueueOwnership queueOwnership;
+
+    @Value("${openqueue.push.debounce:20}")
+    private long debounceMillis;
+
+    @Value("${openqueue.push.min-interval:5000}")
+    private long minIntervalMillis;
+
+    @Value("${openqueue.push.max-interval:60000}")
+    private long maxIntervalMillis;
+
+    @Value("${openqueue.push.sweep-concurrency:16}")
+    private int sweepConcurrency;
+
+    @Value("${openqueue.push.sweep-deadline:3000}")
+    private long sweepDeadlineMillis;
+
+    private static final int SWEEP_BATCH_SIZE = 1000;
+
+    /**
+     * Returned instead of the number of admitted users when another push holds the queue lock.
+     */
+    private static final long LOCK_BUSY = -1;
+
+    private final Scheduler sweepScheduler = Schedulers.newSingle("queue-sweep", true);
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private final AtomicLong overrunSweeps = new AtomicLong();
+
+    private final AtomicLong sweeps = new AtomicLong();
+
+    private volatile SweepReport lastSweepReport;
 
     private static final int LOCK_TIME_FOR_EACH_QUEUE = 3;
 
-    @Scheduled(fixedRate = 5000)
-    public void pushAllQueuesForward() {
+    private static final int HOLE_SCAN_ALLOWANCE = 256;
+
+    private final String lockOwnerPrefix = UUID.randomUUID().toString() + ":";
+
+    private final AtomicLong lockAcquisitions = new AtomicLong();
+
+    /**
+     * Queues with a push already on its way.
+     */
+    private final Set<String> pendingPushes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Earliest known expiration per owned queue, and the timer that will push the queue then.
+     */
+    private final Map<String, WakeUp> wakeUps = new ConcurrentHashMap<>();
+
+    /**
+     * Expirations are whole seconds, so a coarse wheel fires them on time at a fraction of the cost of a timer
+     * queue ordered by deadline.
+     */
+    private final HashedWheelTimer expirationWheel = new HashedWheelTimer(
+            new DefaultThreadFactory("expiration-wheel", true), 100, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * Whether the last push of a queue left capacity unused. Unknown queues are treated as if it did, hibernating
+     * and closed queues are dropped.
+     */
+    private final Map<String, Boolean> underCapacity = new ConcurrentHashMap<>();
+
+    /**
+     * Current sweep interval of each queue that is not hibernating.
+     */
+    private final Map<String, Long> intervals = new ConcurrentHashMap<>();
+
+    @Scheduled(fixedRateString = "${openqueue.push.sweep-interval:1000}")
+    public void pushDueQueuesForward() {
+        if (!sweeping.compareAndSet(false, true)) {
+            overrunSweeps.incrementAndGet();
+            log.warn("Previous sweep of due queues still running, skipping this one");
+            return;
+        }
+        log.debug("=======================checking due queues and pushing them forward==========================");
+
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(sweepDeadlineMillis);
+        LongAdder processed = new LongAdder();
+        LongAdder lockSkipped = new LongAdder();
+        LongAdder deferred = new LongAdder();
+        LongAdder admitted = new LongAdder();
+
+        long currentTimeMillis = System.currentTimeMillis();
+        ownedPartitions()
+                .concatMap(partition -> queueRepo.findDueIds(currentTimeMillis, partition, SWEEP_BATCH_SIZE)
+                        .timeout(timeLeft(deadline), sweepScheduler))
+                .take(SWEEP_BATCH_SIZE)
+                .publishOn(sweepScheduler)
+                // Queues are requested as push slots free up, so this is checked right before each push starts.
+                .filter(queueId -> {
+                    if (System.nanoTime() - deadline < 0) {
+                        return true;
+                    }
+                    deferred.increment();
+                    return false;
+                })
+                .flatMap(queueId -> pushQueueForward(queueId)
+                        .timeout(timeLeft(deadline), sweepScheduler)
+                        .onErrorResume(TimeoutException.class, e -> {
+                            log.warn("Push of queue {} still running at the sweep deadline, left due", queueId);
+                            deferred.increment();
+                            return Mono.empty();
+                        })
+                        .onErrorResume(e -> {
+                            log.error("Failed to push queue " + queueId, e);
+                            return Mono.empty();
+                        }), sweepConcurrency)
+                .doOnNext(result -> {
+                    if (result == LOCK_BUSY) {
+                        lockSkipped.increment();
+                    } else {
+                        processed.increment();
+                        admitted.add(result);
+                    }
+                })
+                .subscribeOn(sweepScheduler)
+                .doFinally(signal -> {
+                    SweepReport report = SweepReport.builder()
+                            .durationMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime))
+                            .processed(processed.sum())
+                            .lockSkipped(lockSkipped.sum())
+                            .deferred(deferred.sum())
+                            .admitted(admitted.sum())
+                            .overrun(overrunSweeps.getAndSet(0))
+                            .build();
+                    lastSweepReport = report;
+                    if (report.getProcessed() > 0 || report.getLockSkipped() > 0 || report.getDeferred() > 0) {
+                        log.info("Swept due queues: {}", report);
+                    }
+                    sweeping.set(false);
+                })
+                .subscribe(null, e -> log.error("Failed to sweep due queues", e));
+    }
+
+    private static Duration timeLeft(long deadline) {
+        return Duration.ofNanos(Math.max(deadline - System.nanoTime(), 0));
+    }
+
+    /**
+     * Partitions of the due queues index owned by this node, from a different one each sweep so a busy partition
+     * does not keep the others from their turn.
+     */
+    private Flux<Integer> ownedPartitions() {
+        int count = queueRepo.duePartitionCount();
+        int first = (int) (sweeps.getAndIncrement() % count);
+        return Flux.range(0, count)
+                .map(i -> (first + i) % count)
+                .filter(queueOwnership::owns);
+    }
+
+    private boolean owns(String queueId) {
+        return queueOwnership.owns(queueRepo.duePartitionOf(queueId));
+    }
+
+    public SweepReport getLastSweepReport() {
+        return lastSweepReport;
+    }
+
+    /**
+     * Put the next expiration of every owned queue that is not hibernating back on the wheel. Waits for the first
+     * heartbeat, before it this node would take every queue for its own.
+     */
+    @EventListener(OwnershipSettledEvent.class)
+    public void rebuildWakeUps() {
+        queueRepo.findScheduledIds()
+                .filter(this::owns)
+                .flatMap(queueId -> queueRepo.findNextExpiration(queueId)
+                        .doOnNext(expirationTime -> scheduleWakeUp(queueId, expirationTime)), sweepConcurrency)
+                .count()
+                .subscribe(count -> log.info("Rebuilt expiration wheel with {} queues", count),
+                        e -> log.error("Failed to rebuild expiration wheel", e));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweepScheduler.dispose();
+        expirationWheel.stop();
+    }
+
+    /**
+     * Queues set up before the due queues index existed are due right away, their first push sorts them out.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleKnownQueues() {
+        long currentTimeMillis = System.currentTimeMillis();
         queueRepo.findAllId()
-                .flatMap(this::pushQueueForward)
-                .subscribe();
-        log.info("=======================checking queues and pushing them forward==========================");
+                .buffer(SWEEP_BATCH_SIZE)
+                .concatMap(queueIds -> queueRepo.scheduleDueIfAbsent(queueIds, currentTimeMillis))
+                .reduce(0L, Long::sum)
+                .subscribe(scheduled -> {
+                    if (scheduled > 0) {
+                        log.info("Scheduled {} queues missing from the due queues index", scheduled);
+                    }
+                }, e -> log.error("Failed to schedule known queues", e));
+    }
+
+    /**
+     * Push the queue forward after the debounce window, together with any other request made until then.
+     */
+    @Override
+    public void requestPush(String queueId) {
+        if (!pendingPushes.add(queueId)) {
+            return;
+        }
+        Mono.delay(Duration.ofMillis(debounceMillis))
+                .then(Mono.defer(() -> {
+                    pendingPushes.remove(queueId);
+                    return pushQueueForward(queueId);
+                }))
+                .subscribe(admitted -> {
+                    // Someone else is pushing and may have counted before our event, so try again after them.
+                    if (admitted == LOCK_BUSY) {
+                        requestPush(queueId);
+                    }
+                }, e -> log.error("Failed to push queue " + queueId, e));
+    }
+
+    /**
+     * Pushed only if its last push left capacity unused, a full queue admits nobody new.
+     */
+    @Override
+    public void onTicketIssued(String queueId) {
+        if (underCapacity.getOrDefault(queueId, Boolean.TRUE)) {
+            requestPush(queueId);
+        }
+    }
+
+    /**
+     * Make sure the queue is pushed once {@code expirationTime} (epoch seconds) has passed. Only the owner of the
+     * queue keeps the timer, other nodes leave it to the owner and the due queues index.
+     */
+    @Override
+    public void scheduleWakeUp(String queueId, long expirationTime) {
+        if (!owns(queueId)) {
+            return;
+        }
+        wakeUps.compute(queueId, (id, scheduled) -> {
+            if (scheduled != null && scheduled.expirationTime <= expirationTime) {
+                return scheduled;
+            }
+            if (scheduled != null) {
+                scheduled.timeout.cancel();
+            }
+            long delay = Math.max(0, expirationTime * 1000 - System.currentTimeMillis());
+            WakeUp wakeUp = new WakeUp(expirationTime);
+            wakeUp.timeout = expirationWheel.newTimeout(timeout -> {
+                wakeUps.remove(queueId, wakeUp);
+                requestPush(queueId);
+            }, delay, TimeUnit.MILLISECONDS);
+            return wakeUp;
+        });
     }
 
-    private Mono<Void> pushQueueForward(String queueId) {
-        return queueRepo.getQueueLock(queueId, LOCK_TIME_FOR_EACH_QUEUE)
+    /**
+     * @return the number of admitted users, or {@link #LOCK_BUSY} if someone else is pushing the queue.
+     */
+    private Mono<Long> pushQueueForward(String queueId) {
+        String lockOwner = lockOwnerPrefix + lockAcquisitions.incrementAndGet();
+        Mono<Boolean> releaseLock = queueRepo.releaseQueueLock(queueId, lockOwner);
+
+        return queueRepo.getQueueLock(queueId, lockOwner, LOCK_TIME_FOR_EACH_QUEUE)
                 .flatMap(success -> {
                     if (success) {
-                        return queueRepo.findById(queueId).flatMap(this::doPush);
+                        return doPush(queueId)
+                                .onErrorResume(e -> releaseLock.then(Mono.error(e)))
+                                .flatMap(admitted -> releaseLock.thenReturn(admitted));
                     }
-                    return Mono.empty();
+                    return Mono.just(LOCK_BUSY);
                 });
 
     }
 
-    private Mono<Void> doPush(Queue queue) {
-        String queueId = queue.getId();
-        Map<String, Long> cache = new HashMap<>();
+    /**
+     * @return the number of admitted users, 0 if the queue does not exist.
+     */
+    private Mono<Long> doPush(String queueId) {
+        long currentTimeMillis = System.currentTimeMillis();
+        return queueRepo.push(queueId, currentTimeMillis / 1000, HOLE_SCAN_ALLOWANCE)
+                .flatMap(result -> {
+                    if (result.getAdmitted() > 0) {
+                        log.info(String.format("Queue:%s | Pushed new users: %d |Current head:%d | Current tail:%d",
+                                queueId, result.getAdmitted(), result.getHead(), result.getTail()));
+                    }
+                    if (result.getNextExpirationTime() >= 0) {
+                        scheduleWakeUp(queueId, result.getNextExpirationTime());
+                    }
+                    if (result.isHibernated()) {
+                        // A new ticket wakes it up, as for a queue never pushed.
+                        forget(queueId);
+                        return Mono.just(result.getAdmitted());
+                    }
+                    underCapacity.put(queueId, result.getAdmitted() < result.getFreeSlots());
+                    return queueRepo.scheduleDue(queueId, nextDueTime(queueId, result, currentTimeMillis))
+                            .thenReturn(result.getAdmitted());
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> {
+                    forget(queueId);
+                    return 0L;
+                }));
+    }
+
+    private void forget(String queueId) {
+        underCapacity.remove(queueId);
+        intervals.remove(queueId);
+    }
+
+    /**
+     * Back to the shortest interval once someone was admitted, otherwise twice the last one up to the longest.
+     */
+    private long nextDueTime(String queueId, PushResult result, long currentTimeMillis) {
+        long interval = intervals.merge(queueId, minIntervalMillis, (last, ignored) ->
+                result.getAdmitted() > 0 ? minIntervalMillis : Math.min(last * 2, maxIntervalMillis));
+        long dueTime = currentTimeMillis + interval;
+        if (result.getNextExpirationTime() >= 0) {
+            dueTime = Math.min(dueTime, result.getNextExpirationTime() * 1000);
+        }
+        return dueTime;
+    }
 
-        // Clean expired user in active set and ready set.
-        Mono<Long> removeExpiredTicket = ticketRepo.removeOutOfSetByTime(ACTIVE_SET_PREFIX + queueId, Instant.now().getEpochSecond())
-                .then(ticketRepo.removeOutOfSetByTime(READY_SET_PREFIX + queueId, Instant.now().getEpochSecond()));
+    private static final class WakeUp {
+        private final long expirationTime;
+        private Timeout timeout;
 
-        Mono<Long> countNewUser = removeExpiredTicket.then(ticketRepo.countTicketInSet(READY_SET_PREFIX + queueId))
-                .flatMap(readyUsers -> {
-                    cache.put("readyUsers", readyUsers);
-                    return ticketRepo.countTicketInSet(ACTIVE_SET_PREFIX + queueId);
-                })
-                .flatMap(activeUsers -> Mono.just(Math.min(queue.getMaxActiveUsers() - activeUsers - cache.get("readyUsers"),
-                        queue.getTail() - queue.getHead())));
-
-        // Add new users to ready set.
-        return countNewUser.flatMap(newUser -> {
-            int start = queue.getHead() + 1;
-            return Flux.fromStream(
-                    IntStream.range(start, start + newUser.intValue())
-                            .boxed()
-                            .map(index -> TICKET_PREFIX + queueId + ":" + index)
-            )
-                    .flatMap(ticket -> ticketRepo.addToSet(READY_SET_PREFIX + queueId, ticket,
-                            Instant.now().getEpochSecond() + queue.getHoldTimeForActivate()))
-                    .then(queueRepo.incHead(queueId, newUser.intValue()))
-                    .flatMap(head -> {
-                        log.info(String.format("Queue:%s | Pushed new users: %d |Current head:%d | Current tail:%d",
-                                queueId, newUser, head, queue.getTail()));
-                        return Mono.empty();
-                    });
-        });
+        private WakeUp(long expirationTime) {
+            this.expirationTime = expirationTime;
+        }
     }
 }
@@ -0,0 +1,12 @@
+-- Add a batch of counted uses to a ticket, unless the ticket is gone by now.
+-- KEYS[1]: ticket
+-- ARGV[1]: number of uses
+-- Returns the new count of usage, or -1 when the ticket does not exist.
+local format = redis.call('TYPE', KEYS[1])['ok']
+if format == 'hash' then
+    return redis.call('HINCRBY', KEYS[1], 'countOfUsage', ARGV[1])
+elseif format == 'string' then
+    -- Packed ticket, see TicketCodec for the bit offsets.
+    return redis.call('BITFIELD', KEYS[1], 'OVERFLOW', 'SAT', 'INCRBY', 'u32', 16, ARGV[1])[1]
+end
+return -1
@@ -0,0 +1,35 @@
+-- Authorize one use of each of several active tickets of one queue in one round trip, a single ticket is a batch of
+-- one.
+-- KEYS[1]: active set, KEYS[2..n+1]: tickets
+-- ARGV[1]: uses to count per ticket, 0 when counted elsewhere, ARGV[2..n+1]: ticket tokens, the members of the active set
+-- Returns the outcome of each ticket in order: 0 when authorized, 1 when not active, 2 when occupied.
+local increment = tonumber(ARGV[1])
+local results = {}
+for i = 2, #KEYS do
+    local ticket = KEYS[i]
+    local result = 0
+    local score = redis.call('ZSCORE', KEYS[1], ARGV[i])
+    if not score or tonumber(score) <= 0 then
+        result = 1
+    else
+        local format = redis.call('TYPE', ticket)['ok']
+        if format == 'hash' then
+            if redis.call('HGET', ticket, 'occupied') == 'true' then
+                result = 2
+            elseif increment > 0 then
+                redis.call('HINCRBY', ticket, 'countOfUsage', increment)
+            end
+        elseif format == 'string' then
+            -- Packed ticket, see TicketCodec for the bit offsets.
+            if redis.call('GETBIT', ticket, 15) == 1 then
+                result = 2
+            elseif increment > 0 then
+                redis.call('BITFIELD', ticket, 'OVERFLOW', 'SAT', 'INCRBY', 'u32', 16, increment)
+            end
+        else
+            result = 1
+        end
+    end
+    results[i - 1] = result
+end
+return results
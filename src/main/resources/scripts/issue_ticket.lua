@@ -0,0 +1,31 @@
+-- Issue a ticket in one round trip.
+-- KEYS[1]: queue hash, KEYS[2]: due queues set
+-- ARGV[1]: ticket id prefix, ARGV[2]: auth code, ARGV[3]: issue time, ARGV[4]: '1' to store the ticket packed,
+-- ARGV[5]: hash tag the keys of the queue start with, empty without key shards
+-- Returns the new ticket's position, or -1 when the queue does not exist.
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return -1
+end
+
+local position = redis.call('HINCRBY', KEYS[1], 'tail', 1)
+-- Wake the queue if it was hibernating, a scheduled queue keeps its due time.
+redis.call('ZADD', KEYS[2], 'NX', tonumber(ARGV[3]) * 1000, string.sub(KEYS[1], #ARGV[5] + 1))
+local ticketId = ARGV[1] .. position
+local ticketKey = ARGV[5] .. ticketId
+
+if ARGV[4] == '1' then
+    -- version, flags, countOfUsage, issueTime, activateTime, then the auth code, see TicketCodec.
+    redis.call('SET', ticketKey, struct.pack('>BBI4i8i8', 1, 0, 0, tonumber(ARGV[3]), 0) .. ARGV[2])
+    return position
+end
+
+-- Hash values are JSON encoded to stay readable by the template's hash value serializer.
+redis.call('HMSET', ticketKey,
+        'id', cjson.encode(ticketId),
+        'authCode', cjson.encode(ARGV[2]),
+        'issueTime', ARGV[3],
+        'activateTime', '0',
+        'occupied', 'false',
+        'countOfUsage', '0')
+
+return position
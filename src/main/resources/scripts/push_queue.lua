@@ -0,0 +1,101 @@
+-- Move a queue forward: drop expired entries, then admit waiting tickets into the ready set as far as capacity allows.
+-- A queue left with nothing to do is taken out of the due queues set until a new ticket wakes it.
+-- KEYS[1]: queue hash, KEYS[2]: active set, KEYS[3]: ready set, KEYS[4]: lease set, KEYS[5]: due queues set
+-- ARGV[1]: current time, ARGV[2]: ticket id prefix, ARGV[3]: how many missing positions may be skipped,
+-- ARGV[4]: channel the new head and tail are published on when the head moves, ARGV[5]: hash tag the keys of the
+-- queue start with, empty without key shards, ARGV[6]: channel the admitted positions are published on, empty
+-- for none
+-- Returns {admitted, head, tail, free slots, earliest ready or active expiration or -1, 1 if hibernated else 0},
+-- or an empty list when the queue does not exist.
+local queueId = string.sub(KEYS[1], #ARGV[5] + 1)
+local queue = redis.call('HMGET', KEYS[1], 'maxActiveUsers', 'holdTimeForActivate', 'head', 'tail')
+if not queue[1] then
+    redis.call('ZREM', KEYS[5], queueId)
+    return {}
+end
+local maxActiveUsers = tonumber(queue[1])
+local holdTimeForActivate = tonumber(queue[2]) or 0
+local head = tonumber(queue[3]) or 0
+local tail = tonumber(queue[4]) or 0
+local now = tonumber(ARGV[1])
+
+-- Clean expired user in active set and ready set, and leases never released by their node.
+redis.call('ZREMRANGEBYSCORE', KEYS[2], 0, now)
+redis.call('ZREMRANGEBYSCORE', KEYS[3], 0, now)
+redis.call('ZREMRANGEBYSCORE', KEYS[4], 0, now)
+
+local freeSlots = maxActiveUsers - redis.call('ZCARD', KEYS[2]) - redis.call('ZCARD', KEYS[3])
+local newUser = math.min(freeSlots, tail - head)
+local admitted = 0
+local newHead = head
+
+if newUser > 0 then
+    local leases = {}
+    for _, lease in ipairs(redis.call('ZRANGEBYSCORE', KEYS[4], '(' .. now, '+inf')) do
+        local separator = string.find(lease, ':', 1, true)
+        leases[#leases + 1] = { tonumber(string.sub(lease, 1, separator - 1)), tonumber(string.sub(lease, separator + 1)) }
+    end
+
+    local expirationTime = now + holdTimeForActivate
+    local ready = {}
+    local positions = {}
+    local window = math.min(tail - head, newUser + tonumber(ARGV[3]))
+
+    -- Positions without a ticket are skipped, unless a live lease still covers them: their ticket may be on its
+    -- way, so admission stops there.
+    for position = head + 1, head + window do
+        if admitted == newUser then
+            break
+        end
+        local ticketId = ARGV[2] .. position
+        if redis.call('EXISTS', ARGV[5] .. ticketId) == 1 then
+            admitted = admitted + 1
+            ready[#ready + 1] = expirationTime
+            ready[#ready + 1] = ticketId
+            positions[#positions + 1] = position
+        else
+            local leased = false
+            for _, lease in ipairs(leases) do
+                if position >= lease[1] and position <= lease[2] then
+                    leased = true
+                    break
+                end
+            end
+            if leased then
+                break
+            end
+        end
+        newHead = position
+    end
+
+    -- Keep the argument count of each call well below Lua's stack limit.
+    for i = 1, #ready, 2000 do
+        redis.call('ZADD', KEYS[3], unpack(ready, i, math.min(i + 1999, #ready)))
+    end
+    if #positions > 0 and ARGV[6] ~= '' then
+        redis.call('PUBLISH', ARGV[6], 'r' .. expirationTime .. ':' .. table.concat(positions, ','))
+    end
+    if newHead > head then
+        newHead = redis.call('HINCRBY', KEYS[1], 'head', newHead - head)
+        redis.call('PUBLISH', ARGV[4], newHead .. ':' .. tail)
+    end
+end
+
+local nextExpiration = -1
+for _, key in ipairs({ KEYS[2], KEYS[3] }) do
+    local first = redis.call('ZRANGE', key, 0, 0, 'WITHSCORES')
+    if first[2] then
+        local score = tonumber(first[2])
+        if nextExpiration < 0 or score < nextExpiration then
+            nextExpiration = score
+        end
+    end
+end
+
+local hibernated = 0
+if newHead >= tail and nextExpiration < 0 and redis.call('ZCARD', KEYS[4]) == 0 then
+    redis.call('ZREM', KEYS[5], queueId)
+    hibernated = 1
+end
+
+return { admitted, newHead, tail, freeSlots, nextExpiration, hibernated }
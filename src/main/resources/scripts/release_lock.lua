@@ -0,0 +1,8 @@
+-- Release a lock only if it is still held by the caller, it may have expired and been taken by someone else.
+-- KEYS[1]: lock
+-- ARGV[1]: owner the lock was taken with
+-- Returns 1 when released, 0 otherwise.
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
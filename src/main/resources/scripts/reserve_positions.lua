@@ -0,0 +1,18 @@
+-- Reserve a block of consecutive positions at the tail of a queue and record the lease.
+-- KEYS[1]: queue hash, KEYS[2]: lease set, KEYS[3]: due queues set
+-- ARGV[1]: number of positions, ARGV[2]: lease expiration time, ARGV[3]: current time in milliseconds,
+-- ARGV[4]: hash tag the keys of the queue start with, empty without key shards
+-- Returns the last reserved position, or -1 when the queue does not exist.
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return -1
+end
+
+local count = tonumber(ARGV[1])
+local last = redis.call('HINCRBY', KEYS[1], 'tail', count)
+-- Wake the queue if it was hibernating, a scheduled queue keeps its due time.
+redis.call('ZADD', KEYS[3], 'NX', ARGV[3], string.sub(KEYS[1], #ARGV[4] + 1))
+
+-- Positions of a live lease may not have a ticket yet, so the scheduler waits for them instead of skipping.
+redis.call('ZADD', KEYS[2], ARGV[2], (last - count + 1) .. ':' .. last)
+
+return last
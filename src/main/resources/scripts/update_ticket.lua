@@ -0,0 +1,23 @@
+-- Set the activate time of a ticket or mark it occupied, unless the ticket is gone by now.
+-- KEYS[1]: ticket
+-- ARGV[1]: field, activateTime or occupied
+-- ARGV[2]: activate time
+-- Returns 1 when set, or 0 when the ticket does not exist.
+local format = redis.call('TYPE', KEYS[1])['ok']
+if format == 'hash' then
+    if ARGV[1] == 'occupied' then
+        redis.call('HSET', KEYS[1], 'occupied', 'true')
+    else
+        redis.call('HSET', KEYS[1], 'activateTime', ARGV[2])
+    end
+    return 1
+elseif format == 'string' then
+    -- Packed ticket, see TicketCodec for the bit offsets.
+    if ARGV[1] == 'occupied' then
+        redis.call('SETBIT', KEYS[1], 15, 1)
+    else
+        redis.call('BITFIELD', KEYS[1], 'SET', 'i64', 112, ARGV[2])
+    end
+    return 1
+end
+return 0
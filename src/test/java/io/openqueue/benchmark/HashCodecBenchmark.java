@@ -0,0 +1,120 @@
+package io.openqueue.benchmark;
+
+import io.openqueue.common.util.QueueCodec;
+import io.openqueue.common.util.TicketCodec;
+import io.openqueue.common.util.TypeConverter;
+import io.openqueue.model.Queue;
+import io.openqueue.model.Ticket;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the fastjson based {@link TypeConverter} with the hand-written hash codecs on the shapes the repos
+ * actually read and write. Run {@link #main} from the test classpath, the GC profiler reports allocation per op.
+ *
+ * @author chenjing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashCodecBenchmark {
+
+    private Queue queue;
+    private Ticket ticket;
+
+    /**
+     * Hash entries as they come back from HGETALL, already deserialized by the template.
+     */
+    private Map<Object, Object> queueHash;
+    private Map<Object, Object> ticketHash;
+
+    @Setup
+    public void setup() {
+        queue = Queue.builder()
+                .id("q:a1B2c3")
+                .name("benchmark")
+                .capacity(100000)
+                .head(1024)
+                .tail(4096)
+                .maxActiveUsers(1000)
+                .availableSecondPerUser(300)
+                .holdTimeForActivate(60)
+                .callbackURL("openqueue.io")
+                .build();
+        ticket = Ticket.builder()
+                .id("t:q:a1B2c3:4096")
+                .authCode("x9Y8z7W6v5U4t3S2r1Q0")
+                .issueTime(1600000000L)
+                .activateTime(1600000300L)
+                .countOfUsage(3)
+                .build();
+        queueHash = new LinkedHashMap<>(QueueCodec.toHash(queue));
+        ticketHash = new LinkedHashMap<>(TicketCodec.toHash(ticket));
+    }
+
+    @Benchmark
+    public Queue readQueueTypeConverter() {
+        return TypeConverter.map2Pojo(new HashMap<>(queueHash), Queue.class);
+    }
+
+    @Benchmark
+    public Queue readQueueCodec() {
+        Queue result = new Queue();
+        for (Map.Entry<Object, Object> field : queueHash.entrySet()) {
+            QueueCodec.readField(result, field);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Map<String, Object> writeQueueTypeConverter() {
+        return TypeConverter.pojo2Map(queue);
+    }
+
+    @Benchmark
+    public Map<String, Object> writeQueueCodec() {
+        return QueueCodec.toHash(queue);
+    }
+
+    @Benchmark
+    public Ticket readTicketTypeConverter() {
+        return TypeConverter.map2Pojo(new HashMap<>(ticketHash), Ticket.class);
+    }
+
+    @Benchmark
+    public Ticket readTicketCodec() {
+        Ticket result = new Ticket();
+        for (Map.Entry<Object, Object> field : ticketHash.entrySet()) {
+            TicketCodec.readField(result, field);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Map<String, Object> writeTicketTypeConverter() {
+        return TypeConverter.pojo2Map(ticket);
+    }
+
+    @Benchmark
+    public Map<String, Object> writeTicketCodec() {
+        return TicketCodec.toHash(ticket);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HashCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
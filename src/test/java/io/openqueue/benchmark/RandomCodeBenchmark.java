@@ -0,0 +1,54 @@
+package io.openqueue.benchmark;
+
+import io.openqueue.common.util.RandomCodeGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Auth code generation under 64 threads, the thread local buffered generator against the former folded UUID
+ * code. Run {@link #main} from the test classpath.
+ *
+ * @author chenjing
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class RandomCodeBenchmark {
+
+    private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    @Benchmark
+    public String uuidHash() {
+        long hash = UUID.randomUUID().hashCode();
+        long num = hash < 0 ? ((long) 2 * 0x7fffffff) + hash + 2 : hash;
+
+        int base = DIGITS.length;
+        char[] buf = new char[32];
+        int charPos = 32;
+        while ((num / base) > 0) {
+            buf[--charPos] = DIGITS[(int) (num % base)];
+            num /= base;
+        }
+        buf[--charPos] = DIGITS[(int) (num % base)];
+        return new String(buf, charPos, (32 - charPos));
+    }
+
+    @Benchmark
+    public String threadLocalBuffered() {
+        return RandomCodeGenerator.getCode();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RandomCodeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
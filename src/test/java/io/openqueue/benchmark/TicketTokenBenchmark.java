@@ -0,0 +1,78 @@
+package io.openqueue.benchmark;
+
+import io.openqueue.common.util.AuthUtil;
+import io.openqueue.dto.TicketAuthDto;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single pass ticket token parser with the former decode, regex and split path, on a valid token
+ * and on tokens that are rejected early or late. Run {@link #main} from the test classpath.
+ *
+ * @author chenjing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TicketTokenBenchmark {
+
+    @Param({"valid", "bad-prefix", "bad-auth-code"})
+    public String input;
+
+    private String tokenBase64;
+
+    @Setup
+    public void setup() {
+        String token;
+        switch (input) {
+            case "bad-prefix":
+                token = "x:q:a1B2c3:4096:k1x9Y8z7W6v5U4t3S2r1Q0p9";
+                break;
+            case "bad-auth-code":
+                token = "t:q:a1B2c3:4096:k1x9Y8z7W6v5U4t3S2r1Q0p!";
+                break;
+            default:
+                token = "t:q:a1B2c3:4096:k1x9Y8z7W6v5U4t3S2r1Q0p9";
+                break;
+        }
+        tokenBase64 = Base64.getUrlEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public TicketAuthDto regexSplit() {
+        String token = new String(Base64.getUrlDecoder().decode(tokenBase64), StandardCharsets.UTF_8);
+        if (!token.matches("t:q:[a-zA-Z0-9]+:[1-9][0-9]{0,8}:[a-zA-Z0-9]+")) {
+            return null;
+        }
+        String[] ticketParts = token.split(":");
+        return TicketAuthDto.builder()
+                .token(token)
+                .ticketId(token.substring(0, token.lastIndexOf(":")))
+                .queueId("q:" + ticketParts[2])
+                .position(Integer.parseInt(ticketParts[3]))
+                .authCode(ticketParts[4])
+                .build();
+    }
+
+    @Benchmark
+    public TicketAuthDto singlePass() {
+        return AuthUtil.parseTicketToken(tokenBase64);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TicketTokenBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
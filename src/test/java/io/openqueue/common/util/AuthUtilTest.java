@@ -0,0 +1,67 @@
+package io.openqueue.common.util;
+
+import io.openqueue.dto.TicketAuthDto;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuthUtilTest {
+
+    @Test
+    void testParseTicketToken() {
+        TicketAuthDto expected = TicketAuthDto.builder()
+                .token("t:q:sad1fghS:123:oi2sdfD")
+                .ticketId("t:q:sad1fghS:123")
+                .queueId("q:sad1fghS")
+                .position(123)
+                .authCode("oi2sdfD")
+                .build();
+
+        // With and without padding.
+        assertThat(AuthUtil.parseTicketToken(encode("t:q:sad1fghS:123:oi2sdfD"))).isEqualTo(expected);
+        assertThat(AuthUtil.parseTicketToken(encode("t:q:sad1fghS:123:oi2sdfD").replace("=", ""))).isEqualTo(expected);
+
+        assertThat(AuthUtil.parseTicketToken(encode("t:q:a:999999999:b")).getPosition()).isEqualTo(999999999);
+    }
+
+    @Test
+    void testParseMalformedTicketToken() {
+        String[] malformedTokens = {
+                "",
+                "t:q:",
+                "t:q:sad1fghS",
+                "t:q:sad1fghS:123",
+                "t:q:sad1fghS:123:",
+                "t:q::123:oi2sdfD",
+                "t:x:sad1fghS:123:oi2sdfD",
+                "t:q:sad-fghS:123:oi2sdfD",
+                "t:q:sad1fghS:0123:oi2sdfD",
+                "t:q:sad1fghS:1234567890:oi2sdfD",
+                "t:q:sad1fghS:12a:oi2sdfD",
+                "t:q:sad1fghS:123:oi2s:dfD",
+                "t:q:sad1fghS:123:oi2sdfDé",
+        };
+        for (String token : malformedTokens) {
+            assertThat(AuthUtil.parseTicketToken(encode(token))).as(token).isNull();
+        }
+
+        // Not Base64 at all.
+        assertThat(AuthUtil.parseTicketToken("dDpxOnNhZDFmZ2hTOjEyMzpvaTJzZGZE+")).isNull();
+        assertThat(AuthUtil.parseTicketToken("dDpxOnNhZDFmZ2hTOjEyMzpvaTJzZGZEa")).isNull();
+    }
+
+    @Test
+    void testQueueTokenValidate() {
+        assertThat(AuthUtil.queueTokenValidate("q:sad1fghS")).isTrue();
+        assertThat(AuthUtil.queueTokenValidate("q:")).isFalse();
+        assertThat(AuthUtil.queueTokenValidate("t:sad1fghS")).isFalse();
+        assertThat(AuthUtil.queueTokenValidate("q:sad1:fghS")).isFalse();
+    }
+
+    private static String encode(String token) {
+        return Base64.getUrlEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,50 @@
+package io.openqueue.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RandomCodeGeneratorTest {
+
+    @Test
+    void testGetCode() {
+        Set<String> codes = ConcurrentHashMap.newKeySet();
+        IntStream.range(0, 100000).parallel().forEach(i -> codes.add(RandomCodeGenerator.getCode()));
+
+        assertThat(codes).hasSize(100000);
+        assertThat(codes).allMatch(code -> code.matches("[0-9a-zA-Z]{22}"));
+    }
+
+    @Test
+    void testGetQueueId() {
+        assertThat(RandomCodeGenerator.getQueueId()).matches("q:[0-9a-zA-Z]{11}");
+    }
+
+    @Test
+    void testAppendFixedWidth() {
+        StringBuilder sb = new StringBuilder("k1");
+        RandomCodeGenerator.appendFixedWidth(sb, 61, 3);
+        RandomCodeGenerator.appendFixedWidth(sb, -1, 11);
+
+        assertThat(sb.toString()).isEqualTo("k1" + "00z" + "LygHa16AHYF");
+    }
+
+    @Test
+    void testDecodeCode() {
+        for (int i = 0; i < 1000; i++) {
+            String code = RandomCodeGenerator.getCode();
+            long[] halves = RandomCodeGenerator.decodeCode(code);
+            assertThat(RandomCodeGenerator.encodeCode(halves[0], halves[1])).isEqualTo(code);
+        }
+
+        assertThat(RandomCodeGenerator.decodeCode("LygHa16AHYF" + "00000000000")).containsExactly(-1L, 0L);
+        // One past the largest unsigned long, a wrong length and a character off the alphabet.
+        assertThat(RandomCodeGenerator.decodeCode("LygHa16AHYG" + "00000000000")).isNull();
+        assertThat(RandomCodeGenerator.decodeCode("1asdIU2ay")).isNull();
+        assertThat(RandomCodeGenerator.decodeCode("LygHa16AHY-" + "00000000000")).isNull();
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.reactive.server.WebTestClient;
@@ -48,9 +49,20 @@ class QueueControllerTest {
     void testGetQueueStatus() {
         webTestClient.get()
                 .uri("/v1/queue/1234/status")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"3-233\"")
                 .exchange();
 
-        verify(queueService).getQueueStatus("1234");
+        verify(queueService).getQueueStatus("1234", "\"3-233\"");
+    }
+
+    @Test
+    void testStreamQueueStatus() {
+        webTestClient.get()
+                .uri("/v1/queue/1234/stream?position=42")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .exchange();
+
+        verify(queueService).streamQueueStatus("1234", 42L);
     }
 
     @Test
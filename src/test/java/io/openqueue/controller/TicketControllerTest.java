@@ -1,8 +1,10 @@
 package io.openqueue.controller;
 
 import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.dto.TicketAuthRequestDto;
 import io.openqueue.dto.TicketStateDto;
 import io.openqueue.service.TicketService;
+import io.openqueue.service.TicketSigner;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
@@ -16,6 +18,8 @@ import org.springframework.web.reactive.function.BodyInserters;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 
 import static org.mockito.Mockito.verify;
 
@@ -29,6 +33,9 @@ class TicketControllerTest {
     @MockBean
     private TicketService ticketService;
 
+    @MockBean
+    private TicketSigner ticketSigner;
+
     private static String token;
     private static TicketAuthDto ticketAuthDto;
 
@@ -58,6 +65,15 @@ class TicketControllerTest {
         verify(ticketService).applyTicket("q:1234");
     }
 
+    @Test
+    void testApplyTickets() throws Exception {
+        webTestClient.post()
+                .uri("/v1/ticket/apply/batch?qid=1234&count=100")
+                .exchange();
+
+        verify(ticketService).applyTickets("q:1234", 100);
+    }
+
     @Test
     void testGetTicketUsage() throws Exception {
         String reqUrl = "/v1/ticket/stat?ticket=" + token;
@@ -80,6 +96,19 @@ class TicketControllerTest {
         verify(ticketService).getTicketAuthorization(ticketAuthDto, "q:1234");
     }
 
+    @Test
+    void testGetTicketAuthorizations() throws Exception {
+        List<TicketAuthRequestDto> requests = Collections.singletonList(new TicketAuthRequestDto(token, "1234"));
+
+        webTestClient.post()
+                .uri("/v1/ticket/authorization/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(requests))
+                .exchange();
+
+        verify(ticketService).getTicketAuthorizations(requests);
+    }
+
     @Test
     void testMarkTicketInUse() throws Exception {
         String reqUrl = "/v1/ticket/state";
@@ -0,0 +1,125 @@
+package io.openqueue.repo;
+
+import io.openqueue.model.Queue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.function.BooleanSupplier;
+
+import static io.openqueue.common.constant.Keys.ACTIVE_SET_PREFIX;
+import static io.openqueue.common.constant.Keys.READY_SET_PREFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = "openqueue.active-filter.enabled=true")
+class ActiveTicketFilterTest {
+
+    private static final String TEST_QUEUE_ID = "q:filtertest";
+
+    @Autowired
+    private ActiveTicketFilter activeTicketFilter;
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
+
+    @Autowired
+    private RedisKeys keys;
+
+    @Autowired
+    private QueueRepo queueRepo;
+
+    @Autowired
+    private TicketRepo ticketRepo;
+
+    @Autowired
+    private LettuceConnectionFactory redisConnectionFactory;
+
+    @AfterEach
+    void cleanup() {
+        reactiveRedisTemplate
+                .keys("*")
+                .flatMap(key -> reactiveRedisTemplate.delete(key))
+                .blockLast();
+    }
+
+    @Test
+    void testFilterFollowsActiveSet() throws InterruptedException {
+        long expirationTime = Instant.now().getEpochSecond() + 60;
+        reactiveRedisTemplate.opsForZSet()
+                .add(ACTIVE_SET_PREFIX + TEST_QUEUE_ID, "t:" + TEST_QUEUE_ID + ":3:authCode", expirationTime)
+                .block();
+
+        // Loaded from the active set once the subscription is live, everything passes until then.
+        awaitTrue(() -> !activeTicketFilter.mightBeActive(TEST_QUEUE_ID, 4));
+        assertThat(activeTicketFilter.mightBeActive(TEST_QUEUE_ID, 3)).isTrue();
+
+        // Changes made by any node.
+        activeTicketFilter.activated(TEST_QUEUE_ID, 4, expirationTime).block();
+        awaitTrue(() -> activeTicketFilter.mightBeActive(TEST_QUEUE_ID, 4));
+
+        activeTicketFilter.revoked(TEST_QUEUE_ID, 3).block();
+        awaitTrue(() -> !activeTicketFilter.mightBeActive(TEST_QUEUE_ID, 3));
+
+        // Expired positions are not active any more.
+        activeTicketFilter.activated(TEST_QUEUE_ID, 5, Instant.now().getEpochSecond() - 1).block();
+        Thread.sleep(200);
+        assertThat(activeTicketFilter.mightBeActive(TEST_QUEUE_ID, 5)).isFalse();
+    }
+
+    @Test
+    void testLetThroughActivationNotHeardYet() throws InterruptedException {
+        long expirationTime = Instant.now().getEpochSecond() + 60;
+        reactiveRedisTemplate.opsForZSet()
+                .add(READY_SET_PREFIX + TEST_QUEUE_ID, "t:" + TEST_QUEUE_ID + ":3", expirationTime)
+                .block();
+
+        // Another node, whose filter has the queue loaded.
+        ReactiveRedisMessageListenerContainer container = new ReactiveRedisMessageListenerContainer(redisConnectionFactory);
+        ActiveTicketFilter otherNode = new ActiveTicketFilter();
+        ReflectionTestUtils.setField(otherNode, "reactiveRedisTemplate", reactiveRedisTemplate);
+        ReflectionTestUtils.setField(otherNode, "keys", keys);
+        ReflectionTestUtils.setField(otherNode, "reactiveRedisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(otherNode, "enabled", true);
+        ReflectionTestUtils.setField(otherNode, "maxSize", 100L);
+        ReflectionTestUtils.setField(otherNode, "expireAfterAccess", 600);
+        otherNode.init();
+        try {
+            awaitTrue(() -> !otherNode.mightBeActive(TEST_QUEUE_ID, 4));
+
+            // Activated by this node, before its message reaches the other one.
+            reactiveRedisTemplate.opsForZSet()
+                    .add(ACTIVE_SET_PREFIX + TEST_QUEUE_ID, "t:" + TEST_QUEUE_ID + ":3:authCode", expirationTime)
+                    .then(reactiveRedisTemplate.opsForZSet().remove(READY_SET_PREFIX + TEST_QUEUE_ID, "t:" + TEST_QUEUE_ID + ":3"))
+                    .block();
+            assertThat(otherNode.mightBeActive(TEST_QUEUE_ID, 3)).isTrue();
+
+            // Admissions are published by the push, malformed changes are skipped.
+            reactiveRedisTemplate.convertAndSend(activeTicketFilter.admissionChannel(TEST_QUEUE_ID), "rbad").block();
+            queueRepo.createOrUpdate(Queue.builder().id(TEST_QUEUE_ID).maxActiveUsers(10).holdTimeForActivate(60).build())
+                    .then(ticketRepo.issue(TEST_QUEUE_ID, "authCode", 0))
+                    .then(ticketRepo.issue(TEST_QUEUE_ID, "authCode", 0))
+                    .then(queueRepo.push(TEST_QUEUE_ID, Instant.now().getEpochSecond(), 0))
+                    .block();
+            awaitTrue(() -> otherNode.mightBeActive(TEST_QUEUE_ID, 1));
+            assertThat(otherNode.mightBeActive(TEST_QUEUE_ID, 2)).isTrue();
+            assertThat(otherNode.mightBeActive(TEST_QUEUE_ID, 4)).isFalse();
+        } finally {
+            otherNode.destroy();
+            container.destroy();
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+}
@@ -0,0 +1,53 @@
+package io.openqueue.repo;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ExpiringPositionsTest {
+
+    @Test
+    void testMergeAndRemove() {
+        ExpiringPositions positions = new ExpiringPositions();
+        positions.merge(3, 100);
+        positions.merge(3, 90);
+        positions.merge(4, 100);
+        positions.merge(4, 120);
+        assertThat(positions.get(3)).isEqualTo(100);
+        assertThat(positions.get(4)).isEqualTo(120);
+        assertThat(positions.get(5)).isEqualTo(0);
+
+        positions.remove(3);
+        positions.remove(5);
+        assertThat(positions.get(3)).isEqualTo(0);
+        assertThat(positions.size()).isEqualTo(1);
+
+        positions.merge(3, 110);
+        assertThat(positions.get(3)).isEqualTo(110);
+        assertThat(positions.size()).isEqualTo(2);
+    }
+
+    @Test
+    void testGrowAndDropExpired() {
+        ExpiringPositions positions = new ExpiringPositions();
+        for (int position = 1; position <= 10000; position++) {
+            positions.merge(position, position % 2 == 0 ? 200 : 100);
+        }
+        for (int position = 1; position <= 100; position++) {
+            positions.remove(position);
+        }
+        assertThat(positions.size()).isEqualTo(9900);
+        assertThat(positions.get(101)).isEqualTo(100);
+        assertThat(positions.get(10000)).isEqualTo(200);
+
+        positions.removeExpired(100);
+        assertThat(positions.size()).isEqualTo(4950);
+        assertThat(positions.get(101)).isEqualTo(0);
+        assertThat(positions.get(100)).isEqualTo(0);
+        assertThat(positions.get(102)).isEqualTo(200);
+
+        positions.removeExpired(200);
+        assertThat(positions.size()).isEqualTo(0);
+        assertThat(positions.get(10000)).isEqualTo(0);
+    }
+}
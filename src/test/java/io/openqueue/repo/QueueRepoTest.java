@@ -2,6 +2,8 @@ package io.openqueue.repo;
 
 import io.openqueue.common.util.TypeConverter;
 import io.openqueue.dto.QueueConfigDto;
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.PushResult;
 import io.openqueue.model.Queue;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -9,15 +11,21 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.io.Serializable;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
 import java.util.stream.IntStream;
 
+import static io.openqueue.common.constant.Keys.ACTIVE_SET_PREFIX;
 import static io.openqueue.common.constant.Keys.ALL_QUEUES_SET;
+import static io.openqueue.common.constant.Keys.READY_SET_PREFIX;
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
 @SpringBootTest
@@ -29,6 +37,12 @@ class QueueRepoTest {
     @Autowired
     private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
 
+    @Autowired
+    private QueueConfigCache queueConfigCache;
+
+    @Autowired
+    private RedisKeys keys;
+
     private static Queue queueTest;
 
     private static String testQueueId;
@@ -49,6 +63,8 @@ class QueueRepoTest {
 
     @BeforeEach
     void runBeforeEachTestMethod() {
+        // The queue is written behind the repo's back.
+        queueConfigCache.evict(testQueueId);
         reactiveRedisTemplate.opsForHash().putAll(testQueueId, TypeConverter.pojo2Map(queueTest))
                 .then(reactiveRedisTemplate.opsForSet().add(ALL_QUEUES_SET, testQueueId))
                 .block();
@@ -77,6 +93,42 @@ class QueueRepoTest {
                 .verify();
     }
 
+    @Test
+    void testQueueConfigCache() {
+        StepVerifier.create(queueRepo.findConfigById(testQueueId))
+                .expectNext(queueTest)
+                .verifyComplete();
+
+        // Positions are always read through, config only after an update.
+        reactiveRedisTemplate.opsForHash().put(testQueueId, "name", "changed")
+                .then(reactiveRedisTemplate.opsForHash().put(testQueueId, "tail", 10))
+                .block();
+
+        StepVerifier.create(queueRepo.findById(testQueueId))
+                .assertNext(queue -> {
+                    assertThat(queue.getName()).isEqualTo(queueTest.getName());
+                    assertThat(queue.getTail()).isEqualTo(10);
+                })
+                .verifyComplete();
+
+        Queue newQueue = queueTest.toBuilder().name("new_name").build();
+        StepVerifier.create(queueRepo.updateConfig(newQueue))
+                .expectNext(newQueue)
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.findById(testQueueId))
+                .assertNext(queue -> {
+                    assertThat(queue.getName()).isEqualTo("new_name");
+                    assertThat(queue.getTail()).isEqualTo(10);
+                })
+                .verifyComplete();
+
+        cleanup();
+
+        StepVerifier.create(queueRepo.findById(testQueueId))
+                .verifyComplete();
+    }
+
     @Test
     void testAddToSet() {
         cleanup();
@@ -85,10 +137,18 @@ class QueueRepoTest {
                 .expectComplete()
                 .verify();
 
-        StepVerifier.create(queueRepo.addToSet(testQueueId).then(queueRepo.findAllId().last()))
+        StepVerifier.create(queueRepo.addToSet(testQueueId))
+                .expectNext(Boolean.TRUE)
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.findAllId())
                 .expectNext(testQueueId)
-                .expectComplete()
-                .verify();
+                .verifyComplete();
+
+        // The id is taken now.
+        StepVerifier.create(queueRepo.addToSet(testQueueId))
+                .expectNext(Boolean.FALSE)
+                .verifyComplete();
     }
 
     @Test
@@ -147,6 +207,53 @@ class QueueRepoTest {
                 .verify();
     }
 
+    @Test
+    void testReserveQueueTail() {
+        long expirationTime = Instant.now().getEpochSecond() + 10;
+
+        StepVerifier.create(queueRepo.reserveTail(testQueueId, 100, expirationTime))
+                .expectNext(new PositionLease(1, 100, expirationTime))
+                .expectComplete()
+                .verify();
+
+        StepVerifier.create(queueRepo.reserveTail(testQueueId, 50, expirationTime))
+                .expectNext(new PositionLease(101, 150, expirationTime))
+                .expectComplete()
+                .verify();
+
+        // Queue not exist.
+        StepVerifier.create(queueRepo.reserveTail("q:not_exist", 100, expirationTime))
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void testPositionLeases() {
+        long currentTime = Instant.now().getEpochSecond();
+        PositionLease lease = queueRepo.reserveTail(testQueueId, 100, currentTime + 10).block();
+        queueRepo.reserveTail(testQueueId, 100, currentTime - 10).block();
+
+        // Only the lease not expired yet is live.
+        StepVerifier.create(findLiveLeases(currentTime))
+                .expectNext(lease.getFirst() + ":" + lease.getLast())
+                .expectComplete()
+                .verify();
+
+        StepVerifier.create(queueRepo.removeExpiredLeases(testQueueId, currentTime))
+                .expectNext(1L)
+                .expectComplete()
+                .verify();
+
+        StepVerifier.create(queueRepo.releaseLease(testQueueId, lease))
+                .expectNext(1L)
+                .expectComplete()
+                .verify();
+
+        StepVerifier.create(findLiveLeases(currentTime))
+                .expectComplete()
+                .verify();
+    }
+
     @Test
     void testCloseQueue() {
         StepVerifier.create(queueRepo.findById(testQueueId))
@@ -167,12 +274,12 @@ class QueueRepoTest {
 
     @Test
     void testGetQueueLock() {
-        StepVerifier.create(queueRepo.getQueueLock(testQueueId, 5))
+        StepVerifier.create(queueRepo.getQueueLock(testQueueId, "owner1", 5))
                 .expectNext(Boolean.TRUE)
                 .expectComplete()
                 .verify();
 
-        StepVerifier.create(queueRepo.getQueueLock(testQueueId, 5))
+        StepVerifier.create(queueRepo.getQueueLock(testQueueId, "owner2", 5))
                 .expectNext(Boolean.FALSE)
                 .expectComplete()
                 .verify();
@@ -183,12 +290,100 @@ class QueueRepoTest {
             e.printStackTrace();
         }
 
-        StepVerifier.create(queueRepo.getQueueLock(testQueueId, 5))
+        StepVerifier.create(queueRepo.getQueueLock(testQueueId, "owner2", 5))
                 .expectNext(Boolean.TRUE)
                 .expectComplete()
                 .verify();
     }
 
+    @Test
+    void testReleaseQueueLock() {
+        queueRepo.getQueueLock(testQueueId, "owner1", 5).block();
+
+        // Only the owner releases the lock.
+        StepVerifier.create(queueRepo.releaseQueueLock(testQueueId, "owner2"))
+                .expectNext(Boolean.FALSE)
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.releaseQueueLock(testQueueId, "owner1"))
+                .expectNext(Boolean.TRUE)
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.getQueueLock(testQueueId, "owner2", 5))
+                .expectNext(Boolean.TRUE)
+                .verifyComplete();
+    }
+
+    @Test
+    void testPushQueue() {
+        long currentTime = Instant.now().getEpochSecond();
+        // Keep the scheduler away from the queue.
+        reactiveRedisTemplate.opsForSet().remove(ALL_QUEUES_SET, testQueueId)
+                .then(reactiveRedisTemplate.opsForHash().put(testQueueId, "holdTimeForActivate", 60))
+                .then(reactiveRedisTemplate.opsForHash().put(testQueueId, "tail", 4))
+                .block();
+        // Position 3 was never written, position 5 is leased and not written yet.
+        for (int position : new int[]{1, 2, 4}) {
+            reactiveRedisTemplate.opsForHash().put("t:" + testQueueId + ":" + position, "id", "t:" + testQueueId + ":" + position).block();
+        }
+        queueRepo.reserveTail(testQueueId, 1, currentTime + 10)
+                .then(reactiveRedisTemplate.opsForZSet().remove(dueQueuesSet(), testQueueId))
+                .block();
+
+        StepVerifier.create(queueRepo.push(testQueueId, currentTime, 256))
+                .expectNext(new PushResult(3, 4, 5, 1000, currentTime + 60, false))
+                .verifyComplete();
+
+        StepVerifier.create(reactiveRedisTemplate.opsForZSet().size(READY_SET_PREFIX + testQueueId))
+                .expectNext(3L)
+                .verifyComplete();
+
+        // Nothing more to admit until the leased position is written.
+        StepVerifier.create(queueRepo.push(testQueueId, currentTime, 256))
+                .expectNext(new PushResult(0, 4, 5, 997, currentTime + 60, false))
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.push("q:not_exist", currentTime, 256))
+                .verifyComplete();
+    }
+
+    @Test
+    void testPushHibernatesIdleQueue() {
+        long currentTime = Instant.now().getEpochSecond();
+        queueRepo.scheduleDue(testQueueId, currentTime * 1000).block();
+
+        StepVerifier.create(queueRepo.push(testQueueId, currentTime, 256))
+                .expectNext(new PushResult(0, 0, 0, 1000, -1, true))
+                .verifyComplete();
+        StepVerifier.create(reactiveRedisTemplate.opsForZSet().score(dueQueuesSet(), testQueueId))
+                .verifyComplete();
+
+        // A new position wakes it up.
+        queueRepo.reserveTail(testQueueId, 1, currentTime + 10).block();
+        StepVerifier.create(reactiveRedisTemplate.opsForZSet().score(dueQueuesSet(), testQueueId))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.scheduleDueIfAbsent(Arrays.asList(testQueueId, "q:other"), currentTime * 1000))
+                .expectNext(1L)
+                .verifyComplete();
+    }
+
+    @Test
+    void testFindNextExpiration() {
+        StepVerifier.create(queueRepo.findNextExpiration(testQueueId))
+                .verifyComplete();
+
+        reactiveRedisTemplate.opsForZSet().add(READY_SET_PREFIX + testQueueId, "t:q:test:1", 200)
+                .then(reactiveRedisTemplate.opsForZSet().add(ACTIVE_SET_PREFIX + testQueueId, "t:q:test:2", 100))
+                .then(reactiveRedisTemplate.opsForZSet().add(ACTIVE_SET_PREFIX + testQueueId, "t:q:test:3", 300))
+                .block();
+
+        StepVerifier.create(queueRepo.findNextExpiration(testQueueId))
+                .expectNext(100L)
+                .verifyComplete();
+    }
+
     @Test
     void testIncQueueHead() {
         StepVerifier.create(queueRepo.incHead(testQueueId, 100))
@@ -210,4 +405,32 @@ class QueueRepoTest {
                 .blockLast();
     }
 
+
+    @Test
+    void testDueQueuesPartitioned() {
+        // Due well after now, out of reach of the running sweep.
+        long dueTimeMillis = System.currentTimeMillis() + 3600000;
+        List<String> queueIds = Arrays.asList("q:a", "q:b", "q:c", "q:d", "q:e");
+        queueRepo.scheduleDueIfAbsent(queueIds, dueTimeMillis).block();
+
+        // Each queue is found in its own partition only.
+        assertThat(queueRepo.duePartitionCount()).isEqualTo(16);
+        for (String queueId : queueIds) {
+            for (int partition = 0; partition < queueRepo.duePartitionCount(); partition++) {
+                StepVerifier.create(queueRepo.findDueIds(dueTimeMillis, partition, 10).filter(queueId::equals).count())
+                        .expectNext(partition == queueRepo.duePartitionOf(queueId) ? 1L : 0L)
+                        .verifyComplete();
+            }
+        }
+    }
+
+    private Flux<String> findLiveLeases(long currentTime) {
+        return reactiveRedisTemplate.opsForZSet()
+                .rangeByScore(keys.leaseSet(testQueueId), Range.rightUnbounded(Range.Bound.exclusive((double) currentTime)))
+                .cast(String.class);
+    }
+
+    private String dueQueuesSet() {
+        return keys.dueQueuesSet(keys.duePartitionOf(testQueueId));
+    }
 }
@@ -0,0 +1,66 @@
+package io.openqueue.repo;
+
+import io.openqueue.dto.QueueStatusDto;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+import static io.openqueue.common.constant.Keys.QUEUE_STATUS_CHANNEL_PREFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+class QueueStatusFeedTest {
+
+    private static final String TEST_QUEUE_ID = "q:statustest";
+
+    @Autowired
+    private QueueStatusFeed queueStatusFeed;
+
+    @Autowired
+    private ReactiveRedisConnectionFactory redisConnectionFactory;
+
+    @Test
+    void testSkipMalformedStatus() throws InterruptedException {
+        // Published until heard, as the subscription goes live a little after the feed is subscribed to.
+        Disposable publishing = Flux.interval(Duration.ofMillis(50))
+                .concatMap(tick -> publish(tick % 2 == 0 ? "3:5" : "oops"))
+                .subscribe();
+        try {
+            StepVerifier.create(queueStatusFeed.updates(TEST_QUEUE_ID).take(2))
+                    .expectNext(QueueStatusDto.builder().head(3).tail(5).build())
+                    .expectNext(QueueStatusDto.builder().head(3).tail(5).build())
+                    .expectComplete()
+                    .verify(Duration.ofSeconds(10));
+        } finally {
+            publishing.dispose();
+        }
+
+        // Gone with its last listener.
+        for (int i = 0; i < 100 && !feeds().isEmpty(); i++) {
+            Thread.sleep(20);
+        }
+        assertThat(feeds()).isEmpty();
+    }
+
+    private Flux<Long> publish(String message) {
+        return redisConnectionFactory.getReactiveConnection().pubSubCommands()
+                .publish(ByteBuffer.wrap((QUEUE_STATUS_CHANNEL_PREFIX + TEST_QUEUE_ID).getBytes(StandardCharsets.UTF_8)),
+                        ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)))
+                .flux();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> feeds() {
+        return (Map<String, ?>) ReflectionTestUtils.getField(queueStatusFeed, "feeds");
+    }
+}
@@ -0,0 +1,161 @@
+package io.openqueue.repo;
+
+import io.openqueue.common.util.RandomCodeGenerator;
+import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.model.Queue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static io.openqueue.common.constant.Keys.ACTIVE_SET_PREFIX;
+import static io.openqueue.common.constant.Keys.READY_SET_PREFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {"openqueue.storage.redis.key-shards=4", "openqueue.push.sweep-interval=3600000"})
+class RedisKeysTest {
+
+    @Autowired
+    private RedisKeys keys;
+
+    @Autowired
+    private QueueRepo queueRepo;
+
+    @Autowired
+    private TicketRepo ticketRepo;
+
+    @Autowired
+    private QueueConfigCache queueConfigCache;
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Serializable> reactiveRedisTemplate;
+
+    private final String queueId = "q:sharded";
+
+    private String otherQueueId;
+
+    @BeforeEach
+    void runBeforeEachTestMethod() {
+        // A queue in another shard.
+        for (int i = 0; otherQueueId == null || keys.shardOf(otherQueueId) == keys.shardOf(queueId); i++) {
+            otherQueueId = "q:other" + i;
+        }
+        for (String id : Arrays.asList(queueId, otherQueueId)) {
+            queueConfigCache.evict(id);
+            queueRepo.createOrUpdate(Queue.builder().id(id).maxActiveUsers(1).holdTimeForActivate(60).build())
+                    .then(queueRepo.addToSet(id))
+                    .block();
+        }
+    }
+
+    @AfterEach
+    void runAfterEachTestMethod() {
+        reactiveRedisTemplate
+                .keys("*")
+                .flatMap(key -> reactiveRedisTemplate.delete(key))
+                .blockLast();
+    }
+
+    @Test
+    void testKeysOfQueueShareHashTag() {
+        String tag = "{" + keys.shardOf(queueId) + "}";
+        assertThat(keys.tag(queueId)).isEqualTo(tag);
+        assertThat(keys.queue(queueId)).isEqualTo(tag + queueId);
+        assertThat(keys.activeSet(queueId)).isEqualTo(tag + ACTIVE_SET_PREFIX + queueId)
+                .isEqualTo(keys.set(ACTIVE_SET_PREFIX + queueId));
+        assertThat(keys.readySet(queueId)).isEqualTo(keys.set(READY_SET_PREFIX + queueId));
+        assertThat(keys.ticket("t:" + queueId + ":12")).isEqualTo(tag + "t:" + queueId + ":12");
+        assertThat(keys.dueQueuesSet(keys.shardOf(queueId))).startsWith(tag);
+        assertThat(keys.allQueuesSet(keys.shardOf(queueId))).startsWith(tag);
+
+        StepVerifier.create(reactiveRedisTemplate.hasKey(keys.queue(queueId))
+                .concatWith(reactiveRedisTemplate.hasKey(queueId)))
+                .expectNext(true, false)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findAllId().sort())
+                .expectNext(otherQueueId, queueId)
+                .verifyComplete();
+    }
+
+    @Test
+    void testIssuePushAndAuthorize() {
+        long currentTime = Instant.now().getEpochSecond();
+        String authCode = RandomCodeGenerator.getCode();
+        String ticketId = ticketRepo.issue(queueId, authCode, currentTime).block().getId();
+        ticketRepo.issue(queueId, RandomCodeGenerator.getCode(), currentTime).block();
+        assertThat(ticketId).isEqualTo("t:" + queueId + ":1");
+        StepVerifier.create(reactiveRedisTemplate.hasKey(keys.ticket(ticketId))
+                .concatWith(ticketRepo.exists(ticketId)))
+                .expectNext(true, true)
+                .verifyComplete();
+
+        // Ready set members are ticket ids, whatever the keys.
+        StepVerifier.create(queueRepo.push(queueId, currentTime, 0).map(result -> result.getAdmitted()))
+                .expectNext(1L)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.isTicketInSet(READY_SET_PREFIX + queueId, ticketId))
+                .expectNext(true)
+                .verifyComplete();
+
+        String token = ticketId + ":" + authCode;
+        ticketRepo.addToSet(ACTIVE_SET_PREFIX + queueId, token, currentTime + 60).block();
+        StepVerifier.create(ticketRepo.authorize(ACTIVE_SET_PREFIX + queueId, ticketId, token, 1)
+                .concatWith(ticketRepo.authorizeAll(Collections.singletonList(TicketAuthDto.builder()
+                        .queueId(queueId)
+                        .ticketId(ticketId)
+                        .token(token)
+                        .build()), 1)))
+                .expectNext(TicketRepo.AUTHORIZED, TicketRepo.AUTHORIZED)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.findById(ticketId).map(ticket -> ticket.getCountOfUsage()))
+                .expectNext(2)
+                .verifyComplete();
+    }
+
+    @Test
+    void testDueQueuesAcrossShards() {
+        queueRepo.scheduleDue(queueId, 2000)
+                .then(queueRepo.scheduleDue(otherQueueId, 1000))
+                .block();
+        // Partitioned by shard, each shard in its own slot.
+        assertThat(queueRepo.duePartitionCount()).isEqualTo(4);
+        assertThat(queueRepo.duePartitionOf(queueId)).isEqualTo(keys.shardOf(queueId));
+        StepVerifier.create(queueRepo.findDueIds(3000, keys.shardOf(otherQueueId), 10))
+                .expectNext(otherQueueId)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findDueIds(3000, keys.shardOf(queueId), 10))
+                .expectNext(queueId)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findDueIds(1500, keys.shardOf(queueId), 10))
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.scheduleDueIfAbsent(Arrays.asList(queueId, otherQueueId, "q:new"), 500))
+                .expectNext(1L)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findScheduledIds().sort())
+                .expectNext("q:new", otherQueueId, queueId)
+                .verifyComplete();
+
+        // A push with nothing to do but an expired lease takes the queue out of its shard of the due set.
+        queueRepo.reserveTail(otherQueueId, 4, Instant.now().getEpochSecond() - 1).block();
+        StepVerifier.create(queueRepo.push(otherQueueId, Instant.now().getEpochSecond(), 256)
+                .map(result -> result.isHibernated()))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.close(queueId).concatWith(queueRepo.close(queueId)))
+                .expectNext(true, false)
+                .verifyComplete();
+        StepVerifier.create(Flux.merge(queueRepo.findAllId(), queueRepo.findScheduledIds()).sort())
+                .expectNext("q:new", otherQueueId)
+                .verifyComplete();
+    }
+}
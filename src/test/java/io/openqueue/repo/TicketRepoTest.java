@@ -1,5 +1,6 @@
 package io.openqueue.repo;
 
+import io.openqueue.dto.TicketAuthDto;
 import io.openqueue.model.Ticket;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -7,11 +8,13 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
 
 import java.io.Serializable;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.stream.IntStream;
 
@@ -44,9 +47,87 @@ class TicketRepoTest {
 
     @AfterEach
     void runAfterEachTestMethod() {
+        ReflectionTestUtils.setField(ticketRepo, "binaryFormat", false);
         cleanup();
     }
 
+    @Test
+    void testAuthorizeTicket() {
+        String activeSetKey = "set:active:" + testQueueId;
+        String token = "token";
+
+        for (boolean binary : new boolean[]{false, true}) {
+            ReflectionTestUtils.setField(ticketRepo, "binaryFormat", binary);
+            ticketRepo.create(ticket).block();
+
+            StepVerifier.create(ticketRepo.authorize(activeSetKey, testTicketId, token, 1))
+                    .expectNext(TicketRepo.NOT_ACTIVE)
+                    .verifyComplete();
+
+            ticketRepo.addToSet(activeSetKey, token, Instant.now().getEpochSecond() + 60).block();
+            StepVerifier.create(ticketRepo.authorize(activeSetKey, testTicketId, token, 1)
+                    .then(ticketRepo.authorize(activeSetKey, testTicketId, token, 1)))
+                    .expectNext(TicketRepo.AUTHORIZED)
+                    .verifyComplete();
+            StepVerifier.create(ticketRepo.findById(testTicketId).map(Ticket::getCountOfUsage))
+                    .expectNext(2)
+                    .verifyComplete();
+
+            ticketRepo.setOccupied(testTicketId).block();
+            StepVerifier.create(ticketRepo.authorize(activeSetKey, testTicketId, token, 1))
+                    .expectNext(TicketRepo.OCCUPIED)
+                    .verifyComplete();
+
+            cleanup();
+        }
+    }
+
+    @Test
+    void testAuthorizeAllTickets() {
+        String activeSetKey = "set:active:" + testQueueId;
+        String token = testTicketId + ":" + ticket.getAuthCode();
+        TicketAuthDto ticketAuthDto = TicketAuthDto.builder()
+                .ticketId(testTicketId)
+                .queueId(testQueueId)
+                .token(token)
+                .build();
+        TicketAuthDto unknownTicket = TicketAuthDto.builder()
+                .ticketId("t:q:other:1")
+                .queueId("q:other")
+                .token("t:q:other:1:" + ticket.getAuthCode())
+                .build();
+
+        ticketRepo.create(ticket).block();
+        ticketRepo.addToSet(activeSetKey, token, Instant.now().getEpochSecond() + 60).block();
+
+        StepVerifier.create(ticketRepo.authorizeAll(Arrays.asList(ticketAuthDto, unknownTicket, ticketAuthDto), 1))
+                .expectNext(TicketRepo.AUTHORIZED, TicketRepo.NOT_ACTIVE, TicketRepo.AUTHORIZED)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.findById(testTicketId).map(Ticket::getCountOfUsage))
+                .expectNext(2)
+                .verifyComplete();
+    }
+
+    @Test
+    void testAddUsage() {
+        for (boolean binary : new boolean[]{false, true}) {
+            ReflectionTestUtils.setField(ticketRepo, "binaryFormat", binary);
+            ticketRepo.create(ticket).block();
+
+            StepVerifier.create(ticketRepo.addUsage(testTicketId, 5).then(ticketRepo.addUsage(testTicketId, 2)))
+                    .expectNext(7L)
+                    .verifyComplete();
+
+            // Revoked tickets are not brought back by late uses.
+            ticketRepo.revoke(testTicketId).block();
+            StepVerifier.create(ticketRepo.addUsage(testTicketId, 1))
+                    .verifyComplete();
+            StepVerifier.create(ticketRepo.exists(testTicketId))
+                    .expectNext(false)
+                    .verifyComplete();
+        }
+    }
+
     @Test
     void testCreateFindAndRevokeTicket() {
 
@@ -79,6 +160,117 @@ class TicketRepoTest {
                 .verify();
     }
 
+    @Test
+    void testCreateAllTickets() {
+        Flux<Ticket> tickets = Flux.range(1, 1000)
+                .map(index -> Ticket.builder()
+                        .id("t:" + testQueueId + ":" + index)
+                        .authCode("1asdIU2ay")
+                        .issueTime(Instant.now().getEpochSecond())
+                        .build());
+
+        // Tickets come back in the order they were given.
+        StepVerifier.create(ticketRepo.createAll(tickets).map(Ticket::getId))
+                .expectNext("t:" + testQueueId + ":1")
+                .expectNextCount(998)
+                .expectNext("t:" + testQueueId + ":1000")
+                .expectComplete()
+                .verify();
+
+        StepVerifier.create(ticketRepo.findById("t:" + testQueueId + ":1000"))
+                .expectNextCount(1)
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void testIssueTicket() {
+        // Queue not exist.
+        StepVerifier.create(ticketRepo.issue(testQueueId, "1asdIU2ay", 123L))
+                .expectComplete()
+                .verify();
+
+        reactiveRedisTemplate.opsForHash().put(testQueueId, "tail", 0).block();
+
+        // Issue a ticket at the next position.
+        StepVerifier.create(ticketRepo.issue(testQueueId, "1asdIU2ay", 123L))
+                .assertNext(ticket1 -> {
+                    assertThat(ticket1.getId()).isEqualTo("t:" + testQueueId + ":1");
+                    assertThat(ticket1.getAuthCode()).isEqualTo("1asdIU2ay");
+                })
+                .expectComplete()
+                .verify();
+
+        // Expect the ticket has been written.
+        StepVerifier.create(ticketRepo.findById("t:" + testQueueId + ":1"))
+                .assertNext(ticket1 -> {
+                    assertThat(ticket1.getAuthCode()).isEqualTo("1asdIU2ay");
+                    assertThat(ticket1.getIssueTime()).isEqualTo(123L);
+                    assertThat(ticket1.isOccupied()).isFalse();
+                    assertThat(ticket1.getCountOfUsage()).isEqualTo(0);
+                })
+                .expectComplete()
+                .verify();
+    }
+
+    @Test
+    void testBinaryTicketFormat() {
+        // A ticket written as a hash before switching format.
+        ticketRepo.create(ticket).block();
+        ReflectionTestUtils.setField(ticketRepo, "binaryFormat", true);
+
+        Ticket binaryTicket = ticket.toBuilder().id(testTicketId + "0").build();
+        StepVerifier.create(ticketRepo.create(binaryTicket))
+                .expectNext(binaryTicket)
+                .verifyComplete();
+
+        StepVerifier.create(reactiveRedisTemplate.type(binaryTicket.getId()).map(Enum::name))
+                .expectNext("STRING")
+                .verifyComplete();
+
+        // Both formats are read and updated in place.
+        for (String ticketId : new String[]{testTicketId, binaryTicket.getId()}) {
+            StepVerifier.create(ticketRepo.incUsage(ticketId).then(ticketRepo.incUsage(ticketId)))
+                    .expectNext(2L)
+                    .verifyComplete();
+
+            StepVerifier.create(ticketRepo.setOccupied(ticketId)
+                    .then(ticketRepo.setActivateTime(ticketId, 1600000000L))
+                    .then(ticketRepo.findById(ticketId)))
+                    .assertNext(ticket1 -> {
+                        assertThat(ticket1.getId()).isEqualTo(ticketId);
+                        assertThat(ticket1.getAuthCode()).isEqualTo(ticket.getAuthCode());
+                        assertThat(ticket1.getIssueTime()).isEqualTo(ticket.getIssueTime());
+                        assertThat(ticket1.getActivateTime()).isEqualTo(1600000000L);
+                        assertThat(ticket1.getCountOfUsage()).isEqualTo(2);
+                        assertThat(ticket1.isOccupied()).isTrue();
+                    })
+                    .verifyComplete();
+        }
+
+        // Issued by the script.
+        reactiveRedisTemplate.opsForHash().put(testQueueId, "tail", 0).block();
+        StepVerifier.create(ticketRepo.issue(testQueueId, "1asdIU2ay", 123L)
+                .flatMap(issued -> ticketRepo.findById(issued.getId())))
+                .assertNext(ticket1 -> {
+                    assertThat(ticket1.getAuthCode()).isEqualTo("1asdIU2ay");
+                    assertThat(ticket1.getIssueTime()).isEqualTo(123L);
+                    assertThat(ticket1.getCountOfUsage()).isEqualTo(0);
+                })
+                .verifyComplete();
+
+        // Updates to a revoked ticket do not bring it back, in either format.
+        for (String ticketId : new String[]{testTicketId, binaryTicket.getId()}) {
+            StepVerifier.create(ticketRepo.revoke(ticketId)
+                    .then(ticketRepo.incUsage(ticketId))
+                    .then(ticketRepo.setActivateTime(ticketId, 1600000000L))
+                    .then(ticketRepo.setOccupied(ticketId))
+                    .then(reactiveRedisTemplate.hasKey(ticketId)))
+                    .expectNext(false)
+                    .verifyComplete();
+        }
+    }
+
     @Test
     void testIncTicketUsage() {
         // 1. Create a new ticket.
@@ -0,0 +1,88 @@
+package io.openqueue.repo;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TicketUsageCounterTest {
+
+    private TicketUsageCounter ticketUsageCounter;
+
+    private TicketRepo ticketRepo;
+
+    @BeforeEach
+    void setUp() {
+        ticketRepo = mock(TicketRepo.class);
+        when(ticketRepo.addUsage(anyString(), anyLong())).thenReturn(Mono.just(1L));
+        when(ticketRepo.addUsage(eq("t:q:test:gone"), anyLong())).thenReturn(Mono.empty());
+
+        ticketUsageCounter = new TicketUsageCounter();
+        ReflectionTestUtils.setField(ticketUsageCounter, "ticketRepo", ticketRepo);
+        ReflectionTestUtils.setField(ticketUsageCounter, "flushThreshold", 1000);
+    }
+
+    @Test
+    void testFlushPendingUses() {
+        for (int i = 0; i < 3; i++) {
+            ticketUsageCounter.increment("t:q:test:1");
+        }
+        ticketUsageCounter.increment("t:q:test:gone");
+        assertThat(ticketUsageCounter.pending("t:q:test:1")).isEqualTo(3);
+
+        assertThat(ticketUsageCounter.flush().block()).isEqualTo(4);
+        verify(ticketRepo).addUsage("t:q:test:1", 3);
+        assertThat(ticketUsageCounter.pending("t:q:test:1")).isEqualTo(0);
+        assertThat(ticketUsageCounter.pending("t:q:test:gone")).isEqualTo(0);
+
+        // Only what came since the last flush is written.
+        ticketUsageCounter.increment("t:q:test:1");
+        assertThat(ticketUsageCounter.flush().block()).isEqualTo(1);
+        verify(ticketRepo).addUsage("t:q:test:1", 1);
+
+        // Idle counters are dropped, and nothing is written for them.
+        assertThat(ticketUsageCounter.flush().block()).isEqualTo(0);
+        assertThat(ticketUsageCounter.flush().block()).isEqualTo(0);
+        verify(ticketRepo, times(2)).addUsage(eq("t:q:test:1"), anyLong());
+    }
+
+    @Test
+    void testKeepUsesOfFailedFlush() {
+        when(ticketRepo.addUsage(eq("t:q:test:1"), anyLong()))
+                .thenReturn(Mono.error(new IllegalStateException("timeout")))
+                .thenReturn(Mono.just(2L));
+        ticketUsageCounter.increment("t:q:test:1");
+        ticketUsageCounter.increment("t:q:test:1");
+
+        assertThat(ticketUsageCounter.flush().block()).isEqualTo(0);
+        assertThat(ticketUsageCounter.pending("t:q:test:1")).isEqualTo(2);
+
+        // Written in full by the next flush.
+        assertThat(ticketUsageCounter.flush().block()).isEqualTo(2);
+        verify(ticketRepo, times(2)).addUsage("t:q:test:1", 2);
+        assertThat(ticketUsageCounter.pending("t:q:test:1")).isEqualTo(0);
+    }
+
+    @Test
+    void testFlushAtThreshold() {
+        ReflectionTestUtils.setField(ticketUsageCounter, "flushThreshold", 2);
+
+        ticketUsageCounter.increment("t:q:test:1");
+        ticketUsageCounter.increment("t:q:test:2");
+        ticketUsageCounter.increment("t:q:test:2");
+
+        // Flushed when the second ticket came in.
+        verify(ticketRepo).addUsage("t:q:test:1", 1);
+        verify(ticketRepo).addUsage("t:q:test:2", 1);
+        assertThat(ticketUsageCounter.pending("t:q:test:2")).isEqualTo(1);
+    }
+}
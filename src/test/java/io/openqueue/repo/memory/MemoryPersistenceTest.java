@@ -0,0 +1,234 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.common.util.RandomCodeGenerator;
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.Queue;
+import io.openqueue.model.Ticket;
+import io.openqueue.repo.QueueRepo;
+import io.openqueue.repo.QueueStatusFeed;
+import io.openqueue.repo.TicketRepo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class MemoryPersistenceTest {
+
+    private static final String QUEUE_ID = "q:persisted";
+
+    @TempDir
+    Path dir;
+
+    private MemoryStore store;
+
+    private QueueRepo queueRepo;
+
+    private TicketRepo ticketRepo;
+
+    private MemoryPersistence persistence;
+
+    /**
+     * Start an engine on {@link #dir}, dropping the previous one as if it crashed.
+     */
+    private void start(int segmentSize) throws IOException {
+        store = new MemoryStore();
+        queueRepo = new MemoryQueueRepo();
+        ReflectionTestUtils.setField(queueRepo, "store", store);
+        ReflectionTestUtils.setField(queueRepo, "queueStatusFeed", mock(QueueStatusFeed.class));
+        ticketRepo = new MemoryTicketRepo();
+        ReflectionTestUtils.setField(ticketRepo, "store", store);
+
+        persistence = new MemoryPersistence();
+        ReflectionTestUtils.setField(persistence, "store", store);
+        ReflectionTestUtils.setField(persistence, "queueRepo", queueRepo);
+        ReflectionTestUtils.setField(persistence, "ticketRepo", ticketRepo);
+        ReflectionTestUtils.setField(persistence, "dataDir", dir.toString());
+        ReflectionTestUtils.setField(persistence, "segmentSize", segmentSize);
+        persistence.recover();
+    }
+
+    @Test
+    void testRecoverFromCheckpointAndJournal() throws IOException {
+        // A few records a segment, so the journal spans several of them.
+        start(256);
+        long currentTime = Instant.now().getEpochSecond();
+        queueRepo.createOrUpdate(Queue.builder().id(QUEUE_ID).name("a").maxActiveUsers(2).holdTimeForActivate(60).build())
+                .then(queueRepo.addToSet(QUEUE_ID))
+                .block();
+        List<String> authCodes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            authCodes.add(RandomCodeGenerator.getCode());
+            ticketRepo.issue(QUEUE_ID, authCodes.get(i), currentTime).block();
+        }
+        String activeSetKey = "set:active:" + QUEUE_ID;
+        String token = "t:" + QUEUE_ID + ":1:" + authCodes.get(0);
+        queueRepo.push(QUEUE_ID, currentTime, 0).block();
+        ticketRepo.removeOutOfSetById("set:ready:" + QUEUE_ID, "t:" + QUEUE_ID + ":1")
+                .then(ticketRepo.addToSet(activeSetKey, token, currentTime + 300))
+                .then(ticketRepo.setActivateTime("t:" + QUEUE_ID + ":1", currentTime))
+                .then(ticketRepo.authorize(activeSetKey, "t:" + QUEUE_ID + ":1", token, 3))
+                .block();
+
+        persistence.checkpoint();
+        ticketRepo.revoke("t:" + QUEUE_ID + ":4")
+                .then(ticketRepo.setOccupied("t:" + QUEUE_ID + ":2"))
+                .then(queueRepo.reserveTail(QUEUE_ID, 10, currentTime + 30))
+                .then(ticketRepo.create(Ticket.builder().id("t:" + QUEUE_ID + ":7").authCode("signed").build()))
+                .block();
+        Queue queue = queueRepo.findById(QUEUE_ID).block();
+        List<Ticket> tickets = findTickets(16);
+
+        start(256);
+        assertThat(queueRepo.findById(QUEUE_ID).block()).isEqualTo(queue);
+        assertThat(queueRepo.findAllId().collectList().block()).containsExactly(QUEUE_ID);
+        assertThat(findTickets(16)).isEqualTo(tickets);
+        assertThat(ticketRepo.countTicketInSet("set:ready:" + QUEUE_ID).block()).isEqualTo(1);
+        assertThat(ticketRepo.isTicketInSet(activeSetKey, token).block()).isTrue();
+        assertThat(store.queues.get(QUEUE_ID).leases).extracting(PositionLease::getExpirationTime)
+                .containsExactly(currentTime + 30);
+        assertThat(ticketRepo.findById("t:" + QUEUE_ID + ":1").block().getCountOfUsage()).isEqualTo(3);
+
+        // Recovery took a checkpoint and dropped the segments before it.
+        assertThat(files("journal-")).hasSize(1);
+        assertThat(files("checkpoint-")).hasSize(1);
+
+        // The queue is due again, positions go on where they were.
+        assertThat(queueRepo.findScheduledIds().collectList().block()).containsExactly(QUEUE_ID);
+        assertThat(ticketRepo.issue(QUEUE_ID, RandomCodeGenerator.getCode(), currentTime).block().getId())
+                .isEqualTo("t:" + QUEUE_ID + ":16");
+    }
+
+    @Test
+    void testStopAtTornRecord() throws IOException {
+        start(1 << 16);
+        queueRepo.createOrUpdate(Queue.builder().id(QUEUE_ID).maxActiveUsers(10).build()).block();
+        ticketRepo.issue(QUEUE_ID, RandomCodeGenerator.getCode(), 0).block();
+        ticketRepo.issue(QUEUE_ID, RandomCodeGenerator.getCode(), 0).block();
+
+        tearLastRecord(files("journal-").get(0));
+
+        start(1 << 16);
+        assertThat(queueRepo.findById(QUEUE_ID).block().getTail()).isEqualTo(1);
+        assertThat(ticketRepo.exists("t:" + QUEUE_ID + ":2").block()).isFalse();
+
+        // Writes go on after the last intact record.
+        ticketRepo.issue(QUEUE_ID, RandomCodeGenerator.getCode(), 0).block();
+        start(1 << 16);
+        assertThat(queueRepo.findById(QUEUE_ID).block().getTail()).isEqualTo(2);
+        assertThat(ticketRepo.exists("t:" + QUEUE_ID + ":2").block()).isTrue();
+    }
+
+    @Test
+    void testStopAtLostEndOfSegment() throws IOException {
+        // Three records a segment, the later segments reached the disk but the end of the first did not.
+        start(256);
+        queueRepo.createOrUpdate(Queue.builder().id(QUEUE_ID).maxActiveUsers(10).build()).block();
+        for (int i = 0; i < 8; i++) {
+            ticketRepo.issue(QUEUE_ID, RandomCodeGenerator.getCode(), 0).block();
+        }
+        assertThat(files("journal-").size()).isGreaterThan(2);
+        tearLastRecord(files("journal-").get(0));
+
+        start(256);
+        assertThat(queueRepo.findById(QUEUE_ID).block().getTail()).isEqualTo(1);
+        assertThat(ticketRepo.exists("t:" + QUEUE_ID + ":3").block()).isFalse();
+        assertThat(files("journal-")).hasSize(1);
+
+        ticketRepo.issue(QUEUE_ID, RandomCodeGenerator.getCode(), 0).block();
+        start(256);
+        assertThat(queueRepo.findById(QUEUE_ID).block().getTail()).isEqualTo(2);
+        assertThat(ticketRepo.exists("t:" + QUEUE_ID + ":3").block()).isFalse();
+    }
+
+    @Test
+    void testSnapshotTicketsAsOfItsStart() throws IOException {
+        QueueState state = new QueueState(QUEUE_ID, Queue.builder().id(QUEUE_ID).build());
+        long[] positions = {1, 2, 3, 4097};
+        for (long position : positions) {
+            state.tickets.put(position, RandomCodeGenerator.getCode(), position, 0, false, 0);
+        }
+        state.tickets.put(4098, "signed", 4098, 0, false, 0);
+        List<Ticket> tickets = new ArrayList<>();
+        for (long position : new long[]{1, 2, 3, 4097, 4098}) {
+            tickets.add(state.tickets.get("t:" + QUEUE_ID + ":" + position, position));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        TicketTable.Snapshot snapshot = state.writeHeaderTo(out);
+        // Written to after the snapshot started, chunks not yet taken are copied first.
+        state.tickets.addUses(1, 5);
+        state.tickets.remove(2);
+        state.tickets.put(3, "other", 3, 3, true, 1);
+        state.tickets.releaseBefore(4096);
+        state.tickets.setOccupied(4097);
+        state.tickets.put(4098, RandomCodeGenerator.getCode(), 4098, 0, false, 0);
+        state.tickets.put(8193, RandomCodeGenerator.getCode(), 8193, 0, false, 0);
+        state.writeTicketsTo(out, snapshot);
+
+        QueueState read = QueueState.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        List<Ticket> readTickets = new ArrayList<>();
+        for (long position : new long[]{1, 2, 3, 4097, 4098}) {
+            readTickets.add(read.tickets.get("t:" + QUEUE_ID + ":" + position, position));
+        }
+        assertThat(readTickets).isEqualTo(tickets);
+        assertThat(read.tickets.exists(8193)).isFalse();
+        assertThat(read.tickets.size()).isEqualTo(5);
+
+        // Done with, writes no longer copy chunks.
+        state.tickets.setOccupied(4098);
+        assertThat(ReflectionTestUtils.getField(state.tickets, "snapshot")).isNull();
+    }
+
+    /**
+     * Flip a byte in the last record of the segment, as if it was torn by a crash.
+     */
+    private static void tearLastRecord(Path segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int position = 0;
+            int lastRecord = 0;
+            for (int length = file.readInt(); length > 0 && position + length + 4 <= file.length();
+                 length = file.readInt()) {
+                lastRecord = position;
+                position += length;
+                file.seek(position);
+            }
+            file.seek(lastRecord + 20);
+            int flipped = file.readByte() ^ 1;
+            file.seek(lastRecord + 20);
+            file.writeByte(flipped);
+        }
+    }
+
+    private List<Ticket> findTickets(int count) {
+        List<Ticket> tickets = new ArrayList<>();
+        for (int position = 1; position <= count; position++) {
+            tickets.add(ticketRepo.findById("t:" + QUEUE_ID + ":" + position).block());
+        }
+        return tickets;
+    }
+
+    private List<Path> files(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.model.PushResult;
+import io.openqueue.model.Queue;
+import io.openqueue.model.Ticket;
+import io.openqueue.repo.QueueRepo;
+import io.openqueue.repo.TicketRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.test.StepVerifier;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+@SpringBootTest(properties = {"openqueue.storage.engine=memory", "openqueue.push.sweep-interval=3600000"})
+class MemoryQueueRepoTest {
+
+    @Autowired
+    private QueueRepo queueRepo;
+
+    @Autowired
+    private TicketRepo ticketRepo;
+
+    @Autowired
+    private MemoryStore store;
+
+    private final String testQueueId = "q:memory";
+
+    private final Queue queueTest = Queue.builder()
+            .id(testQueueId)
+            .availableSecondPerUser(300)
+            .holdTimeForActivate(60)
+            .capacity(100000)
+            .maxActiveUsers(1000)
+            .name("test_queue")
+            .build();
+
+    @BeforeEach
+    void runBeforeEachTestMethod() {
+        queueRepo.createOrUpdate(queueTest).then(queueRepo.addToSet(testQueueId)).block();
+    }
+
+    @AfterEach
+    void runAfterEachTestMethod() {
+        store.queues.clear();
+        store.queueIds.clear();
+        store.dueTimes.clear();
+        store.locks.clear();
+    }
+
+    @Test
+    void testEngineIsMemory() {
+        assertThat(queueRepo).isInstanceOf(MemoryQueueRepo.class);
+        assertThat(ticketRepo).isInstanceOf(MemoryTicketRepo.class);
+    }
+
+    @Test
+    void testCreateAndUpdateQueue() {
+        StepVerifier.create(queueRepo.findById(testQueueId))
+                .expectNext(queueTest)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findAllId())
+                .expectNext(testQueueId)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.addToSet(testQueueId))
+                .expectNext(Boolean.FALSE)
+                .verifyComplete();
+
+        // The repo keeps its own copy of the config, and positions are not part of it.
+        queueTest.setName("changed");
+        queueRepo.incAndGetTail(testQueueId).block();
+        queueRepo.updateConfig(queueTest.toBuilder().name("new_name").build()).block();
+        StepVerifier.create(queueRepo.findById(testQueueId))
+                .assertNext(queue -> {
+                    assertThat(queue.getName()).isEqualTo("new_name");
+                    assertThat(queue.getTail()).isEqualTo(1);
+                })
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.close(testQueueId))
+                .expectNext(Boolean.TRUE)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findById(testQueueId))
+                .verifyComplete();
+        StepVerifier.create(queueRepo.incAndGetTail(testQueueId))
+                .verifyComplete();
+    }
+
+    @Test
+    void testQueueLock() {
+        StepVerifier.create(queueRepo.getQueueLock(testQueueId, "owner1", 5)
+                .concatWith(queueRepo.getQueueLock(testQueueId, "owner2", 5))
+                .concatWith(queueRepo.releaseQueueLock(testQueueId, "owner2"))
+                .concatWith(queueRepo.releaseQueueLock(testQueueId, "owner1"))
+                .concatWith(queueRepo.getQueueLock(testQueueId, "owner2", 5)))
+                .expectNext(true, false, false, true, true)
+                .verifyComplete();
+
+        // An expired lock is taken over.
+        StepVerifier.create(queueRepo.getQueueLock("q:other", "owner1", 0)
+                .concatWith(queueRepo.getQueueLock("q:other", "owner2", 5)))
+                .expectNext(true, true)
+                .verifyComplete();
+    }
+
+    @Test
+    void testPushQueue() {
+        long currentTime = Instant.now().getEpochSecond();
+        // Position 3 is never written, position 5 is leased and not written yet.
+        for (int position = 1; position <= 4; position++) {
+            long tail = queueRepo.incAndGetTail(testQueueId).block();
+            if (tail != 3) {
+                ticketRepo.create(ticket(tail)).block();
+            }
+        }
+        queueRepo.reserveTail(testQueueId, 1, currentTime + 10).block();
+
+        StepVerifier.create(queueRepo.push(testQueueId, currentTime, 256))
+                .expectNext(new PushResult(3, 4, 5, 1000, currentTime + 60, false))
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.countTicketInSet("set:ready:" + testQueueId))
+                .expectNext(3L)
+                .verifyComplete();
+
+        // Nothing more to admit until the leased position is written.
+        StepVerifier.create(queueRepo.push(testQueueId, currentTime, 256))
+                .expectNext(new PushResult(0, 4, 5, 997, currentTime + 60, false))
+                .verifyComplete();
+
+        // Once the ready tickets expire and the lease runs out, the queue goes to sleep.
+        StepVerifier.create(queueRepo.push(testQueueId, currentTime + 60, 256))
+                .expectNext(new PushResult(0, 5, 5, 1000, -1, true))
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findScheduledIds())
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.push("q:not_exist", currentTime, 256))
+                .verifyComplete();
+    }
+
+    @Test
+    void testPushReleasesPassedTickets() {
+        long currentTime = Instant.now().getEpochSecond();
+        int count = (3 << TicketTable.CHUNK_BITS) - 1;
+        for (int position = 1; position <= count; position++) {
+            ticketRepo.issue(testQueueId, "", currentTime).block();
+        }
+        QueueState state = store.queues.get(testQueueId);
+        assertThat(state.tickets.size()).isEqualTo(count);
+
+        // The ready tickets hold the chunk they are in, the ones before it go.
+        queueRepo.incHead(testQueueId, count - 1000).block();
+        queueRepo.push(testQueueId, currentTime, 0).block();
+        assertThat(state.tickets.size()).isEqualTo(1 << TicketTable.CHUNK_BITS);
+        StepVerifier.create(ticketRepo.exists("t:" + testQueueId + ":1"))
+                .expectNext(false)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.exists("t:" + testQueueId + ":" + (count - 999)))
+                .expectNext(true)
+                .verifyComplete();
+
+        // Released positions can not be written again.
+        ticketRepo.create(ticket(1)).block();
+        StepVerifier.create(ticketRepo.exists("t:" + testQueueId + ":1"))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    void testDueQueues() {
+        long currentTimeMillis = System.currentTimeMillis();
+        StepVerifier.create(queueRepo.scheduleDue(testQueueId, currentTimeMillis + 100)
+                .concatWith(queueRepo.scheduleDue("q:early", currentTimeMillis)))
+                .expectNext(true, true)
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.findDueIds(currentTimeMillis + 100, 0, 10))
+                .expectNext("q:early", testQueueId)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findDueIds(currentTimeMillis, 0, 10))
+                .expectNext("q:early")
+                .verifyComplete();
+
+        // Moved behind the other queue, and limited.
+        StepVerifier.create(queueRepo.scheduleDue("q:early", currentTimeMillis + 200)
+                .thenMany(queueRepo.findDueIds(currentTimeMillis + 200, 0, 10)))
+                .expectNext(testQueueId, "q:early")
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findDueIds(currentTimeMillis + 200, 0, 1))
+                .expectNext(testQueueId)
+                .verifyComplete();
+
+        StepVerifier.create(queueRepo.scheduleDueIfAbsent(Arrays.asList(testQueueId, "q:other"), currentTimeMillis))
+                .expectNext(1L)
+                .verifyComplete();
+    }
+
+    private Ticket ticket(long position) {
+        return Ticket.builder()
+                .id("t:" + testQueueId + ":" + position)
+                .authCode("1asdIU2ay")
+                .issueTime(Instant.now().getEpochSecond())
+                .build();
+    }
+}
@@ -0,0 +1,193 @@
+package io.openqueue.repo.memory;
+
+import io.openqueue.common.util.RandomCodeGenerator;
+import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.model.Queue;
+import io.openqueue.model.Ticket;
+import io.openqueue.repo.QueueRepo;
+import io.openqueue.repo.TicketRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+@SpringBootTest(properties = {"openqueue.storage.engine=memory", "openqueue.push.sweep-interval=3600000"})
+class MemoryTicketRepoTest {
+
+    @Autowired
+    private QueueRepo queueRepo;
+
+    @Autowired
+    private TicketRepo ticketRepo;
+
+    @Autowired
+    private MemoryStore store;
+
+    private final String testQueueId = "q:memory";
+    private final String readySetKey = "set:ready:" + testQueueId;
+    private final String activeSetKey = "set:active:" + testQueueId;
+
+    @BeforeEach
+    void runBeforeEachTestMethod() {
+        queueRepo.createOrUpdate(Queue.builder()
+                .id(testQueueId)
+                .maxActiveUsers(1000)
+                .holdTimeForActivate(60)
+                .build()).block();
+    }
+
+    @AfterEach
+    void runAfterEachTestMethod() {
+        store.queues.clear();
+        store.dueTimes.clear();
+    }
+
+    @Test
+    void testIssueAndFindTicket() {
+        long issueTime = Instant.now().getEpochSecond();
+        String authCode = RandomCodeGenerator.getCode();
+
+        StepVerifier.create(ticketRepo.issue(testQueueId, authCode, issueTime))
+                .assertNext(ticket -> assertThat(ticket.getId()).isEqualTo("t:" + testQueueId + ":1"))
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.issue("q:not_exist", authCode, issueTime))
+                .verifyComplete();
+        // Issuing wakes the queue.
+        StepVerifier.create(queueRepo.findScheduledIds())
+                .expectNext(testQueueId)
+                .verifyComplete();
+
+        StepVerifier.create(ticketRepo.findById("t:" + testQueueId + ":1"))
+                .expectNext(Ticket.builder()
+                        .id("t:" + testQueueId + ":1")
+                        .authCode(authCode)
+                        .issueTime(issueTime)
+                        .build())
+                .verifyComplete();
+        for (String ticketId : new String[]{"t:" + testQueueId + ":2", "t:" + testQueueId + ":x", "t:q:other:1", "bad"}) {
+            StepVerifier.create(ticketRepo.findById(ticketId))
+                    .verifyComplete();
+        }
+    }
+
+    @Test
+    void testCreateUpdateAndRevokeTicket() {
+        // Codes that do not pack into the table are kept as they are.
+        Ticket ticket = Ticket.builder()
+                .id("t:" + testQueueId + ":7")
+                .authCode("1asdIU2ay")
+                .issueTime(Instant.now().getEpochSecond())
+                .countOfUsage(3)
+                .build();
+        StepVerifier.create(ticketRepo.createAll(Flux.just(ticket, ticket.toBuilder().id("t:q:other:1").build())))
+                .expectNextCount(2)
+                .verifyComplete();
+
+        ticketRepo.setActivateTime(ticket.getId(), 100)
+                .then(ticketRepo.setOccupied(ticket.getId()))
+                .block();
+        StepVerifier.create(ticketRepo.incUsage(ticket.getId()).concatWith(ticketRepo.addUsage(ticket.getId(), 5)))
+                .expectNext(4L, 9L)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.findById(ticket.getId()))
+                .expectNext(ticket.toBuilder().activateTime(100).occupied(true).countOfUsage(9).build())
+                .verifyComplete();
+
+        StepVerifier.create(ticketRepo.revoke(ticket.getId()).concatWith(ticketRepo.revoke(ticket.getId())))
+                .expectNext(1L, 0L)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.addUsage(ticket.getId(), 1))
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.exists(ticket.getId()))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    void testReadyAndActiveSets() {
+        String authCode = RandomCodeGenerator.getCode();
+        String ticketId = ticketRepo.issue(testQueueId, authCode, 0).block().getId();
+        String token = ticketId + ":" + authCode;
+        String otherToken = ticketId + ":" + RandomCodeGenerator.getCode();
+
+        ticketRepo.addToSet(readySetKey, ticketId, 100)
+                .then(ticketRepo.addToSet(activeSetKey, token, 200))
+                .then(ticketRepo.addToSet(readySetKey, "t:q:other:1", 100))
+                .block();
+        StepVerifier.create(ticketRepo.countTicketInSet(readySetKey)
+                .concatWith(ticketRepo.countTicketInSet(activeSetKey)))
+                .expectNext(1L, 1L)
+                .verifyComplete();
+
+        // Active members are tokens, a wrong auth code is not a member.
+        StepVerifier.create(ticketRepo.isTicketInSet(readySetKey, ticketId)
+                .concatWith(ticketRepo.isTicketInSet(activeSetKey, token))
+                .concatWith(ticketRepo.isTicketInSet(activeSetKey, otherToken))
+                .concatWith(ticketRepo.isTicketInSet(readySetKey, "t:q:other:1")))
+                .expectNext(true, true, false, false)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.removeOutOfSetById(activeSetKey, otherToken))
+                .expectNext(0L)
+                .verifyComplete();
+
+        StepVerifier.create(ticketRepo.removeOutOfSetByTime(readySetKey, 100)
+                .concatWith(ticketRepo.removeOutOfSetById(activeSetKey, token)))
+                .expectNext(1L, 1L)
+                .verifyComplete();
+        StepVerifier.create(queueRepo.findNextExpiration(testQueueId))
+                .verifyComplete();
+    }
+
+    @Test
+    void testAuthorizeTickets() {
+        String authCode = RandomCodeGenerator.getCode();
+        String ticketId = ticketRepo.issue(testQueueId, authCode, 0).block().getId();
+        String token = ticketId + ":" + authCode;
+        TicketAuthDto ticketAuthDto = TicketAuthDto.builder()
+                .ticketId(ticketId)
+                .queueId(testQueueId)
+                .token(token)
+                .build();
+        TicketAuthDto unknownTicket = TicketAuthDto.builder()
+                .ticketId("t:q:other:1")
+                .queueId("q:other")
+                .token("t:q:other:1:" + authCode)
+                .build();
+
+        StepVerifier.create(ticketRepo.authorize(activeSetKey, ticketId, token, 1))
+                .expectNext(TicketRepo.NOT_ACTIVE)
+                .verifyComplete();
+
+        ticketRepo.addToSet(activeSetKey, token, Instant.now().getEpochSecond() + 60).block();
+        StepVerifier.create(ticketRepo.authorizeAll(Arrays.asList(ticketAuthDto, unknownTicket, ticketAuthDto), 1))
+                .expectNext(TicketRepo.AUTHORIZED, TicketRepo.NOT_ACTIVE, TicketRepo.AUTHORIZED)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.authorize(activeSetKey, ticketId, ticketId + ":" + RandomCodeGenerator.getCode(), 1))
+                .expectNext(TicketRepo.NOT_ACTIVE)
+                .verifyComplete();
+        StepVerifier.create(ticketRepo.findById(ticketId).map(Ticket::getCountOfUsage))
+                .expectNext(2)
+                .verifyComplete();
+
+        ticketRepo.setOccupied(ticketId).block();
+        StepVerifier.create(ticketRepo.authorize(activeSetKey, ticketId, token, 1))
+                .expectNext(TicketRepo.OCCUPIED)
+                .verifyComplete();
+
+        // A ticket without a code matches none.
+        String codelessId = ticketRepo.issue(testQueueId, "", 0).block().getId();
+        String codelessToken = codelessId + ":" + authCode;
+        ticketRepo.addToSet(activeSetKey, codelessToken, Instant.now().getEpochSecond() + 60).block();
+        StepVerifier.create(ticketRepo.authorize(activeSetKey, codelessId, codelessToken, 1))
+                .expectNext(TicketRepo.NOT_ACTIVE)
+                .verifyComplete();
+    }
+}
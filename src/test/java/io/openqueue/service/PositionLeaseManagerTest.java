@@ -0,0 +1,133 @@
+package io.openqueue.service;
+
+import io.openqueue.model.PositionLease;
+import io.openqueue.model.Queue;
+import io.openqueue.repo.QueueRepo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PositionLeaseManagerTest {
+
+    private static final String QUEUE_ID = "q:leased";
+
+    private static final int LEASE_SIZE = 4;
+
+    private static final int MAX_IDLE = 2;
+
+    private PositionLeaseManager positionLeaseManager;
+
+    private QueueRepo queueRepo;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    @BeforeEach
+    void setUp() {
+        queueRepo = mock(QueueRepo.class);
+        when(queueRepo.findConfigById(anyString())).thenReturn(Mono.empty());
+        when(queueRepo.findConfigById(QUEUE_ID)).thenReturn(Mono.just(Queue.builder().id(QUEUE_ID).build()));
+        when(queueRepo.reserveTail(eq(QUEUE_ID), anyInt(), anyLong())).thenAnswer(invocation -> {
+            int count = invocation.getArgument(1);
+            long last = tail.addAndGet(count);
+            return Mono.just(PositionLease.builder()
+                    .first(last - count + 1)
+                    .last(last)
+                    .expirationTime(invocation.getArgument(2))
+                    .build());
+        });
+        when(queueRepo.releaseLease(anyString(), any())).thenReturn(Mono.just(1L));
+
+        positionLeaseManager = new PositionLeaseManager();
+        ReflectionTestUtils.setField(positionLeaseManager, "queueRepo", queueRepo);
+        ReflectionTestUtils.setField(positionLeaseManager, "leaseSize", LEASE_SIZE);
+        ReflectionTestUtils.setField(positionLeaseManager, "leaseTtl", 30);
+        ReflectionTestUtils.setField(positionLeaseManager, "maxIdle", MAX_IDLE);
+    }
+
+    @Test
+    void testRollOverToPrefetchedLease() {
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            positions.add(positionLeaseManager.nextPosition(QUEUE_ID).block());
+        }
+        assertThat(positions).containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L);
+
+        // The next block is leased while the last quarter of the current one is handed out.
+        verify(queueRepo, times(3)).reserveTail(eq(QUEUE_ID), eq(LEASE_SIZE), anyLong());
+        assertThat(tail.get()).isEqualTo(12);
+
+        // Exhausted leases are released a round after they were retired.
+        long now = Instant.now().getEpochSecond();
+        positionLeaseManager.reclaimLeases(now + 1);
+        verify(queueRepo).releaseLease(eq(QUEUE_ID), argThat(lease -> lease.getFirst() == 1 && lease.getLast() == 4));
+        verify(queueRepo).releaseLease(eq(QUEUE_ID), argThat(lease -> lease.getFirst() == 5 && lease.getLast() == 8));
+        verify(queueRepo, times(2)).releaseLease(anyString(), any());
+    }
+
+    @Test
+    void testRetireIdleLeases() {
+        assertThat(positionLeaseManager.nextPosition(QUEUE_ID).block()).isEqualTo(1);
+        assertThat(queueLeases()).containsOnlyKeys(QUEUE_ID);
+
+        // Idle for longer than allowed: retired and the queue forgotten, released in the next round.
+        long now = Instant.now().getEpochSecond() + MAX_IDLE + 1;
+        positionLeaseManager.reclaimLeases(now);
+        assertThat(queueLeases()).isEmpty();
+        verify(queueRepo, never()).releaseLease(anyString(), any());
+        positionLeaseManager.reclaimLeases(now + 1);
+        verify(queueRepo).releaseLease(eq(QUEUE_ID), any());
+
+        // Positions left in the retired lease are never handed out.
+        assertThat(positionLeaseManager.nextPosition(QUEUE_ID).block()).isEqualTo(5);
+    }
+
+    @Test
+    void testNoLeasesForClosedQueues() {
+        assertThat(positionLeaseManager.nextPosition("q:unknown").block()).isNull();
+        verify(queueRepo, never()).reserveTail(eq("q:unknown"), anyInt(), anyLong());
+        assertThat(queueLeases()).isEmpty();
+
+        assertThat(positionLeaseManager.nextPosition(QUEUE_ID).block()).isEqualTo(1);
+        positionLeaseManager.dropLeases(QUEUE_ID);
+        assertThat(queueLeases()).isEmpty();
+        positionLeaseManager.reclaimLeases(Instant.now().getEpochSecond() + 1);
+        verify(queueRepo).releaseLease(eq(QUEUE_ID), any());
+
+        // Closed by another node, seen through its config.
+        assertThat(positionLeaseManager.nextPosition(QUEUE_ID).block()).isEqualTo(5);
+        when(queueRepo.findConfigById(QUEUE_ID)).thenReturn(Mono.empty());
+        assertThat(positionLeaseManager.nextPosition(QUEUE_ID).block()).isNull();
+        assertThat(queueLeases()).isEmpty();
+
+        // Gone by the time a lease is asked for.
+        when(queueRepo.findConfigById(QUEUE_ID)).thenReturn(Mono.just(Queue.builder().id(QUEUE_ID).build()));
+        when(queueRepo.reserveTail(eq(QUEUE_ID), anyInt(), anyLong())).thenReturn(Mono.empty());
+        assertThat(positionLeaseManager.nextPosition(QUEUE_ID).block()).isNull();
+        assertThat(queueLeases()).isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> queueLeases() {
+        return (Map<String, ?>) ReflectionTestUtils.getField(positionLeaseManager, "queueLeases");
+    }
+}
@@ -2,11 +2,13 @@ package io.openqueue.service;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import io.openqueue.common.exception.TicketServiceException;
 import io.openqueue.dto.QueueConfigDto;
 import io.openqueue.dto.QueueSetupDto;
 import io.openqueue.dto.QueueStatusDto;
 import io.openqueue.model.Queue;
 import io.openqueue.repo.QueueRepo;
+import io.openqueue.repo.QueueStatusFeed;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,9 +19,13 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
+
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -30,6 +36,12 @@ class QueueServiceTest {
     @MockBean
     private QueueRepo queueRepo;
 
+    @MockBean
+    private QueueEvents queueEvents;
+
+    @MockBean
+    private QueueStatusFeed queueStatusFeed;
+
     private static QueueConfigDto queueConfigDto;
     private static Queue mocQueue;
 
@@ -57,9 +69,9 @@ class QueueServiceTest {
 
     @Test
     void testSetupQueue() {
-        when(queueRepo.findAllId()).thenReturn(Flux.just("1", "2"));
         when(queueRepo.createOrUpdate(any(Queue.class))).thenReturn(Mono.just(mocQueue));
-        when(queueRepo.addToSet(anyString())).thenReturn(Mono.empty());
+        // First id is taken already.
+        when(queueRepo.addToSet(anyString())).thenReturn(Mono.just(Boolean.FALSE), Mono.just(Boolean.TRUE));
 
         StepVerifier.create(queueService.setupQueue(queueConfigDto))
                 .assertNext(responseBodyResponseEntity -> {
@@ -69,23 +81,35 @@ class QueueServiceTest {
                     assertThat(queueSetupDto.getCallbackFormat()).isNotNull();
                     assertThat(queueSetupDto.getQueueUrl()).isNotNull();
                 }).verifyComplete();
+
+        verify(queueRepo, times(2)).addToSet(anyString());
     }
 
     @Test
     void testGetQueueStatus() {
         when(queueRepo.findById(anyString())).thenReturn(Mono.just(mocQueue));
 
-        StepVerifier.create(queueService.getQueueStatus("visitor"))
+        StepVerifier.create(queueService.getQueueStatus("visitor", null))
                 .assertNext(responseBodyResponseEntity -> {
                     JSONObject jsonRes = (JSONObject)JSON.toJSON(responseBodyResponseEntity.getBody());
                     QueueStatusDto tmp = jsonRes.getJSONObject("data").toJavaObject(QueueStatusDto.class);
                     assertThat(tmp.getHead()).isEqualTo(3);
                     assertThat(tmp.getTail()).isEqualTo(233);
+                    assertThat(responseBodyResponseEntity.getHeaders().getETag()).isEqualTo("\"3-233\"");
+                    assertThat(responseBodyResponseEntity.getHeaders().getCacheControl()).startsWith("max-age=");
                 }).verifyComplete();
 
+        // Answered from the snapshot.
+        StepVerifier.create(queueService.getQueueStatus("visitor", "W/\"1-2\", \"3-233\""))
+                .assertNext(responseBodyResponseEntity -> {
+                    assertThat(responseBodyResponseEntity.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+                    assertThat(responseBodyResponseEntity.getBody()).isNull();
+                }).verifyComplete();
+        verify(queueRepo, times(1)).findById("visitor");
+
         when(queueRepo.findById(anyString())).thenReturn(Mono.empty());
 
-        StepVerifier.create(queueService.getQueueStatus("visitor"))
+        StepVerifier.create(queueService.getQueueStatus("visitor_closed", null))
                 .assertNext(responseBodyResponseEntity -> {
                     assertThat(responseBodyResponseEntity.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
                 }).verifyComplete();
@@ -93,8 +117,33 @@ class QueueServiceTest {
     }
 
     @Test
-    void testGetQueueConfig() {
+    void testStreamQueueStatus() {
         when(queueRepo.findById(anyString())).thenReturn(Mono.just(mocQueue));
+        when(queueStatusFeed.updates(anyString())).thenReturn(Flux.just(new QueueStatusDto(2, 233), new QueueStatusDto(10, 240))
+                .delayElements(Duration.ofMillis(100)));
+
+        // Updates merged within the interval arrive as the last one, the ticket at position 10 is ready with it.
+        StepVerifier.create(queueService.streamQueueStatus("visitor", 10L))
+                .assertNext(event -> {
+                    assertThat(event.event()).isEqualTo("status");
+                    assertThat(event.data()).isEqualTo(new QueueStatusDto(3, 233));
+                })
+                .assertNext(event -> {
+                    assertThat(event.event()).isEqualTo("ready");
+                    assertThat(event.data()).isEqualTo(new QueueStatusDto(10, 240));
+                })
+                .verifyComplete();
+
+        when(queueRepo.findById(anyString())).thenReturn(Mono.empty());
+        when(queueStatusFeed.updates(anyString())).thenReturn(Flux.never());
+
+        StepVerifier.create(queueService.streamQueueStatus("visitor", null))
+                .verifyError(TicketServiceException.class);
+    }
+
+    @Test
+    void testGetQueueConfig() {
+        when(queueRepo.findConfigById(anyString())).thenReturn(Mono.just(mocQueue));
 
         StepVerifier.create(queueService.getQueueConfig("visitor"))
                 .assertNext(responseBodyResponseEntity -> {
@@ -103,7 +152,7 @@ class QueueServiceTest {
                     assertThat(tmp).isEqualTo(queueConfigDto);
                 }).verifyComplete();
 
-        when(queueRepo.findById(anyString())).thenReturn(Mono.empty());
+        when(queueRepo.findConfigById(anyString())).thenReturn(Mono.empty());
 
         StepVerifier.create(queueService.getQueueConfig("visitor"))
                 .assertNext(responseBodyResponseEntity -> {
@@ -114,8 +163,8 @@ class QueueServiceTest {
 
     @Test
     void testUpdateQueueConfig() {
-        when(queueRepo.findById(anyString())).thenReturn(Mono.just(mocQueue));
-        when(queueRepo.createOrUpdate(any(Queue.class))).thenReturn(Mono.just(mocQueue));
+        when(queueRepo.findConfigById(anyString())).thenReturn(Mono.just(mocQueue));
+        when(queueRepo.updateConfig(any(Queue.class))).thenReturn(Mono.just(mocQueue));
 
         StepVerifier.create(queueService.updateQueueConfig("1234", queueConfigDto))
                 .assertNext(responseBodyResponseEntity -> {
@@ -125,7 +174,7 @@ class QueueServiceTest {
                     assertThat(code).isEqualTo(20003);
                 }).verifyComplete();
 
-        when(queueRepo.findById(anyString())).thenReturn(Mono.empty());
+        when(queueRepo.findConfigById(anyString())).thenReturn(Mono.empty());
 
         StepVerifier.create(queueService.updateQueueConfig("1234", queueConfigDto))
                 .assertNext(responseBodyResponseEntity -> {
@@ -135,7 +184,7 @@ class QueueServiceTest {
 
     @Test
     void testCloseQueue() {
-        when(queueRepo.findById(anyString())).thenReturn(Mono.just(mocQueue));
+        when(queueRepo.findConfigById(anyString())).thenReturn(Mono.just(mocQueue));
         when(queueRepo.close(anyString())).thenReturn(Mono.just(Boolean.TRUE));
 
         StepVerifier.create(queueService.closeQueue("1234"))
@@ -5,24 +5,37 @@ import com.alibaba.fastjson.JSONObject;
 import io.openqueue.common.api.ResultCode;
 import io.openqueue.common.exception.TicketServiceException;
 import io.openqueue.dto.TicketAuthDto;
+import io.openqueue.dto.TicketAuthRequestDto;
+import io.openqueue.dto.TicketAuthResultDto;
 import io.openqueue.dto.TicketUsageStatDto;
+import io.openqueue.model.PositionLease;
 import io.openqueue.model.Queue;
 import io.openqueue.model.Ticket;
 import io.openqueue.repo.QueueRepo;
 import io.openqueue.repo.TicketRepo;
+import io.openqueue.repo.TicketUsageCounter;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
 import static io.openqueue.common.constant.Keys.ACTIVE_SET_PREFIX;
 import static io.openqueue.common.constant.Keys.READY_SET_PREFIX;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -37,6 +50,15 @@ class TicketServiceTest {
     @MockBean
     private TicketRepo ticketRepo;
 
+    @MockBean
+    private QueueEvents queueEvents;
+
+    @MockBean
+    private TicketUsageCounter ticketUsageCounter;
+
+    @MockBean
+    private TicketSigner ticketSigner;
+
     private static String testQueueId;
     private static Queue queue;
     private static Ticket ticket;
@@ -65,8 +87,7 @@ class TicketServiceTest {
 
     @Test
     void testApplyTicket(){
-        when(queueRepo.findById(anyString())).thenReturn(Mono.empty());
-        when(queueRepo.incAndGetTail(anyString())).thenReturn(Mono.just(1L));
+        when(ticketRepo.issue(anyString(), anyString(), anyLong())).thenReturn(Mono.empty());
 
         StepVerifier.create(ticketService.applyTicket(testQueueId))
                 .expectErrorSatisfies(error -> {
@@ -76,9 +97,7 @@ class TicketServiceTest {
                 })
                 .verify();
 
-        when(queueRepo.findById(anyString())).thenReturn(Mono.just(queue));
-        when(queueRepo.incAndGetTail(anyString())).thenReturn(Mono.just(1L));
-        when(ticketRepo.create(any(Ticket.class))).thenReturn(Mono.just(ticket));
+        when(ticketRepo.issue(anyString(), anyString(), anyLong())).thenReturn(Mono.just(ticket));
 
         StepVerifier.create(ticketService.applyTicket(testQueueId))
                 .assertNext(responseBodyResponseEntity -> {
@@ -91,6 +110,62 @@ class TicketServiceTest {
                 .verifyComplete();
     }
 
+    @Test
+    void testApplySignedTicket(){
+        when(ticketSigner.isEnabled()).thenReturn(true);
+        when(ticketSigner.sign(anyString())).thenAnswer(invocation -> "k1" + invocation.getArgument(0).hashCode());
+        when(queueRepo.reserveTail(anyString(), anyInt(), anyLong())).thenReturn(Mono.just(new PositionLease(7, 7, 0)));
+        when(queueRepo.releaseLease(anyString(), any(PositionLease.class))).thenReturn(Mono.just(1L));
+        when(ticketRepo.createAll(any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        // Signed once the position is known, and written with the code.
+        String ticketId = "t:" + testQueueId + ":7";
+        StepVerifier.create(ticketService.applyTicket(testQueueId))
+                .assertNext(responseBodyResponseEntity -> {
+                    JSONObject jsonRes = (JSONObject)JSON.toJSON(responseBodyResponseEntity.getBody());
+                    Ticket ticket = jsonRes.getJSONObject("data").toJavaObject(Ticket.class);
+                    assertThat(ticket.getId()).isEqualTo(ticketId);
+                    assertThat(ticket.getAuthCode()).isEqualTo("k1" + ticketId.hashCode());
+                })
+                .verifyComplete();
+        verify(ticketRepo, never()).issue(anyString(), anyString(), anyLong());
+        verify(queueRepo).releaseLease(eq(testQueueId), any(PositionLease.class));
+    }
+
+    @Test
+    void testApplyTickets(){
+        assertThatThrownBy(() -> ticketService.applyTickets(testQueueId, 0).blockLast())
+                .isInstanceOfSatisfying(TicketServiceException.class, e -> {
+                    assertThat(e.getHttpStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+                    assertThat(e.getResultCode()).isEqualTo(ResultCode.ILLEGAL_TICKET_BATCH_SIZE_EXCEPTION);
+                });
+        assertThatThrownBy(() -> ticketService.applyTickets(testQueueId, TicketService.MAX_TICKETS_PER_BATCH + 1))
+                .isInstanceOf(TicketServiceException.class);
+
+        when(queueRepo.reserveTail(anyString(), anyInt(), anyLong())).thenReturn(Mono.empty());
+
+        StepVerifier.create(ticketService.applyTickets(testQueueId, 10))
+                .expectErrorSatisfies(error -> {
+                    assert error instanceof TicketServiceException;
+                    assertThat(((TicketServiceException) error).getHttpStatus()).isEqualTo(HttpStatus.NOT_FOUND);
+                    assertThat(((TicketServiceException) error).getResultCode()).isEqualTo(ResultCode.QUEUE_NOT_EXIST_EXCEPTION);
+                })
+                .verify();
+
+        when(queueRepo.reserveTail(anyString(), anyInt(), anyLong())).thenReturn(Mono.just(new PositionLease(101, 110, 0)));
+        when(queueRepo.releaseLease(anyString(), any(PositionLease.class))).thenReturn(Mono.just(1L));
+        when(ticketRepo.createAll(any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        StepVerifier.create(ticketService.applyTickets(testQueueId, 10))
+                .assertNext(ticketDetailDto -> {
+                    assertThat(ticketDetailDto.getTicketId()).isEqualTo("t:" + testQueueId + ":101");
+                    assertThat(ticketDetailDto.getAuthCode()).isNotNull();
+                })
+                .expectNextCount(8)
+                .assertNext(ticketDetailDto -> assertThat(ticketDetailDto.getTicketId()).isEqualTo("t:" + testQueueId + ":110"))
+                .verifyComplete();
+    }
+
     @Test
     void testTicketUsageStat(){
         TicketAuthDto ticketAuthDto = applyTicket();
@@ -114,6 +189,16 @@ class TicketServiceTest {
                     assertThat(ticketUsageStatDto.getActivateTime()).isEqualTo(123L);
                 })
                 .verifyComplete();
+
+        // Uses not flushed yet are counted too.
+        when(ticketUsageCounter.pending(anyString())).thenReturn(3L);
+        StepVerifier.create(ticketService.getTicketUsageStat(ticketAuthDto))
+                .assertNext(responseBodyResponseEntity -> {
+                    JSONObject jsonRes = (JSONObject)JSON.toJSON(responseBodyResponseEntity.getBody());
+                    TicketUsageStatDto ticketUsageStatDto = jsonRes.getJSONObject("data").toJavaObject(TicketUsageStatDto.class);
+                    assertThat(ticketUsageStatDto.getCountOfUsage()).isEqualTo(3);
+                })
+                .verifyComplete();
     }
 
     @Test
@@ -128,9 +213,7 @@ class TicketServiceTest {
             assertThat(e.getResultCode()).isEqualTo(ResultCode.MISMATCH_QUEUE_ID_EXCEPTION);
         }
 
-        when(ticketRepo.isTicketInSet(anyString(), anyString())).thenReturn(Mono.just(Boolean.FALSE));
-        when(ticketRepo.findById(anyString())).thenReturn(Mono.just(ticket));
-        when(ticketRepo.incUsage(anyString())).thenReturn(Mono.just(1L));
+        when(ticketRepo.authorize(anyString(), anyString(), anyString(), anyInt())).thenReturn(Mono.just(TicketRepo.NOT_ACTIVE));
 
         StepVerifier.create(ticketService.getTicketAuthorization(ticketAuthDto, ticketAuthDto.getQueueId()))
                 .expectErrorSatisfies(error -> {
@@ -140,8 +223,7 @@ class TicketServiceTest {
                 })
                 .verify();
 
-        when(ticketRepo.isTicketInSet(anyString(), anyString())).thenReturn(Mono.just(Boolean.TRUE));
-        ticket.setOccupied(true);
+        when(ticketRepo.authorize(anyString(), anyString(), anyString(), anyInt())).thenReturn(Mono.just(TicketRepo.OCCUPIED));
 
         StepVerifier.create(ticketService.getTicketAuthorization(ticketAuthDto, ticketAuthDto.getQueueId()))
                 .expectErrorSatisfies(error -> {
@@ -151,7 +233,7 @@ class TicketServiceTest {
                 })
                 .verify();
 
-        ticket.setOccupied(false);
+        when(ticketRepo.authorize(anyString(), anyString(), anyString(), anyInt())).thenReturn(Mono.just(TicketRepo.AUTHORIZED));
         StepVerifier.create(ticketService.getTicketAuthorization(ticketAuthDto, ticketAuthDto.getQueueId()))
                 .assertNext(responseBodyResponseEntity -> {
                     JSONObject jsonRes = (JSONObject)JSON.toJSON(responseBodyResponseEntity.getBody());
@@ -161,6 +243,47 @@ class TicketServiceTest {
                 .verifyComplete();
     }
 
+    @Test
+    void testGetTicketAuthorizations(){
+        TicketAuthDto ticketAuthDto = applyTicket();
+        String ticket = Base64.getUrlEncoder().withoutPadding().encodeToString(ticketAuthDto.getToken().getBytes());
+        String qid = ticketAuthDto.getQueueId().substring(2);
+        List<TicketAuthRequestDto> requests = Arrays.asList(
+                new TicketAuthRequestDto(ticket, qid),
+                new TicketAuthRequestDto("not_a_token", qid),
+                new TicketAuthRequestDto(ticket, "wrong"),
+                new TicketAuthRequestDto(ticket, qid),
+                new TicketAuthRequestDto(ticket, qid),
+                null);
+
+        when(ticketUsageCounter.isEnabled()).thenReturn(true);
+        when(ticketRepo.authorizeAll(anyList(), anyInt()))
+                .thenReturn(Flux.just(TicketRepo.AUTHORIZED, TicketRepo.OCCUPIED, TicketRepo.NOT_ACTIVE));
+
+        StepVerifier.create(ticketService.getTicketAuthorizations(requests))
+                .assertNext(responseBodyResponseEntity -> {
+                    JSONObject jsonRes = (JSONObject)JSON.toJSON(responseBodyResponseEntity.getBody());
+                    assertThat(jsonRes.getIntValue("code")).isEqualTo(ResultCode.GET_TICKET_AUTHORIZATIONS_SUCCESS.getCode());
+                    List<TicketAuthResultDto> results = jsonRes.getJSONArray("data").toJavaList(TicketAuthResultDto.class);
+                    assertThat(results.size()).isEqualTo(6);
+                    assertThat(results.get(0).getCode()).isEqualTo(ResultCode.TICKET_AUTHORIZED_SUCCESS.getCode());
+                    assertThat(results.get(1).getCode()).isEqualTo(ResultCode.ILLEGAL_TICKET_AUTH_FORMAT_EXCEPTION.getCode());
+                    assertThat(results.get(2).getCode()).isEqualTo(ResultCode.MISMATCH_QUEUE_ID_EXCEPTION.getCode());
+                    assertThat(results.get(3).getCode()).isEqualTo(ResultCode.TICKET_OCCUPIED_EXCEPTION.getCode());
+                    assertThat(results.get(4).getCode()).isEqualTo(ResultCode.TICKET_NOT_ACTIVE_EXCEPTION.getCode());
+                    assertThat(results.get(5).getCode()).isEqualTo(ResultCode.ILLEGAL_TICKET_AUTH_FORMAT_EXCEPTION.getCode());
+                })
+                .verifyComplete();
+        verify(ticketRepo).authorizeAll(anyList(), eq(0));
+        verify(ticketUsageCounter).increment(ticketAuthDto.getTicketId());
+
+        assertThatThrownBy(() -> ticketService.getTicketAuthorizations(Collections.emptyList()))
+                .isInstanceOfSatisfying(TicketServiceException.class, e -> {
+                    assertThat(e.getHttpStatus()).isEqualTo(HttpStatus.BAD_REQUEST);
+                    assertThat(e.getResultCode()).isEqualTo(ResultCode.ILLEGAL_TICKET_BATCH_SIZE_EXCEPTION);
+                });
+    }
+
     @Test
     void testSetTicketOccupied(){
         TicketAuthDto ticketAuthDto = applyTicket();
@@ -234,6 +357,8 @@ class TicketServiceTest {
     void testRevokeTicket(){
         TicketAuthDto ticketAuthDto = applyTicket();
         when(ticketRepo.findById(anyString())).thenReturn(Mono.empty());
+        when(ticketRepo.removeOutOfSetById(anyString(), anyString())).thenReturn(Mono.just(1L));
+        when(ticketRepo.revoke(anyString())).thenReturn(Mono.just(1L));
 
         try {
             ticketService.revokeTicket(ticketAuthDto).block();
@@ -250,6 +375,16 @@ class TicketServiceTest {
             assertThat(e.getHttpStatus()).isEqualTo(HttpStatus.UNAUTHORIZED);
             assertThat(e.getResultCode()).isEqualTo(ResultCode.MISMATCH_TICKET_AUTH_CODE_EXCEPTION);
         }
+
+        ticketAuthDto.setAuthCode(ticket.getAuthCode());
+        StepVerifier.create(ticketService.revokeTicket(ticketAuthDto))
+                .assertNext(responseBodyResponseEntity -> {
+                    assertThat(responseBodyResponseEntity.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+                })
+                .verifyComplete();
+
+        // The freed slot is handed out without waiting for the sweep.
+        verify(queueEvents).requestPush(ticketAuthDto.getQueueId());
     }
 
     private TicketAuthDto applyTicket() {
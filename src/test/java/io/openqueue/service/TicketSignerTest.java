@@ -0,0 +1,63 @@
+package io.openqueue.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TicketSignerTest {
+
+    private TicketSigner ticketSigner;
+
+    @BeforeEach
+    void runBeforeEachTestMethod() {
+        ticketSigner = newSigner("k2:secret2,k1:secret1");
+    }
+
+    @Test
+    void testSignAndVerify() {
+        String signature = ticketSigner.sign("t:q:sad1fghS:123");
+
+        assertThat(signature).matches("k2[a-zA-Z0-9]{22}");
+        assertThat(ticketSigner.verify("t:q:sad1fghS:123", signature)).isTrue();
+
+        // Signature does not carry over to another position or queue.
+        assertThat(ticketSigner.verify("t:q:sad1fghS:124", signature)).isFalse();
+        assertThat(ticketSigner.verify("t:q:sad1fghT:123", signature)).isFalse();
+    }
+
+    @Test
+    void testVerifyMalformedSignature() {
+        String signature = ticketSigner.sign("t:q:sad1fghS:123");
+
+        assertThat(ticketSigner.verify("t:q:sad1fghS:123", null)).isFalse();
+        assertThat(ticketSigner.verify("t:q:sad1fghS:123", "oi2sdfD")).isFalse();
+        assertThat(ticketSigner.verify("t:q:sad1fghS:123", "k9" + signature.substring(2))).isFalse();
+        assertThat(ticketSigner.verify("t:q:sad1fghS:123", signature.substring(0, signature.length() - 1) + "0")).isFalse();
+    }
+
+    @Test
+    void testRotateSigningKey() {
+        String oldSignature = newSigner("k1:secret1").sign("t:q:sad1fghS:123");
+
+        // Tickets signed by a retired key are still accepted while the key is configured.
+        assertThat(ticketSigner.verify("t:q:sad1fghS:123", oldSignature)).isTrue();
+        assertThat(newSigner("k3:secret3").verify("t:q:sad1fghS:123", oldSignature)).isFalse();
+    }
+
+    @Test
+    void testIllegalSigningKey() {
+        assertThatThrownBy(() -> newSigner("k-1:secret1")).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> newSigner("")).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static TicketSigner newSigner(String signingKeys) {
+        TicketSigner signer = new TicketSigner();
+        ReflectionTestUtils.setField(signer, "enabled", true);
+        ReflectionTestUtils.setField(signer, "signingKeys", signingKeys);
+        signer.init();
+        return signer;
+    }
+}
@@ -0,0 +1,107 @@
+package io.openqueue.task;
+
+import io.openqueue.repo.NodeRepo;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class QueueOwnershipTest {
+
+    private static final List<Integer> PARTITIONS = IntStream.range(0, 3000)
+            .boxed()
+            .collect(Collectors.toList());
+
+    @Test
+    void testOwnsEverythingBeforeFirstHeartbeat() {
+        QueueOwnership queueOwnership = new QueueOwnership();
+
+        assertThat(PARTITIONS).allMatch(queueOwnership::owns);
+    }
+
+    @Test
+    void testEachPartitionHasOneOwner() {
+        List<QueueOwnership> nodes = newCluster(3);
+
+        int[] owned = new int[nodes.size()];
+        for (int partition : PARTITIONS) {
+            int owners = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                if (nodes.get(i).owns(partition)) {
+                    owners++;
+                    owned[i]++;
+                }
+            }
+            assertThat(owners).isEqualTo(1);
+        }
+
+        // Roughly even shares.
+        for (int count : owned) {
+            assertThat(count).isBetween(800, 1200);
+        }
+    }
+
+    @Test
+    void testOnlyPartitionsOfLeavingNodeMove() {
+        List<QueueOwnership> nodes = newCluster(3);
+        QueueOwnership staying = nodes.get(0);
+        QueueOwnership leaving = nodes.get(2);
+        List<Integer> ownedBefore = PARTITIONS.stream().filter(staying::owns).collect(Collectors.toList());
+        List<Integer> ownedByLeaving = PARTITIONS.stream().filter(leaving::owns).collect(Collectors.toList());
+
+        staying.updateMembers(Arrays.asList(nodes.get(0).getNodeId(), nodes.get(1).getNodeId()));
+
+        // Keeps its partitions and takes some of the leaving node's.
+        assertThat(ownedBefore).allMatch(staying::owns);
+        assertThat(PARTITIONS.stream().filter(staying::owns))
+                .allMatch(partition -> ownedBefore.contains(partition) || ownedByLeaving.contains(partition));
+    }
+
+    @Test
+    void testSettleOnFirstHeartbeat() {
+        QueueOwnership queueOwnership = new QueueOwnership();
+        NodeRepo nodeRepo = mock(NodeRepo.class);
+        ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+        ReflectionTestUtils.setField(queueOwnership, "nodeRepo", nodeRepo);
+        ReflectionTestUtils.setField(queueOwnership, "eventPublisher", eventPublisher);
+        ReflectionTestUtils.setField(queueOwnership, "nodeTtl", 5000L);
+
+        queueOwnership.settleAlone();
+        when(nodeRepo.heartbeat(anyString(), anyLong(), anyLong())).thenReturn(Flux.error(new IllegalStateException()));
+        queueOwnership.heartbeat();
+        verify(eventPublisher, never()).publishEvent(any(Object.class));
+
+        when(nodeRepo.heartbeat(anyString(), anyLong(), anyLong()))
+                .thenReturn(Flux.just(queueOwnership.getNodeId(), "other"));
+        queueOwnership.heartbeat();
+        queueOwnership.heartbeat();
+        verify(eventPublisher).publishEvent(any(OwnershipSettledEvent.class));
+    }
+
+    private static List<QueueOwnership> newCluster(int size) {
+        List<QueueOwnership> nodes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            nodes.add(new QueueOwnership());
+        }
+        List<String> nodeIds = nodes.stream().map(QueueOwnership::getNodeId).collect(Collectors.toList());
+        Collections.shuffle(nodeIds);
+        nodes.forEach(node -> node.updateMembers(nodeIds));
+        return nodes;
+    }
+}
@@ -0,0 +1,173 @@
+package io.openqueue.task;
+
+import io.openqueue.model.PushResult;
+import io.openqueue.model.SweepReport;
+import io.openqueue.repo.QueueRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.EmitterProcessor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ScheduledQueueTaskTest {
+
+    private ScheduledQueueTask scheduledQueueTask;
+
+    private QueueRepo queueRepo;
+
+    private QueueOwnership queueOwnership;
+
+    @BeforeEach
+    void setUp() {
+        queueRepo = mock(QueueRepo.class);
+        queueOwnership = mock(QueueOwnership.class);
+        when(queueOwnership.owns(anyInt())).thenReturn(true);
+
+        scheduledQueueTask = new ScheduledQueueTask();
+        ReflectionTestUtils.setField(scheduledQueueTask, "queueRepo", queueRepo);
+        ReflectionTestUtils.setField(scheduledQueueTask, "queueOwnership", queueOwnership);
+        ReflectionTestUtils.setField(scheduledQueueTask, "minIntervalMillis", 5000L);
+        ReflectionTestUtils.setField(scheduledQueueTask, "maxIntervalMillis", 60000L);
+        ReflectionTestUtils.setField(scheduledQueueTask, "sweepConcurrency", 4);
+        ReflectionTestUtils.setField(scheduledQueueTask, "sweepDeadlineMillis", 3000L);
+
+        when(queueRepo.duePartitionCount()).thenReturn(1);
+        when(queueRepo.getQueueLock(anyString(), anyString(), anyInt())).thenReturn(Mono.just(true));
+        when(queueRepo.getQueueLock(eq("q:busy"), anyString(), anyInt())).thenReturn(Mono.just(false));
+        when(queueRepo.releaseQueueLock(anyString(), anyString())).thenReturn(Mono.just(true));
+        when(queueRepo.scheduleDue(anyString(), anyLong())).thenReturn(Mono.just(true));
+        when(queueRepo.push(eq("q:busy_queue"), anyLong(), anyInt()))
+                .thenReturn(Mono.just(new PushResult(2, 2, 10, 2, -1, false)));
+        when(queueRepo.push(eq("q:idle_queue"), anyLong(), anyInt()))
+                .thenReturn(Mono.just(new PushResult(0, 0, 0, 10, -1, true)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduledQueueTask.shutdown();
+    }
+
+    @Test
+    void testSweepReport() throws InterruptedException {
+        when(queueRepo.findDueIds(anyLong(), anyInt(), anyInt())).thenReturn(Flux.just("q:busy_queue", "q:idle_queue", "q:busy"));
+
+        scheduledQueueTask.pushDueQueuesForward();
+
+        assertThat(awaitReport()).isEqualToIgnoringGivenFields(
+                SweepReport.builder().processed(2).lockSkipped(1).admitted(2).build(), "durationMillis");
+    }
+
+    @Test
+    void testSweepOnlyOwnedPartitions() throws InterruptedException {
+        when(queueRepo.duePartitionCount()).thenReturn(3);
+        when(queueOwnership.owns(1)).thenReturn(false);
+        when(queueRepo.findDueIds(anyLong(), eq(0), anyInt())).thenReturn(Flux.just("q:busy_queue"));
+        when(queueRepo.findDueIds(anyLong(), eq(2), anyInt())).thenReturn(Flux.just("q:idle_queue"));
+
+        scheduledQueueTask.pushDueQueuesForward();
+
+        assertThat(awaitReport().getProcessed()).isEqualTo(2);
+        verify(queueRepo, never()).findDueIds(anyLong(), eq(1), anyInt());
+    }
+
+    @Test
+    void testSkipOverlappingSweep() throws InterruptedException {
+        EmitterProcessor<String> dueIds = EmitterProcessor.create();
+        when(queueRepo.findDueIds(anyLong(), anyInt(), anyInt())).thenReturn(dueIds);
+
+        scheduledQueueTask.pushDueQueuesForward();
+        scheduledQueueTask.pushDueQueuesForward();
+        dueIds.onNext("q:busy_queue");
+        dueIds.onComplete();
+
+        SweepReport report = awaitReport();
+        assertThat(report.getProcessed()).isEqualTo(1);
+        assertThat(report.getOverrun()).isEqualTo(1);
+    }
+
+    @Test
+    void testSweepDeadline() throws InterruptedException {
+        ReflectionTestUtils.setField(scheduledQueueTask, "sweepDeadlineMillis", 0L);
+        when(queueRepo.findDueIds(anyLong(), anyInt(), anyInt())).thenReturn(Flux.just("q:busy_queue", "q:idle_queue"));
+
+        scheduledQueueTask.pushDueQueuesForward();
+
+        SweepReport report = awaitReport();
+        assertThat(report.getProcessed()).isEqualTo(0);
+        assertThat(report.getDeferred()).isEqualTo(2);
+    }
+
+    @Test
+    void testGiveUpPushesPastDeadline() throws InterruptedException {
+        ReflectionTestUtils.setField(scheduledQueueTask, "sweepDeadlineMillis", 1000L);
+        when(queueRepo.push(eq("q:stuck"), anyLong(), anyInt())).thenReturn(Mono.never());
+        when(queueRepo.findDueIds(anyLong(), anyInt(), anyInt())).thenReturn(Flux.just("q:stuck", "q:busy_queue"));
+
+        scheduledQueueTask.pushDueQueuesForward();
+
+        SweepReport report = awaitReport();
+        assertThat(report.getProcessed()).isEqualTo(1);
+        assertThat(report.getDeferred()).isEqualTo(1);
+        assertThat(report.getDurationMillis()).isLessThan(3000);
+
+        // The next sweep is not held up by the one given up on.
+        ReflectionTestUtils.setField(scheduledQueueTask, "lastSweepReport", null);
+        scheduledQueueTask.pushDueQueuesForward();
+        assertThat(awaitReport().getOverrun()).isEqualTo(0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testForgetHibernatedAndClosedQueues() throws InterruptedException {
+        when(queueRepo.push(eq("q:closed"), anyLong(), anyInt())).thenReturn(Mono.empty());
+        when(queueRepo.findDueIds(anyLong(), anyInt(), anyInt()))
+                .thenReturn(Flux.just("q:busy_queue", "q:idle_queue", "q:closed"));
+
+        scheduledQueueTask.pushDueQueuesForward();
+
+        assertThat(awaitReport().getProcessed()).isEqualTo(3);
+        assertThat((Map<String, ?>) ReflectionTestUtils.getField(scheduledQueueTask, "underCapacity"))
+                .containsOnlyKeys("q:busy_queue");
+        assertThat((Map<String, ?>) ReflectionTestUtils.getField(scheduledQueueTask, "intervals"))
+                .containsOnlyKeys("q:busy_queue");
+    }
+
+    @Test
+    void testWakeUpOnExpiration() {
+        when(queueRepo.duePartitionOf("q:idle_queue")).thenReturn(1);
+        when(queueOwnership.owns(1)).thenReturn(false);
+        long expirationTime = Instant.now().getEpochSecond();
+
+        scheduledQueueTask.scheduleWakeUp("q:busy_queue", expirationTime + 60);
+        scheduledQueueTask.scheduleWakeUp("q:busy_queue", expirationTime);
+        scheduledQueueTask.scheduleWakeUp("q:idle_queue", expirationTime);
+
+        // The earlier expiration replaces the later one, and only owned queues are woken up.
+        verify(queueRepo, timeout(2000)).push(eq("q:busy_queue"), anyLong(), anyInt());
+        verify(queueRepo, after(500).never()).push(eq("q:idle_queue"), anyLong(), anyInt());
+    }
+
+    private SweepReport awaitReport() throws InterruptedException {
+        for (int i = 0; i < 100 && scheduledQueueTask.getLastSweepReport() == null; i++) {
+            Thread.sleep(20);
+        }
+        return scheduledQueueTask.getLastSweepReport();
+    }
+}